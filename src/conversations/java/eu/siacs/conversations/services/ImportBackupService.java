@@ -8,6 +8,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.IBinder;
@@ -28,7 +29,6 @@ import org.bouncycastle.crypto.modes.GCMBlockCipher;
 import org.bouncycastle.crypto.params.AEADParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
 
-import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -51,8 +51,13 @@ import javax.crypto.BadPaddingException;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.persistance.BackupReader;
+import eu.siacs.conversations.persistance.BackupWriter;
+import eu.siacs.conversations.persistance.BulkInserter;
 import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
+import eu.siacs.conversations.persistance.SqlBackupReader;
 import eu.siacs.conversations.ui.ManageAccountActivity;
 import eu.siacs.conversations.utils.BackupFileHeader;
 import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
@@ -68,16 +73,6 @@ public class ImportBackupService extends Service {
     private DatabaseBackend mDatabaseBackend;
     private NotificationManager notificationManager;
 
-    private static int count(String input, char c) {
-        int count = 0;
-        for (char aChar : input.toCharArray()) {
-            if (aChar == c) {
-                ++count;
-            }
-        }
-        return count;
-    }
-
     @Override
     public void onCreate() {
         mDatabaseBackend = DatabaseBackend.getInstance(getBaseContext());
@@ -236,37 +231,25 @@ public class ImportBackupService extends Service {
 
             final byte[] key = ExportBackupService.getKey(password, backupFileHeader.getSalt());
 
-            final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
-            cipher.init(false, new AEADParameters(new KeyParameter(key), 128, backupFileHeader.getIv()));
-            final CipherInputStream cipherInputStream = new CipherInputStream(countingInputStream, cipher);
-
-            final GZIPInputStream gzipInputStream = new GZIPInputStream(cipherInputStream);
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(gzipInputStream, Charsets.UTF_8));
-            db.beginTransaction();
-            String line;
-            StringBuilder multiLineQuery = null;
-            while ((line = reader.readLine()) != null) {
-                int count = count(line, '\'');
-                if (multiLineQuery != null) {
-                    multiLineQuery.append('\n');
-                    multiLineQuery.append(line);
-                    if (count % 2 == 1) {
-                        db.execSQL(multiLineQuery.toString());
-                        multiLineQuery = null;
-                        updateImportBackupNotification(fileSize, countingInputStream.getCount());
-                    }
+            final Jid jid = backupFileHeader.getJid();
+            final BulkInserter inserter = new BulkInserter(db, Config.BACKUP_IMPORT_ROWS_PER_TRANSACTION);
+            try {
+                if (backupFileHeader.getVersion() >= BackupFileHeader.VERSION_CHUNKED) {
+                    importChunkedBackup(inserter, countingInputStream, key, backupFileHeader.getIv(), fileSize);
                 } else {
-                    if (count % 2 == 0) {
-                        db.execSQL(line);
-                        updateImportBackupNotification(fileSize, countingInputStream.getCount());
-                    } else {
-                        multiLineQuery = new StringBuilder(line);
-                    }
+                    importSqlBackup(inserter, countingInputStream, key, backupFileHeader.getIv(), fileSize);
                 }
+                inserter.commit();
+            } catch (final IOException | RuntimeException e) {
+                inserter.rollback();
+                //rows of transactions that have already been committed cascade from the account
+                final int deleted = db.delete(Account.TABLENAME, Account.USERNAME + "=? and " + Account.SERVER + "=?", new String[]{jid.getEscapedLocal(), jid.getDomain().toEscapedString()});
+                Log.d(Config.LOGTAG, "removed " + deleted + " partially restored account(s)");
+                throw e;
+            } finally {
+                inserter.close();
             }
-            db.setTransactionSuccessful();
-            db.endTransaction();
-            final Jid jid = backupFileHeader.getJid();
+            Log.d(Config.LOGTAG, "inserted " + inserter.getRows() + " rows at " + inserter.getRowsPerSecond() + " rows/s");
             final Cursor countCursor = db.rawQuery("select count(messages.uuid) from messages join conversations on conversations.uuid=messages.conversationUuid join accounts on conversations.accountUuid=accounts.uuid where accounts.username=? and accounts.server=?", new String[]{jid.getEscapedLocal(), jid.getDomain().toEscapedString()});
             countCursor.moveToFirst();
             final int count = countCursor.getInt(0);
@@ -296,6 +279,55 @@ public class ImportBackupService extends Service {
         }
     }
 
+    private void importSqlBackup(final BulkInserter inserter, final CountingInputStream countingInputStream, final byte[] key, final byte[] iv, final long fileSize) throws IOException {
+        final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(false, new AEADParameters(new KeyParameter(key), 128, iv));
+        final CipherInputStream cipherInputStream = new CipherInputStream(countingInputStream, cipher);
+
+        final GZIPInputStream gzipInputStream = new GZIPInputStream(cipherInputStream);
+        final SqlBackupReader reader = new SqlBackupReader(new InputStreamReader(gzipInputStream, Charsets.UTF_8));
+        try {
+            SQLiteStatement statement = null;
+            int record;
+            while ((record = reader.next()) != -1) {
+                if (record == BackupWriter.RECORD_TABLE) {
+                    statement = inserter.getStatement(reader.getTable(), reader.getColumns(), reader.isIgnoreConflicts());
+                } else {
+                    reader.bind(statement);
+                    inserter.insert(statement);
+                    updateImportBackupNotification(inserter, fileSize, countingInputStream);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void importChunkedBackup(final BulkInserter inserter, final CountingInputStream countingInputStream, final byte[] key, final byte[] iv, final long fileSize) throws IOException {
+        final BackupReader reader = new BackupReader(countingInputStream, key, iv);
+        try {
+            SQLiteStatement statement = null;
+            int record;
+            while ((record = reader.next()) != -1) {
+                if (record == BackupWriter.RECORD_TABLE) {
+                    statement = inserter.getStatement(reader.getTable(), reader.getColumns(), false);
+                } else {
+                    reader.bind(statement);
+                    inserter.insert(statement);
+                    updateImportBackupNotification(inserter, fileSize, countingInputStream);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void updateImportBackupNotification(final BulkInserter inserter, final long fileSize, final CountingInputStream countingInputStream) {
+        if (inserter.getRows() % 1000 == 0) {
+            updateImportBackupNotification(fileSize, countingInputStream.getCount());
+        }
+    }
+
     private void notifySuccess() {
         NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(getBaseContext(), "backup");
         mBuilder.setContentTitle(getString(R.string.notification_restored_backup_title))
@@ -69,9 +69,17 @@ public final class Config {
     public static final int PING_TIMEOUT = 15;
     public static final int SOCKET_TIMEOUT = 15;
     public static final int CONNECT_TIMEOUT = 90;
+    public static final int CONNECTION_ATTEMPT_DELAY = 250; //ms before racing the next resolver result against a pending one (RFC 8305)
+    public static final int DNS_LOOKUP_THREADS = 8;
+    public static final long DNS_MIN_TTL = 60; //seconds a resolver result is cached at least, even if the records say otherwise
+    public static final long DNS_MAX_TTL = 24 * 60 * 60;
+    public static final long DNS_STALE_TIME = 3 * 24 * 60 * 60; //seconds an expired resolver result is still used while it is being refreshed
     public static final int POST_CONNECTIVITY_CHANGE_PING_INTERVAL = 30;
     public static final int CONNECT_DISCO_TIMEOUT = 20;
     public static final int MINI_GRACE_PERIOD = 750;
+    public static final int STANZA_COALESCING_MAX_BYTES = 16 * 1024; // roughly one TLS record
+    public static final int STANZA_DISPATCH_THREADS = 4; // per account; stanzas from different bare jids are processed in parallel
+    public static final int MAX_PENDING_STANZAS = 256; // reading from the socket pauses while this many stanzas of an account wait to be processed
 
     public static final boolean XEP_0392 = true; //enables XEP-0392 v0.6.0
 
@@ -88,10 +96,16 @@ public final class Config {
     public static final int PAGE_SIZE = 50;
     public static final int MAX_NUM_PAGES = 3;
     public static final int MAX_SEARCH_RESULTS = 300;
+    public static final int SEARCH_RESULTS_PAGE_SIZE = 50; //results are handed to the UI in pages of this size
 
     public static final int REFRESH_UI_INTERVAL = 500;
+    public static final int PRESENCE_UI_INTERVAL = 250; //ms between UI updates and avatar invalidations caused by incoming presences
+    public static final int UI_UPDATE_INTERVAL = 16; //ms between notifications of UI listeners; one frame at 60 Hz
+
+    public static final int BACKUP_IMPORT_ROWS_PER_TRANSACTION = 5000; //commit restored rows in batches of this size
 
     public static final int MAX_DISPLAY_MESSAGE_CHARS = 4096;
+    public static final int MESSAGE_BODY_PREFETCH = 8; //text messages ahead of the scroll direction whose bodies are rendered in the background
     public static final int MAX_STORAGE_MESSAGE_CHARS = 2 * 1024 * 1024; //2MB
 
     public static final long MILLISECONDS_IN_DAY = 24 * 60 * 60 * 1000;
@@ -107,9 +121,14 @@ public final class Config {
     public static final boolean USE_BOOKMARKS2 = false;
 
     public static final boolean DISABLE_PROXY_LOOKUP = false; //useful to debug ibb
+    public static final int IBB_WINDOW_SIZE = 8; //number of ibb blocks in flight before waiting for acks
     public static final boolean USE_DIRECT_JINGLE_CANDIDATES = true;
     public static final boolean DISABLE_HTTP_UPLOAD = false;
+    public static final int MAX_HTTP_TRANSFERS = 4;
+    public static final int MAX_HTTP_TRANSFERS_PER_HOST = 2; //further transfers to the same host wait even if MAX_HTTP_TRANSFERS has not been reached
     public static final boolean EXTENDED_SM_LOGGING = false; // log stanza counts
+    public static final int SM_ACK_REQUEST_DELAY = 100; //ms an ack request for a sent message may be delayed to cover messages sent right after it
+    public static final int SM_ACK_REQUEST_BATCH = 10; //message stanzas after which an ack is requested right away
     public static final boolean BACKGROUND_STANZA_LOGGING = false; //log all stanzas that were received while the app is in background
     public static final boolean RESET_ATTEMPT_COUNT_ON_NETWORK_CHANGE = true; //setting to true might increase power consumption
 
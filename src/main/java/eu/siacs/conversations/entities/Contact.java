@@ -577,6 +577,13 @@ public class Contact implements ListItem, Blockable {
         return getDisplayName();
     }
 
+    /**
+     * @return whether the contact has to be kept in the database
+     */
+    public boolean shouldBeStored() {
+        return getOption(Options.IN_ROSTER) || hasAvatarOrPresenceName() || getOption(Options.SYNCED_VIA_OTHER);
+    }
+
     public boolean hasAvatarOrPresenceName() {
         return (avatar != null && avatar.getFilename() != null) || presenceName != null;
     }
@@ -8,6 +8,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 import org.json.JSONArray;
@@ -16,7 +17,6 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -66,6 +66,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private static final String ATTRIBUTE_NEXT_ENCRYPTION = "next_encryption";
     private static final String ATTRIBUTE_CORRECTING_MESSAGE = "correcting_message";
     protected final ArrayList<Message> messages = new ArrayList<>();
+    private final MessageIndex messageIndex = new MessageIndex();
     public AtomicBoolean messagesLoaded = new AtomicBoolean(true);
     protected Account account = null;
     private String draftMessage;
@@ -79,6 +80,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private JSONObject attributes;
     private Jid nextCounterpart;
     private transient MucOptions mucOptions = null;
+    private transient MucOptions.OnOccupantsChanged onOccupantsChangedListener = null;
     private boolean messagesLeftOnServer = true;
     private ChatState mOutgoingChatState = Config.DEFAULT_CHAT_STATE;
     private ChatState mIncomingChatState = Config.DEFAULT_CHAT_STATE;
@@ -216,14 +218,15 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findUnsentMessageWithUuid(String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
+            final List<Message> candidates = new ArrayList<>();
+            for (final Message message : this.messageIndex.withUuid(uuid)) {
                 final int s = message.getStatus();
-                if ((s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING) && message.getUuid().equals(uuid)) {
-                    return message;
+                if (s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING) {
+                    candidates.add(message);
                 }
             }
+            return first(candidates);
         }
-        return null;
     }
 
     public void findWaitingMessages(OnMessageFound onMessageFound) {
@@ -257,15 +260,15 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findMessageWithFileAndUuid(final String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (message.getUuid().equals(uuid)
-                        && message.getEncryption() != Message.ENCRYPTION_PGP
+            final List<Message> candidates = new ArrayList<>();
+            for (final Message message : this.messageIndex.withUuid(uuid)) {
+                if (message.getEncryption() != Message.ENCRYPTION_PGP
                         && (message.isFileOrImage() || message.treatAsDownloadable())) {
-                    return message;
+                    candidates.add(message);
                 }
             }
+            return first(candidates);
         }
-        return null;
     }
 
     public boolean markAsDeleted(final List<String> uuids) {
@@ -305,7 +308,9 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public void clearMessages() {
         synchronized (this.messages) {
+            untieMessages(this.messages);
             this.messages.clear();
+            this.messageIndex.clear();
         }
     }
 
@@ -345,8 +350,10 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                 if (pgpDecryptionService != null) {
                     pgpDecryptionService.discard(discards);
                 }
+                this.messageIndex.removeAll(discards);
+                untieMessages(discards);
                 discards.clear();
-                untieMessages();
+                linkMessages(0, 0);
             }
         }
     }
@@ -367,19 +374,23 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findSentMessageWithUuidOrRemoteId(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())
-                        || (message.getStatus() >= Message.STATUS_SEND
-                        && id.equals(message.getRemoteMsgId()))) {
-                    return message;
+            final List<Message> candidates = new ArrayList<>(this.messageIndex.withUuid(id));
+            for (final Message message : this.messageIndex.withRemoteMsgId(id)) {
+                if (message.getStatus() >= Message.STATUS_SEND) {
+                    candidates.add(message);
                 }
             }
+            return first(candidates);
         }
-        return null;
     }
 
     public Message findMessageWithRemoteIdAndCounterpart(String id, Jid counterpart, boolean received, boolean carbon) {
         synchronized (this.messages) {
+            //only the most recent message of a counterpart can be corrected. The index can only
+            //tell us quickly if there is no message with that id at all
+            if (this.messageIndex.withRemoteMsgId(id).isEmpty() && this.messageIndex.withEditedId(id).isEmpty()) {
+                return null;
+            }
             for (int i = this.messages.size() - 1; i >= 0; --i) {
                 final Message message = messages.get(i);
                 final Jid mcp = message.getCounterpart();
@@ -402,36 +413,60 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findSentMessageWithUuid(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())) {
-                    return message;
-                }
-            }
+            return first(this.messageIndex.withUuid(id));
         }
-        return null;
     }
 
     public Message findMessageWithRemoteId(String id, Jid counterpart) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (counterpart.equals(message.getCounterpart())
-                        && (id.equals(message.getRemoteMsgId()) || id.equals(message.getUuid()))) {
-                    return message;
+            final List<Message> candidates = new ArrayList<>();
+            for (final Message message : Iterables.concat(this.messageIndex.withRemoteMsgId(id), this.messageIndex.withUuid(id))) {
+                if (counterpart.equals(message.getCounterpart())) {
+                    candidates.add(message);
                 }
             }
+            return first(candidates);
         }
-        return null;
     }
 
     public Message findMessageWithServerMsgId(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id != null && id.equals(message.getServerMsgId())) {
-                    return message;
-                }
+            return first(this.messageIndex.withServerMsgId(id));
+        }
+    }
+
+    /**
+     * @return the candidate that comes first in the list of messages. Candidates are expected to
+     * have been taken from the message index. Needs to be called while holding the messages lock.
+     */
+    private Message first(final List<Message> candidates) {
+        return firstOrLast(candidates, true);
+    }
+
+    private Message last(final List<Message> candidates) {
+        return firstOrLast(candidates, false);
+    }
+
+    private Message firstOrLast(final List<Message> candidates, final boolean first) {
+        if (candidates.size() <= 1) {
+            return candidates.isEmpty() ? null : candidates.get(0);
+        }
+        Message result = null;
+        int resultIndex = -1;
+        for (final Message candidate : candidates) {
+            final int index = this.messages.indexOf(candidate);
+            if (index >= 0 && (result == null || (first ? index < resultIndex : index > resultIndex))) {
+                result = candidate;
+                resultIndex = index;
             }
         }
-        return null;
+        return result;
+    }
+
+    void reindex(final Message message) {
+        synchronized (this.messages) {
+            this.messageIndex.update(message);
+        }
     }
 
     public boolean hasMessageWithCounterpart(Jid counterpart) {
@@ -446,13 +481,14 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public void populateWithMessages(final List<Message> messages) {
+        final List<Message> all;
         synchronized (this.messages) {
-            messages.clear();
-            messages.addAll(this.messages);
+            all = new ArrayList<>(this.messages);
         }
-        for (Iterator<Message> iterator = messages.iterator(); iterator.hasNext(); ) {
-            if (iterator.next().wasMergedIntoPrevious()) {
-                iterator.remove();
+        messages.clear();
+        for (final Message message : all) {
+            if (!message.wasMergedIntoPrevious()) {
+                messages.add(message);
             }
         }
     }
@@ -532,7 +568,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                 .result();
     }
 
-    private long getSortableTime() {
+    public long getSortableTime() {
         Draft draft = getDraft();
         long messageTime = getLatestMessage().getTimeSent();
         if (draft == null) {
@@ -578,6 +614,15 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         return unread;
     }
 
+    /**
+     * @return the oldest message currently held in memory or null if no messages are loaded
+     */
+    public Message getOldestLoadedMessage() {
+        synchronized (this.messages) {
+            return this.messages.isEmpty() ? null : this.messages.get(0);
+        }
+    }
+
     public Message getLatestMessage() {
         synchronized (this.messages) {
             if (this.messages.size() == 0) {
@@ -696,6 +741,18 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public void resetMucOptions() {
         this.mucOptions = null;
+        final MucOptions.OnOccupantsChanged listener = this.onOccupantsChangedListener;
+        if (listener != null) {
+            listener.onOccupantsChanged(this, Collections.emptySet());
+        }
+    }
+
+    public MucOptions.OnOccupantsChanged getOnOccupantsChangedListener() {
+        return this.onOccupantsChangedListener;
+    }
+
+    public void setOnOccupantsChangedListener(final MucOptions.OnOccupantsChanged listener) {
+        this.onOccupantsChangedListener = listener;
     }
 
     public void setContactJid(final Jid jid) {
@@ -768,13 +825,30 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findDuplicateMessage(Message message) {
         synchronized (this.messages) {
-            for (int i = this.messages.size() - 1; i >= 0; --i) {
-                if (this.messages.get(i).similar(message)) {
-                    return this.messages.get(i);
+            final String remoteMsgId = message.getRemoteMsgId();
+            if (remoteMsgId == null) {
+                //messages without id are compared by body and time which the index can't help with
+                for (int i = this.messages.size() - 1; i >= 0; --i) {
+                    if (this.messages.get(i).similar(message)) {
+                        return this.messages.get(i);
+                    }
                 }
+                return null;
             }
+            final String serverMsgId = message.getServerMsgId();
+            final List<Message> candidates = new ArrayList<>();
+            for (final Message candidate : Iterables.concat(
+                    this.messageIndex.withServerMsgId(serverMsgId),
+                    this.messageIndex.withEditedServerMsgId(serverMsgId),
+                    this.messageIndex.withRemoteMsgId(remoteMsgId),
+                    this.messageIndex.withUuid(remoteMsgId),
+                    this.messageIndex.withEditedId(remoteMsgId))) {
+                if (candidate.similar(message)) {
+                    candidates.add(candidate);
+                }
+            }
+            return last(candidates);
         }
-        return null;
     }
 
     public boolean hasDuplicateMessage(Message message) {
@@ -803,14 +877,14 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findRtpSession(final String sessionId, final int s) {
         synchronized (this.messages) {
-            for (int i = this.messages.size() - 1; i >= 0; --i) {
-                final Message message = this.messages.get(i);
-                if ((message.getStatus() == s) && (message.getType() == Message.TYPE_RTP_SESSION) && sessionId.equals(message.getRemoteMsgId())) {
-                    return message;
+            final List<Message> candidates = new ArrayList<>();
+            for (final Message message : this.messageIndex.withRemoteMsgId(sessionId)) {
+                if ((message.getStatus() == s) && (message.getType() == Message.TYPE_RTP_SESSION)) {
+                    candidates.add(message);
                 }
             }
+            return last(candidates);
         }
-        return null;
     }
 
     public boolean possibleDuplicate(final String serverMsgId, final String remoteMsgId) {
@@ -818,13 +892,9 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
             return false;
         }
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (serverMsgId.equals(message.getServerMsgId()) || remoteMsgId.equals(message.getRemoteMsgId())) {
-                    return true;
-                }
-            }
+            return !this.messageIndex.withServerMsgId(serverMsgId).isEmpty()
+                    || !this.messageIndex.withRemoteMsgId(remoteMsgId).isEmpty();
         }
-        return false;
     }
 
     public MamReference getLastMessageTransmitted() {
@@ -968,18 +1038,25 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void add(Message message) {
         synchronized (this.messages) {
             this.messages.add(message);
+            this.messageIndex.add(message);
+            linkMessages(this.messages.size() - 2, this.messages.size() - 1);
         }
     }
 
     public void prepend(int offset, Message message) {
         synchronized (this.messages) {
-            this.messages.add(Math.min(offset, this.messages.size()), message);
+            final int index = Math.min(offset, this.messages.size());
+            this.messages.add(index, message);
+            this.messageIndex.add(message);
+            linkMessages(index - 1, index + 1);
         }
     }
 
     public void addAll(int index, List<Message> messages) {
         synchronized (this.messages) {
             this.messages.addAll(index, messages);
+            this.messageIndex.addAll(messages);
+            linkMessages(index - 1, index + messages.size());
         }
         account.getPgpDecryptionService().decrypt(messages);
     }
@@ -987,11 +1064,14 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void expireOldMessages(long timestamp) {
         synchronized (this.messages) {
             for (ListIterator<Message> iterator = this.messages.listIterator(); iterator.hasNext(); ) {
-                if (iterator.next().getTimeSent() < timestamp) {
+                final Message message = iterator.next();
+                if (message.getTimeSent() < timestamp) {
                     iterator.remove();
+                    this.messageIndex.remove(message);
+                    message.untie();
                 }
             }
-            untieMessages();
+            linkMessages(0, this.messages.size() - 1);
         }
     }
 
@@ -1006,12 +1086,25 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                     return 0;
                 }
             });
-            untieMessages();
+            linkMessages(0, this.messages.size() - 1);
+        }
+    }
+
+    /**
+     * Points the messages between first and last (inclusive, clamped to the list) to their
+     * current neighbours so {@link Message#next()} and {@link Message#prev()} do not have to
+     * search the list. Must be called with the list locked after every change to it, for the
+     * changed positions and the ones next to them.
+     */
+    private void linkMessages(final int first, final int last) {
+        final int size = this.messages.size();
+        for (int i = Math.max(0, first); i <= Math.min(size - 1, last); ++i) {
+            this.messages.get(i).tie(i > 0 ? this.messages.get(i - 1) : null, i < size - 1 ? this.messages.get(i + 1) : null);
         }
     }
 
-    private void untieMessages() {
-        for (Message message : this.messages) {
+    private static void untieMessages(final List<Message> messages) {
+        for (Message message : messages) {
             message.untie();
         }
     }
@@ -112,7 +112,9 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     private Message mPreviousMessage = null;
     private String axolotlFingerprint = null;
     private String errorMessage = null;
-    private Set<ReadByMarker> readByMarkers = new CopyOnWriteArraySet<>();
+    private volatile Set<ReadByMarker> readByMarkers = new CopyOnWriteArraySet<>();
+    //read-by markers as stored in the database. only decoded once they are actually needed
+    private String serializedReadByMarkers = null;
 
     private Boolean isGeoUri = null;
     private Boolean isEmojisOnly = null;
@@ -212,7 +214,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public static Message fromCursor(Cursor cursor, Conversation conversation) {
-        return new Message(conversation,
+        final Message message = new Message(conversation,
                 cursor.getString(cursor.getColumnIndex(UUID)),
                 cursor.getString(cursor.getColumnIndex(CONVERSATION)),
                 fromString(cursor.getString(cursor.getColumnIndex(COUNTERPART))),
@@ -231,11 +233,17 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
                 cursor.getString(cursor.getColumnIndex(EDITED)),
                 cursor.getInt(cursor.getColumnIndex(OOB)) > 0,
                 cursor.getString(cursor.getColumnIndex(ERROR_MESSAGE)),
-                ReadByMarker.fromJsonString(cursor.getString(cursor.getColumnIndex(READ_BY_MARKERS))),
+                null,
                 cursor.getInt(cursor.getColumnIndex(MARKABLE)) > 0,
                 cursor.getInt(cursor.getColumnIndex(DELETED)) > 0,
                 cursor.getString(cursor.getColumnIndex(BODY_LANGUAGE))
         );
+        final String readByMarkers = cursor.getString(cursor.getColumnIndex(READ_BY_MARKERS));
+        if (!ReadByMarker.isEmpty(readByMarkers)) {
+            message.serializedReadByMarkers = readByMarkers;
+            message.readByMarkers = null;
+        }
+        return message;
     }
 
     private static Jid fromString(String value) {
@@ -297,7 +305,13 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         }
         values.put(OOB, oob ? 1 : 0);
         values.put(ERROR_MESSAGE, errorMessage);
-        values.put(READ_BY_MARKERS, ReadByMarker.toJson(readByMarkers).toString());
+        synchronized (this) {
+            if (this.readByMarkers == null) {
+                values.put(READ_BY_MARKERS, this.serializedReadByMarkers);
+            } else {
+                values.put(READ_BY_MARKERS, ReadByMarker.toJson(this.readByMarkers).toString());
+            }
+        }
         values.put(MARKABLE, markable ? 1 : 0);
         values.put(DELETED, deleted ? 1 : 0);
         values.put(BODY_LANGUAGE, bodyLanguage);
@@ -426,6 +440,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setRemoteMsgId(String id) {
         this.remoteMsgId = id;
+        reindex();
     }
 
     public String getServerMsgId() {
@@ -434,6 +449,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setServerMsgId(String id) {
         this.serverMsgId = id;
+        reindex();
     }
 
     public boolean isRead() {
@@ -488,6 +504,13 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         final Edit edit = new Edit(edited, serverMsgId);
         if (this.edits.size() < 128 && !this.edits.contains(edit)) {
             this.edits.add(edit);
+            reindex();
+        }
+    }
+
+    private void reindex() {
+        if (this.conversation instanceof Conversation) {
+            ((Conversation) this.conversation).reindex(this);
         }
     }
 
@@ -539,9 +562,10 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
                 return false;
             }
         }
-        if (this.readByMarkers.add(readByMarker)) {
+        final Set<ReadByMarker> readByMarkers = readByMarkers();
+        if (readByMarkers.add(readByMarker)) {
             if (readByMarker.getRealJid() != null && readByMarker.getFullJid() != null) {
-                Iterator<ReadByMarker> iterator = this.readByMarkers.iterator();
+                Iterator<ReadByMarker> iterator = readByMarkers.iterator();
                 while (iterator.hasNext()) {
                     ReadByMarker marker = iterator.next();
                     if (marker.getRealJid() == null && readByMarker.getFullJid().equals(marker.getFullJid())) {
@@ -556,7 +580,21 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public Set<ReadByMarker> getReadByMarkers() {
-        return ImmutableSet.copyOf(this.readByMarkers);
+        return ImmutableSet.copyOf(readByMarkers());
+    }
+
+    private Set<ReadByMarker> readByMarkers() {
+        final Set<ReadByMarker> readByMarkers = this.readByMarkers;
+        if (readByMarkers != null) {
+            return readByMarkers;
+        }
+        synchronized (this) {
+            if (this.readByMarkers == null) {
+                this.readByMarkers = ReadByMarker.fromJsonString(this.serializedReadByMarkers);
+                this.serializedReadByMarkers = null;
+            }
+            return this.readByMarkers;
+        }
     }
 
     boolean similar(Message message) {
@@ -595,16 +633,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public Message next() {
         if (this.conversation instanceof Conversation) {
-            final Conversation conversation = (Conversation) this.conversation;
-            synchronized (conversation.messages) {
-                if (this.mNextMessage == null) {
-                    int index = conversation.messages.indexOf(this);
-                    if (index < 0 || index >= conversation.messages.size() - 1) {
-                        this.mNextMessage = null;
-                    } else {
-                        this.mNextMessage = conversation.messages.get(index + 1);
-                    }
-                }
+            synchronized (((Conversation) this.conversation).messages) {
                 return this.mNextMessage;
             }
         } else {
@@ -614,18 +643,9 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public Message prev() {
         if (this.conversation instanceof Conversation) {
-            final Conversation conversation = (Conversation) this.conversation;
-            synchronized (conversation.messages) {
-                if (this.mPreviousMessage == null) {
-                    int index = conversation.messages.indexOf(this);
-                    if (index <= 0 || index > conversation.messages.size()) {
-                        this.mPreviousMessage = null;
-                    } else {
-                        this.mPreviousMessage = conversation.messages.get(index - 1);
-                    }
-                }
+            synchronized (((Conversation) this.conversation).messages) {
+                return this.mPreviousMessage;
             }
-            return this.mPreviousMessage;
         } else {
             throw new AssertionError("Calling prev should be disabled for stubs");
         }
@@ -789,6 +809,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setUuid(String uuid) {
         this.uuid = uuid;
+        reindex();
     }
 
     public String getEditedId() {
@@ -900,6 +921,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         }
     }
 
+    void tie(final Message previous, final Message next) {
+        this.mPreviousMessage = previous;
+        this.mNextMessage = next;
+    }
+
     public void untie() {
         this.mNextMessage = null;
         this.mPreviousMessage = null;
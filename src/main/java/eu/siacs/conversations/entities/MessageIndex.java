@@ -0,0 +1,134 @@
+package eu.siacs.conversations.entities;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Side index over the messages of a conversation that maps the various ids a message can be
+ * referred to by (uuid, remote message id, server message id and the ids of previous versions of
+ * corrected messages) back to the message. Not thread safe; Conversation guards it with the same
+ * lock as its message list.
+ */
+final class MessageIndex {
+
+    private final ListMultimap<String, Message> byUuid = ArrayListMultimap.create();
+    private final ListMultimap<String, Message> byRemoteMsgId = ArrayListMultimap.create();
+    private final ListMultimap<String, Message> byServerMsgId = ArrayListMultimap.create();
+    private final ListMultimap<String, Message> byEditedId = ArrayListMultimap.create();
+    private final ListMultimap<String, Message> byEditedServerMsgId = ArrayListMultimap.create();
+
+    //the keys a message has been indexed under. needed to unindex messages whose ids have changed
+    private final IdentityHashMap<Message, Keys> indexed = new IdentityHashMap<>();
+
+    void add(final Message message) {
+        if (indexed.containsKey(message)) {
+            return;
+        }
+        final Keys keys = new Keys(message);
+        indexed.put(message, keys);
+        put(byUuid, keys.uuid, message);
+        put(byRemoteMsgId, keys.remoteMsgId, message);
+        put(byServerMsgId, keys.serverMsgId, message);
+        for (final Edit edit : keys.edits) {
+            put(byEditedId, edit.getEditedId(), message);
+            put(byEditedServerMsgId, edit.getServerMsgId(), message);
+        }
+    }
+
+    void addAll(final Collection<Message> messages) {
+        for (final Message message : messages) {
+            add(message);
+        }
+    }
+
+    void remove(final Message message) {
+        final Keys keys = indexed.remove(message);
+        if (keys == null) {
+            return;
+        }
+        remove(byUuid, keys.uuid, message);
+        remove(byRemoteMsgId, keys.remoteMsgId, message);
+        remove(byServerMsgId, keys.serverMsgId, message);
+        for (final Edit edit : keys.edits) {
+            remove(byEditedId, edit.getEditedId(), message);
+            remove(byEditedServerMsgId, edit.getServerMsgId(), message);
+        }
+    }
+
+    void removeAll(final Collection<Message> messages) {
+        for (final Message message : messages) {
+            remove(message);
+        }
+    }
+
+    void update(final Message message) {
+        if (indexed.containsKey(message)) {
+            remove(message);
+            add(message);
+        }
+    }
+
+    void clear() {
+        indexed.clear();
+        byUuid.clear();
+        byRemoteMsgId.clear();
+        byServerMsgId.clear();
+        byEditedId.clear();
+        byEditedServerMsgId.clear();
+    }
+
+    List<Message> withUuid(final String uuid) {
+        return get(byUuid, uuid);
+    }
+
+    List<Message> withRemoteMsgId(final String remoteMsgId) {
+        return get(byRemoteMsgId, remoteMsgId);
+    }
+
+    List<Message> withServerMsgId(final String serverMsgId) {
+        return get(byServerMsgId, serverMsgId);
+    }
+
+    List<Message> withEditedId(final String editedId) {
+        return get(byEditedId, editedId);
+    }
+
+    List<Message> withEditedServerMsgId(final String serverMsgId) {
+        return get(byEditedServerMsgId, serverMsgId);
+    }
+
+    private static List<Message> get(final ListMultimap<String, Message> map, final String key) {
+        return key == null ? new ArrayList<>() : map.get(key);
+    }
+
+    private static void put(final ListMultimap<String, Message> map, final String key, final Message message) {
+        if (key != null) {
+            map.put(key, message);
+        }
+    }
+
+    private static void remove(final ListMultimap<String, Message> map, final String key, final Message message) {
+        if (key != null) {
+            map.remove(key, message);
+        }
+    }
+
+    private static final class Keys {
+        private final String uuid;
+        private final String remoteMsgId;
+        private final String serverMsgId;
+        private final List<Edit> edits;
+
+        private Keys(final Message message) {
+            this.uuid = message.getUuid();
+            this.remoteMsgId = message.getRemoteMsgId();
+            this.serverMsgId = message.getServerMsgId();
+            this.edits = new ArrayList<>(message.edits);
+        }
+    }
+}
@@ -34,7 +34,8 @@ public class MucOptions {
     public static final String STATUS_CODE_AFFILIATION_CHANGE = "321";
     public static final String STATUS_CODE_LOST_MEMBERSHIP = "322";
     public static final String STATUS_CODE_SHUTDOWN = "332";
-    private final Set<User> users = new HashSet<>();
+    private final OccupantStore users = new OccupantStore();
+    private int notifiedRealJidsVersion = 0;
     private final Conversation conversation;
     public OnRenameListener onRenameListener = null;
     private boolean mAutoPushConfiguration = true;
@@ -77,6 +78,7 @@ public class MucOptions {
                 }
             }
         }
+        notifyOccupantsChanged();
     }
 
     public void flagNoAutoPushConfiguration() {
@@ -92,11 +94,7 @@ public class MucOptions {
     }
 
     public void resetChatState() {
-        synchronized (users) {
-            for (User user : users) {
-                user.chatState = Config.DEFAULT_CHAT_STATE;
-            }
-        }
+        users.resetChatStates();
     }
 
     public boolean isTookProposedNickFromBookmark() {
@@ -221,13 +219,7 @@ public class MucOptions {
         if (user != null) {
             synchronized (users) {
                 users.remove(user);
-                boolean realJidInMuc = false;
-                for (User u : users) {
-                    if (user.realJid != null && user.realJid.equals(u.realJid)) {
-                        realJidInMuc = true;
-                        break;
-                    }
-                }
+                boolean realJidInMuc = user.realJid != null && users.containsRealJid(user.realJid);
                 boolean self = user.realJid != null && user.realJid.equals(account.getJid().asBareJid());
                 if (membersOnly()
                         && nonanonymous()
@@ -241,12 +233,21 @@ public class MucOptions {
                     users.add(user);
                 }
             }
+            notifyOccupantsChanged();
         }
         return user;
     }
 
     //returns true if real jid was new;
     public boolean updateUser(User user) {
+        try {
+            return addOrReplaceUser(user);
+        } finally {
+            notifyOccupantsChanged();
+        }
+    }
+
+    private boolean addOrReplaceUser(User user) {
         User old;
         boolean realJidFound = false;
         if (user.fullJid == null && user.realJid != null) {
@@ -287,32 +288,42 @@ public class MucOptions {
         return false;
     }
 
+    public Set<Jid> getRealJids() {
+        return users.getRealJids();
+    }
+
+    /**
+     * Tells the listener about the real jids in the room, but only if they have changed since it
+     * was last told; presences that do not add or remove a real jid are common in large rooms.
+     */
+    private void notifyOccupantsChanged() {
+        final OnOccupantsChanged listener = conversation.getOnOccupantsChangedListener();
+        if (listener != null) {
+            final Set<Jid> realJids;
+            synchronized (users) {
+                final int version = users.getRealJidsVersion();
+                if (version == notifiedRealJidsVersion) {
+                    return;
+                }
+                notifiedRealJidsVersion = version;
+                realJids = users.getRealJids();
+            }
+            listener.onOccupantsChanged(conversation, realJids);
+        }
+    }
+
     public User findUserByFullJid(Jid jid) {
         if (jid == null) {
             return null;
         }
-        synchronized (users) {
-            for (User user : users) {
-                if (jid.equals(user.getFullJid())) {
-                    return user;
-                }
-            }
-        }
-        return null;
+        return users.findByFullJid(jid);
     }
 
     public User findUserByRealJid(Jid jid) {
         if (jid == null) {
             return null;
         }
-        synchronized (users) {
-            for (User user : users) {
-                if (jid.equals(user.realJid)) {
-                    return user;
-                }
-            }
-        }
-        return null;
+        return users.findByRealJid(jid);
     }
 
     public User findOrCreateUserByRealJid(Jid jid, Jid fullJid) {
@@ -353,44 +364,45 @@ public class MucOptions {
     }
 
     public ArrayList<User> getUsers(boolean includeOffline) {
-        synchronized (users) {
-            ArrayList<User> users = new ArrayList<>();
-            for (User user : this.users) {
-                if (!user.isDomain() && (includeOffline || user.getRole().ranks(Role.PARTICIPANT))) {
-                    users.add(user);
-                }
+        ArrayList<User> users = new ArrayList<>();
+        for (User user : this.users.snapshot()) {
+            if (!user.isDomain() && (includeOffline || user.getRole().ranks(Role.PARTICIPANT))) {
+                users.add(user);
             }
-            return users;
         }
+        return users;
     }
 
-    public ArrayList<User> getUsersWithChatState(ChatState state, int max) {
-        synchronized (users) {
-            ArrayList<User> list = new ArrayList<>();
-            for (User user : users) {
-                if (user.chatState == state) {
-                    list.add(user);
-                    if (list.size() >= max) {
-                        break;
-                    }
-                }
+    /**
+     * @return the same users as {@link #getUsers()} in their natural order. The occupants are only
+     * sorted again after they have changed.
+     */
+    public List<User> getSortedUsers() {
+        final List<User> sorted = users.sortedSnapshot();
+        final ArrayList<User> users = new ArrayList<>(sorted.size());
+        for (final User user : sorted) {
+            //whether a user is a domain depends on its role, which can change without the occupants changing
+            if (!user.isDomain()) {
+                users.add(user);
             }
-            return list;
         }
+        return users;
+    }
+
+    public ArrayList<User> getUsersWithChatState(ChatState state, int max) {
+        return new ArrayList<>(users.getWithChatState(state, max));
     }
 
     public List<User> getUsers(int max) {
         ArrayList<User> subset = new ArrayList<>();
         HashSet<Jid> jids = new HashSet<>();
         jids.add(account.getJid().asBareJid());
-        synchronized (users) {
-            for (User user : users) {
-                if (user.getRealJid() == null || (user.getRealJid().getLocal() != null && jids.add(user.getRealJid()))) {
-                    subset.add(user);
-                }
-                if (subset.size() >= max) {
-                    break;
-                }
+        for (User user : users.snapshot()) {
+            if (user.getRealJid() == null || (user.getRealJid().getLocal() != null && jids.add(user.getRealJid()))) {
+                subset.add(user);
+            }
+            if (subset.size() >= max) {
+                break;
             }
         }
         return subset;
@@ -412,9 +424,7 @@ public class MucOptions {
     }
 
     public int getUserCount() {
-        synchronized (users) {
-            return users.size();
-        }
+        return users.size();
     }
 
     public String getProposedNick() {
@@ -477,9 +487,8 @@ public class MucOptions {
     }
 
     public void setOffline() {
-        synchronized (users) {
-            this.users.clear();
-        }
+        this.users.clear();
+        notifyOccupantsChanged();
         this.error = Error.NO_RESPONSE;
         this.isOnline = false;
     }
@@ -541,7 +550,7 @@ public class MucOptions {
 
     public long[] getPgpKeyIds() {
         List<Long> ids = new ArrayList<>();
-        for (User user : this.users) {
+        for (User user : this.users.snapshot()) {
             if (user.getPgpKeyId() != 0) {
                 ids.add(user.getPgpKeyId());
             }
@@ -555,22 +564,18 @@ public class MucOptions {
     }
 
     public boolean pgpKeysInUse() {
-        synchronized (users) {
-            for (User user : users) {
-                if (user.getPgpKeyId() != 0) {
-                    return true;
-                }
+        for (User user : users.snapshot()) {
+            if (user.getPgpKeyId() != 0) {
+                return true;
             }
         }
         return false;
     }
 
     public boolean everybodyHasKeys() {
-        synchronized (users) {
-            for (User user : users) {
-                if (user.getPgpKeyId() == 0) {
-                    return false;
-                }
+        for (User user : users.snapshot()) {
+            if (user.getPgpKeyId() == 0) {
+                return false;
             }
         }
         return true;
@@ -617,11 +622,9 @@ public class MucOptions {
 
     public List<Jid> getMembers(final boolean includeDomains) {
         ArrayList<Jid> members = new ArrayList<>();
-        synchronized (users) {
-            for (User user : users) {
-                if (user.affiliation.ranks(Affiliation.MEMBER) && user.realJid != null && !user.realJid.asBareJid().equals(conversation.account.getJid().asBareJid()) && (!user.isDomain() || includeDomains)) {
-                    members.add(user.realJid);
-                }
+        for (User user : users.getMembers()) {
+            if (user.realJid != null && !user.realJid.asBareJid().equals(conversation.account.getJid().asBareJid()) && (!user.isDomain() || includeDomains)) {
+                members.add(user.realJid);
             }
         }
         return members;
@@ -738,6 +741,10 @@ public class MucOptions {
 
     }
 
+    public interface OnOccupantsChanged {
+        void onOccupantsChanged(Conversation conversation, Set<Jid> realJids);
+    }
+
     public static class User implements Comparable<User>, AvatarService.Avatarable {
         private Role role = Role.NONE;
         private Affiliation affiliation = Affiliation.NONE;
@@ -897,9 +904,18 @@ public class MucOptions {
                 return false;
             }
             this.chatState = chatState;
+            options.users.onChatStateChanged(this);
             return true;
         }
 
+        public ChatState getChatState() {
+            return this.chatState;
+        }
+
+        void resetChatState() {
+            this.chatState = Config.DEFAULT_CHAT_STATE;
+        }
+
         @Override
         public int getAvatarBackgroundColor() {
             final String seed = realJid != null ? realJid.asBareJid().toString() : null;
@@ -0,0 +1,249 @@
+package eu.siacs.conversations.entities;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.MucOptions.Affiliation;
+import eu.siacs.conversations.entities.MucOptions.User;
+import eu.siacs.conversations.xmpp.Jid;
+import eu.siacs.conversations.xmpp.chatstate.ChatState;
+
+/**
+ * The occupants of a MUC, indexed by full jid (and therefore nick), real jid, membership and chat
+ * state so the lookups done for every occupant presence do not have to scan the whole room.
+ * <p>
+ * All methods are synchronized on the store; compound operations can synchronize on it as well.
+ * Snapshots are immutable and shared until the occupants change. The sorted snapshot is also
+ * replaced when a name or affiliation it was sorted by has changed.
+ */
+final class OccupantStore {
+
+    //maps every user to itself so the stored instance can be found from an equal one
+    private final LinkedHashMap<User, User> users = new LinkedHashMap<>();
+    private final HashMap<Jid, User> byFullJid = new HashMap<>();
+    private final HashMap<Jid, List<User>> byRealJid = new HashMap<>();
+    private final LinkedHashSet<User> members = new LinkedHashSet<>();
+    private final LinkedHashSet<User> withChatState = new LinkedHashSet<>();
+
+    private int version = 0;
+    private int realJidsVersion = 0;
+    private List<User> snapshot = Collections.emptyList();
+    private int snapshotVersion = 0;
+    private SortedSnapshot sortedSnapshot = new SortedSnapshot(Collections.<User>emptyList());
+    private int sortedSnapshotVersion = 0;
+
+    public synchronized boolean add(final User user) {
+        if (users.containsKey(user)) {
+            return false;
+        }
+        users.put(user, user);
+        final Jid fullJid = user.getFullJid();
+        if (fullJid != null) {
+            byFullJid.put(fullJid, user);
+        }
+        final Jid realJid = user.getRealJid();
+        if (realJid != null) {
+            List<User> list = byRealJid.get(realJid);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                byRealJid.put(realJid, list);
+                ++realJidsVersion;
+            }
+            list.add(user);
+        }
+        if (user.getAffiliation().ranks(Affiliation.MEMBER)) {
+            members.add(user);
+        }
+        if (user.getChatState() != Config.DEFAULT_CHAT_STATE) {
+            withChatState.add(user);
+        }
+        ++version;
+        return true;
+    }
+
+    public synchronized boolean remove(final User user) {
+        final User stored = users.remove(user);
+        if (stored == null) {
+            return false;
+        }
+        final Jid fullJid = stored.getFullJid();
+        if (fullJid != null && byFullJid.get(fullJid) == stored) {
+            byFullJid.remove(fullJid);
+        }
+        final Jid realJid = stored.getRealJid();
+        if (realJid != null) {
+            final List<User> list = byRealJid.get(realJid);
+            if (list != null && list.remove(stored) && list.isEmpty()) {
+                byRealJid.remove(realJid);
+                ++realJidsVersion;
+            }
+        }
+        members.remove(stored);
+        withChatState.remove(stored);
+        ++version;
+        return true;
+    }
+
+    public synchronized void clear() {
+        if (users.isEmpty()) {
+            return;
+        }
+        users.clear();
+        byFullJid.clear();
+        if (!byRealJid.isEmpty()) {
+            byRealJid.clear();
+            ++realJidsVersion;
+        }
+        members.clear();
+        withChatState.clear();
+        ++version;
+    }
+
+    public synchronized int size() {
+        return users.size();
+    }
+
+    public synchronized User findByFullJid(final Jid jid) {
+        return byFullJid.get(jid);
+    }
+
+    public synchronized User findByRealJid(final Jid jid) {
+        final List<User> list = byRealJid.get(jid);
+        return list == null ? null : list.get(0);
+    }
+
+    public synchronized boolean containsRealJid(final Jid jid) {
+        return byRealJid.containsKey(jid);
+    }
+
+    /**
+     * @return a counter that changes whenever the set returned by {@link #getRealJids()} does
+     */
+    public synchronized int getRealJidsVersion() {
+        return realJidsVersion;
+    }
+
+    public synchronized Set<Jid> getRealJids() {
+        return new HashSet<>(byRealJid.keySet());
+    }
+
+    /**
+     * @return the occupants in the order they have been added
+     */
+    public synchronized List<User> snapshot() {
+        if (snapshotVersion != version) {
+            snapshot = Collections.unmodifiableList(new ArrayList<>(users.keySet()));
+            snapshotVersion = version;
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the occupants sorted by their natural order. The list is sorted again only after
+     * the occupants have changed or the names (for example after a roster update) or affiliations
+     * they were sorted by are different.
+     */
+    public List<User> sortedSnapshot() {
+        final SortedSnapshot cached;
+        final List<User> users;
+        final int version;
+        synchronized (this) {
+            cached = sortedSnapshotVersion == this.version ? sortedSnapshot : null;
+            users = snapshot();
+            version = this.version;
+        }
+        //comparing and sorting looks up contacts and is therefore done without holding the lock
+        if (cached != null && cached.isCurrent()) {
+            return cached.sorted;
+        }
+        final SortedSnapshot sorted = new SortedSnapshot(users);
+        synchronized (this) {
+            if (version == this.version) {
+                sortedSnapshot = sorted;
+                sortedSnapshotVersion = version;
+            }
+        }
+        return sorted.sorted;
+    }
+
+    public synchronized List<User> getMembers() {
+        return new ArrayList<>(members);
+    }
+
+    public synchronized List<User> getWithChatState(final ChatState state, final int max) {
+        final ArrayList<User> list = new ArrayList<>();
+        for (final User user : state == Config.DEFAULT_CHAT_STATE ? users.keySet() : withChatState) {
+            if (user.getChatState() == state) {
+                list.add(user);
+                if (list.size() >= max) {
+                    break;
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Updates the chat state index after the chat state of the user has changed. Users that are
+     * not (or no longer) in the store are ignored.
+     */
+    public synchronized void onChatStateChanged(final User user) {
+        if (users.get(user) != user) {
+            return;
+        }
+        if (user.getChatState() == Config.DEFAULT_CHAT_STATE) {
+            withChatState.remove(user);
+        } else {
+            withChatState.add(user);
+        }
+    }
+
+    public synchronized void resetChatStates() {
+        for (final User user : withChatState) {
+            user.resetChatState();
+        }
+        withChatState.clear();
+    }
+
+    /**
+     * The sorted occupants along with the names and affiliations they have been sorted by. Those
+     * are captured before sorting so a change while sorting is noticed the next time.
+     */
+    private static final class SortedSnapshot {
+        private final List<User> users;
+        private final String[] names;
+        private final Affiliation[] affiliations;
+        private final List<User> sorted;
+
+        private SortedSnapshot(final List<User> users) {
+            this.users = users;
+            this.names = new String[users.size()];
+            this.affiliations = new Affiliation[users.size()];
+            for (int i = 0; i < users.size(); ++i) {
+                final User user = users.get(i);
+                names[i] = user.getComparableName();
+                affiliations[i] = user.getAffiliation();
+            }
+            final List<User> sorted = new ArrayList<>(users);
+            Collections.sort(sorted);
+            this.sorted = Collections.unmodifiableList(sorted);
+        }
+
+        private boolean isCurrent() {
+            for (int i = 0; i < users.size(); ++i) {
+                final User user = users.get(i);
+                if (affiliations[i] != user.getAffiliation() || !names[i].equals(user.getComparableName())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
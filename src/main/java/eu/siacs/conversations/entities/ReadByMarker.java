@@ -122,6 +122,10 @@ public class ReadByMarker {
 		return marker;
 	}
 
+	static boolean isEmpty(final String json) {
+		return json == null || json.isEmpty() || "[]".equals(json);
+	}
+
 	public static Set<ReadByMarker> fromJsonString(String json) {
 		try {
 			return fromJson(new JSONArray(json));
@@ -1,5 +1,7 @@
 package eu.siacs.conversations.entities;
 
+import android.content.ContentValues;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -12,6 +14,8 @@ import eu.siacs.conversations.xmpp.Jid;
 public class Roster {
 	private final Account account;
 	private final HashMap<Jid, Contact> contacts = new HashMap<>();
+	//the values of every stored contact as they have last been written to or read from the database
+	private final HashMap<Jid, ContentValues> persisted = new HashMap<>();
 	private String version = null;
 
 	public Roster(Account account) {
@@ -74,6 +78,9 @@ public class Roster {
 		}
 	}
 
+	/**
+	 * Adds a contact that has been read from the database.
+	 */
 	public void initContact(final Contact contact) {
 		if (contact == null) {
 			return;
@@ -82,6 +89,57 @@ public class Roster {
 		synchronized (this.contacts) {
 			contacts.put(contact.getJid().asBareJid(), contact);
 		}
+		final ContentValues values = contact.getContentValues();
+		synchronized (this.persisted) {
+			persisted.put(contact.getJid().asBareJid(), values);
+		}
+	}
+
+	/**
+	 * Compares every contact with what has last been persisted. Changes are found by comparing
+	 * values rather than by flagging them in the setters, so contacts that are modified in place
+	 * (keys, groups) can not be missed.
+	 *
+	 * @return the contacts that need to be written because they are new or have changed and the
+	 * contacts that need to be deleted because they should no longer be stored
+	 */
+	public Changes getChanges() {
+		final Changes changes = new Changes();
+		for (final Contact contact : getContacts()) {
+			final Jid jid = contact.getJid().asBareJid();
+			final ContentValues stored;
+			synchronized (this.persisted) {
+				stored = persisted.get(jid);
+			}
+			if (contact.shouldBeStored()) {
+				final ContentValues values = contact.getContentValues();
+				if (!values.equals(stored)) {
+					changes.written.put(jid, values);
+				}
+			} else if (stored != null) {
+				changes.deleted.add(jid);
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Records that the changes have been persisted. Contacts that changed again in the meantime
+	 * will show up in the next {@link #getChanges()}.
+	 */
+	public void markPersisted(final Changes changes) {
+		synchronized (this.persisted) {
+			persisted.putAll(changes.written);
+			for (final Jid jid : changes.deleted) {
+				persisted.remove(jid);
+			}
+		}
+	}
+
+	public int getPersistedCount() {
+		synchronized (this.persisted) {
+			return persisted.size();
+		}
 	}
 
 	public void setVersion(String version) {
@@ -95,4 +153,13 @@ public class Roster {
 	public Account getAccount() {
 		return this.account;
 	}
+
+	public static class Changes {
+		public final HashMap<Jid, ContentValues> written = new HashMap<>();
+		public final List<Jid> deleted = new ArrayList<>();
+
+		public boolean isEmpty() {
+			return written.isEmpty() && deleted.isEmpty();
+		}
+	}
 }
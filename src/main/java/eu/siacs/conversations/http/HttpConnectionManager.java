@@ -11,9 +11,8 @@ import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.HostnameVerifier;
@@ -24,17 +23,25 @@ import eu.siacs.conversations.Config;
 import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.services.AbstractConnectionManager;
+import eu.siacs.conversations.services.MemorizingTrustManager;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.utils.TLSSocketFactory;
+import okhttp3.ConnectionPool;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 
 public class HttpConnectionManager extends AbstractConnectionManager {
 
     private final List<HttpDownloadConnection> downloadConnections = new ArrayList<>();
     private final List<HttpUploadConnection> uploadConnections = new ArrayList<>();
 
-    public static final Executor EXECUTOR = Executors.newFixedThreadPool(4);
+    static final TransferScheduler SCHEDULER = new TransferScheduler(Config.MAX_HTTP_TRANSFERS, Config.MAX_HTTP_TRANSFERS_PER_HOST);
+
+    private OkHttpClient baseHttpClient;
+    //clients derived from the base client, indexed by proxy and trust mode (see getHttpClient())
+    private final OkHttpClient[] httpClients = new OkHttpClient[4];
+    private MemorizingTrustManager httpClientsTrustManager;
 
     public HttpConnectionManager(XmppConnectionService service) {
         super(service);
@@ -92,18 +99,47 @@ public class HttpConnectionManager extends AbstractConnectionManager {
         }
     }
 
+    /**
+     * @return a client for the url. Clients share one connection pool and dispatcher, so
+     * connections (and with HTTP/2 the streams multiplexed over them) as well as TLS sessions are
+     * reused across transfers. Connections are only shared between clients with the same proxy
+     * and trust mode.
+     */
     OkHttpClient buildHttpClient(final HttpUrl url, final Account account, boolean interactive) {
         final String slotHostname = url.host();
         final boolean onionSlot = slotHostname.endsWith(".onion");
-        final OkHttpClient.Builder builder = new OkHttpClient.Builder();
-        //builder.addInterceptor(new HttpLoggingInterceptor().setLevel(HttpLoggingInterceptor.Level.HEADERS));
-        builder.writeTimeout(30, TimeUnit.SECONDS);
-        builder.readTimeout(30, TimeUnit.SECONDS);
+        final boolean proxy = mXmppConnectionService.useTorToConnect() || account.isOnion() || onionSlot;
+        return getHttpClient(proxy, interactive);
+    }
+
+    private synchronized OkHttpClient getHttpClient(final boolean proxy, final boolean interactive) {
+        final MemorizingTrustManager trustManager = mXmppConnectionService.getMemorizingTrustManager();
+        if (trustManager != httpClientsTrustManager) {
+            Arrays.fill(httpClients, null);
+            httpClientsTrustManager = trustManager;
+        }
+        final int index = (proxy ? 2 : 0) + (interactive ? 1 : 0);
+        final OkHttpClient cached = httpClients[index];
+        if (cached != null) {
+            return cached;
+        }
+        if (baseHttpClient == null) {
+            final OkHttpClient.Builder builder = new OkHttpClient.Builder();
+            //builder.addInterceptor(new HttpLoggingInterceptor().setLevel(HttpLoggingInterceptor.Level.HEADERS));
+            builder.writeTimeout(30, TimeUnit.SECONDS);
+            builder.readTimeout(30, TimeUnit.SECONDS);
+            builder.connectionPool(new ConnectionPool(Config.MAX_HTTP_TRANSFERS, 5, TimeUnit.MINUTES));
+            builder.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+            baseHttpClient = builder.build();
+        }
+        final OkHttpClient.Builder builder = baseHttpClient.newBuilder();
         setupTrustManager(builder, interactive);
-        if (mXmppConnectionService.useTorToConnect() || account.isOnion() || onionSlot) {
-            builder.proxy(HttpConnectionManager.getProxy()).build();
+        if (proxy) {
+            builder.proxy(HttpConnectionManager.getProxy());
         }
-        return builder.build();
+        final OkHttpClient client = builder.build();
+        httpClients[index] = client;
+        return client;
     }
 
     private void setupTrustManager(final OkHttpClient.Builder builder, final boolean interactive) {
@@ -5,10 +5,9 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 
 import com.google.common.base.Strings;
-import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Longs;
 
-import java.io.FileInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -34,10 +33,10 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
-import static eu.siacs.conversations.http.HttpConnectionManager.EXECUTOR;
-
 public class HttpDownloadConnection implements Transferable {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final Message message;
     private final boolean mUseTor;
     private final HttpConnectionManager mHttpConnectionManager;
@@ -125,20 +124,22 @@ public class HttpDownloadConnection implements Transferable {
     private void setupFile() {
         final String reference = mUrl.fragment();
         if (reference != null && AesGcmURL.IV_KEY.matcher(reference).matches()) {
-            this.file = new DownloadableFile(mXmppConnectionService.getCacheDir().getAbsolutePath() + "/" + message.getUuid());
+            this.file = mXmppConnectionService.getFileBackend().getFile(message, true);
             this.file.setKeyAndIv(CryptoHelper.hexToBytes(reference));
-            Log.d(Config.LOGTAG, "create temporary OMEMO encrypted file: " + this.file.getAbsolutePath() + "(" + message.getMimeType() + ")");
+            Log.d(Config.LOGTAG, "decrypting OMEMO encrypted file while downloading to " + this.file.getAbsolutePath() + "(" + message.getMimeType() + ")");
         } else {
             this.file = mXmppConnectionService.getFileBackend().getFile(message, false);
         }
     }
 
     private void download(final boolean interactive) {
-        EXECUTOR.execute(new FileDownloader(interactive));
+        final long expected = file.getExpectedSize();
+        final long size = expected > 0 ? expected : TransferScheduler.UNKNOWN_SIZE;
+        HttpConnectionManager.SCHEDULER.schedule(mUrl.host(), size, new FileDownloader(interactive));
     }
 
     private void checkFileSize(final boolean interactive) {
-        EXECUTOR.execute(new FileSizeChecker(interactive));
+        HttpConnectionManager.SCHEDULER.schedule(mUrl.host(), 0, new FileSizeChecker(interactive));
     }
 
     @Override
@@ -156,33 +157,6 @@ public class HttpDownloadConnection implements Transferable {
         mHttpConnectionManager.updateConversationUi(true);
     }
 
-    private void decryptFile() throws IOException {
-        final DownloadableFile outputFile = mXmppConnectionService.getFileBackend().getFile(message, true);
-
-        if (outputFile.getParentFile().mkdirs()) {
-            Log.d(Config.LOGTAG, "created parent directories for " + outputFile.getAbsolutePath());
-        }
-
-        if (!outputFile.createNewFile()) {
-            Log.w(Config.LOGTAG, "unable to create output file " + outputFile.getAbsolutePath());
-        }
-
-        final InputStream is = new FileInputStream(this.file);
-
-        outputFile.setKey(this.file.getKey());
-        outputFile.setIv(this.file.getIv());
-        final OutputStream os = AbstractConnectionManager.createOutputStream(outputFile, false, true);
-
-        ByteStreams.copy(is, os);
-
-        FileBackend.close(is);
-        FileBackend.close(os);
-
-        if (!file.delete()) {
-            Log.w(Config.LOGTAG, "unable to delete temporary OMEMO encrypted file " + file.getAbsolutePath());
-        }
-    }
-
     private void finish() {
         message.setTransferable(null);
         mHttpConnectionManager.finishConnection(this);
@@ -200,12 +174,6 @@ public class HttpDownloadConnection implements Transferable {
         });
     }
 
-    private void decryptIfNeeded() throws IOException {
-        if (file.getKey() != null && file.getIv() != null) {
-            decryptFile();
-        }
-    }
-
     private void changeStatus(int status) {
         this.mStatus = status;
         mHttpConnectionManager.updateConversationUi(true);
@@ -356,7 +324,6 @@ public class HttpDownloadConnection implements Transferable {
             try {
                 changeStatus(STATUS_DOWNLOADING);
                 download();
-                decryptIfNeeded();
                 updateImageBounds();
                 finish();
             } catch (final SSLHandshakeException e) {
@@ -400,13 +367,13 @@ public class HttpDownloadConnection implements Transferable {
                 final String contentRange = response.header("Content-Range");
                 final boolean serverResumed = tryResume && contentRange != null && contentRange.startsWith("bytes " + resumeSize + "-");
                 final InputStream inputStream = response.body().byteStream();
-                final OutputStream outputStream;
+                final OutputStream fileOutputStream;
                 long transmitted = 0;
                 if (tryResume && serverResumed) {
                     Log.d(Config.LOGTAG, "server resumed");
-                    transmitted = file.getSize();
+                    transmitted = resumeSize;
                     updateProgress(Math.round(((double) transmitted / expected) * 100));
-                    outputStream = AbstractConnectionManager.createOutputStream(file, true, false);
+                    fileOutputStream = AbstractConnectionManager.createOutputStream(file, true, true);
                 } else {
                     final String contentLength = response.header("Content-Length");
                     final long size = Strings.isNullOrEmpty(contentLength) ? 0 : Longs.tryParse(contentLength);
@@ -417,23 +384,44 @@ public class HttpDownloadConnection implements Transferable {
                     if (!file.exists() && !file.createNewFile()) {
                         throw new FileWriterException();
                     }
-                    outputStream = AbstractConnectionManager.createOutputStream(file, false, false);
+                    fileOutputStream = AbstractConnectionManager.createOutputStream(file, false, true);
+                }
+                if (fileOutputStream == null) {
+                    throw new FileWriterException();
                 }
-                int count;
-                byte[] buffer = new byte[4096];
-                while ((count = inputStream.read(buffer)) != -1) {
-                    transmitted += count;
-                    try {
-                        outputStream.write(buffer, 0, count);
-                    } catch (IOException e) {
+                final OutputStream outputStream = new BufferedOutputStream(fileOutputStream, BUFFER_SIZE);
+                try {
+                    int count;
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    while ((count = inputStream.read(buffer)) != -1) {
+                        transmitted += count;
+                        try {
+                            outputStream.write(buffer, 0, count);
+                        } catch (IOException e) {
+                            throw new FileWriterException();
+                        }
+                        updateProgress(Math.round(((double) transmitted / expected) * 100));
+                        if (canceled) {
+                            throw new CancellationException();
+                        }
+                    }
+                } catch (final Exception e) {
+                    //keeps what has been written so far for a later resume
+                    FileBackend.close(outputStream);
+                    throw e;
+                }
+                try {
+                    outputStream.close();
+                } catch (final IOException e) {
+                    if (file.getKey() == null) {
                         throw new FileWriterException();
                     }
-                    updateProgress(Math.round(((double) transmitted / expected) * 100));
-                    if (canceled) {
-                        throw new CancellationException();
+                    //the authentication tag did not match
+                    if (!file.delete()) {
+                        Log.w(Config.LOGTAG, "unable to delete file that failed to decrypt " + file.getAbsolutePath());
                     }
+                    throw e;
                 }
-                outputStream.flush();
             } else {
                 throw new IOException(String.format(Locale.ENGLISH, "HTTP Status code was %d", code));
             }
@@ -2,8 +2,6 @@ package eu.siacs.conversations.http;
 
 import android.util.Log;
 
-import org.jetbrains.annotations.NotNull;
-
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
@@ -18,7 +16,6 @@ import eu.siacs.conversations.services.AbstractConnectionManager;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.utils.CryptoHelper;
 import okhttp3.Call;
-import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -148,36 +145,35 @@ public class HttpUploadConnection implements Transferable, AbstractConnectionMan
                 .headers(slot.headers)
                 .build();
         Log.d(Config.LOGTAG, "uploading file to " + slot.put);
-        this.mostRecentCall = client.newCall(request);
-        this.mostRecentCall.enqueue(new Callback() {
-            @Override
-            public void onFailure(@NotNull Call call, IOException e) {
+        final Call call = client.newCall(request);
+        this.mostRecentCall = call;
+        HttpConnectionManager.SCHEDULER.schedule(slot.put.host(), file.getExpectedSize(), () -> {
+            final int code;
+            try (final Response response = call.execute()) {
+                code = response.code();
+            } catch (final IOException e) {
                 Log.d(Config.LOGTAG, "http upload failed", e);
                 fail(e.getMessage());
+                return;
             }
-
-            @Override
-            public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException {
-                final int code = response.code();
-                if (code == 200 || code == 201) {
-                    Log.d(Config.LOGTAG, "finished uploading file");
-                    final String get;
-                    if (key != null) {
-                        get = AesGcmURL.toAesGcmUrl(slot.get.newBuilder().fragment(CryptoHelper.bytesToHex(key)).build());
-                    } else {
-                        get = slot.get.toString();
-                    }
-                    mXmppConnectionService.getFileBackend().updateFileParams(message, get);
-                    mXmppConnectionService.getFileBackend().updateMediaScanner(file);
-                    finish();
-                    if (!message.isPrivateMessage()) {
-                        message.setCounterpart(message.getConversation().getJid().asBareJid());
-                    }
-                    mXmppConnectionService.resendMessage(message, delayed);
+            if (code == 200 || code == 201) {
+                Log.d(Config.LOGTAG, "finished uploading file");
+                final String get;
+                if (key != null) {
+                    get = AesGcmURL.toAesGcmUrl(slot.get.newBuilder().fragment(CryptoHelper.bytesToHex(key)).build());
                 } else {
-                    Log.d(Config.LOGTAG, "http upload failed because response code was " + code);
-                    fail("http upload failed because response code was " + code);
+                    get = slot.get.toString();
+                }
+                mXmppConnectionService.getFileBackend().updateFileParams(message, get);
+                mXmppConnectionService.getFileBackend().updateMediaScanner(file);
+                finish();
+                if (!message.isPrivateMessage()) {
+                    message.setCounterpart(message.getConversation().getJid().asBareJid());
                 }
+                mXmppConnectionService.resendMessage(message, delayed);
+            } else {
+                Log.d(Config.LOGTAG, "http upload failed because response code was " + code);
+                fail("http upload failed because response code was " + code);
             }
         });
     }
@@ -0,0 +1,125 @@
+package eu.siacs.conversations.http;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Runs HTTP transfers with a limit on the number of transfers in total and per host. Waiting
+ * transfers are started smallest first so thumbnails, small images and size checks do not queue
+ * up behind large files; transfers of the same size start in the order they have been scheduled.
+ * <p>
+ * Transfers to a host that is at its limit are skipped (but keep their place) until one of the
+ * transfers to that host has finished.
+ */
+final class TransferScheduler {
+
+    public static final long UNKNOWN_SIZE = Long.MAX_VALUE;
+
+    private final Executor executor = Executors.newCachedThreadPool();
+    private final PriorityQueue<Transfer> pending = new PriorityQueue<>();
+    private final HashMap<String, Integer> runningPerHost = new HashMap<>();
+    private final int maxTransfers;
+    private final int maxTransfersPerHost;
+    private int running = 0;
+    private long sequence = 0;
+
+    TransferScheduler(final int maxTransfers, final int maxTransfersPerHost) {
+        this.maxTransfers = maxTransfers;
+        this.maxTransfersPerHost = maxTransfersPerHost;
+    }
+
+    /**
+     * @param size the number of bytes that will be transferred or {@link #UNKNOWN_SIZE}. Size
+     *             checks and other requests without a body should pass 0.
+     */
+    public void schedule(final String host, final long size, final Runnable runnable) {
+        synchronized (this) {
+            pending.add(new Transfer(host, size, sequence++, runnable));
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        final List<Transfer> ready = new ArrayList<>();
+        synchronized (this) {
+            final List<Transfer> skipped = new ArrayList<>();
+            while (running < maxTransfers && !pending.isEmpty()) {
+                final Transfer transfer = pending.poll();
+                final int runningForHost = getRunning(transfer.host);
+                if (runningForHost >= maxTransfersPerHost) {
+                    skipped.add(transfer);
+                    continue;
+                }
+                runningPerHost.put(transfer.host, runningForHost + 1);
+                ++running;
+                ready.add(transfer);
+            }
+            pending.addAll(skipped);
+        }
+        for (final Transfer transfer : ready) {
+            executor.execute(() -> run(transfer));
+        }
+    }
+
+    private void run(final Transfer transfer) {
+        try {
+            transfer.runnable.run();
+        } catch (final RuntimeException e) {
+            Log.d(Config.LOGTAG, "transfer to " + transfer.host + " failed", e);
+        } finally {
+            synchronized (this) {
+                --running;
+                final int runningForHost = getRunning(transfer.host) - 1;
+                if (runningForHost <= 0) {
+                    runningPerHost.remove(transfer.host);
+                } else {
+                    runningPerHost.put(transfer.host, runningForHost);
+                }
+            }
+            dispatch();
+        }
+    }
+
+    private int getRunning(final String host) {
+        final Integer count = runningPerHost.get(host);
+        return count == null ? 0 : count;
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    private static class Transfer implements Comparable<Transfer> {
+        private final String host;
+        private final long size;
+        private final long sequence;
+        private final Runnable runnable;
+
+        private Transfer(final String host, final long size, final long sequence, final Runnable runnable) {
+            this.host = host;
+            this.size = size;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(final Transfer other) {
+            if (size != other.size) {
+                return size < other.size ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
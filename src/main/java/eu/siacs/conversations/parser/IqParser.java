@@ -134,11 +134,11 @@ public class IqParser extends AbstractParser implements OnIqPacketReceived {
                         axolotlService.clearErrorsInFetchStatusMap(contact.getJid());
                     }
                 }
-                mXmppConnectionService.getAvatarService().clear(contact);
+                mXmppConnectionService.getPresenceCoalescer().clearAvatar(contact);
             }
         }
-        mXmppConnectionService.updateConversationUi();
-        mXmppConnectionService.updateRosterUi();
+        mXmppConnectionService.getPresenceCoalescer().updateConversationUi();
+        mXmppConnectionService.getPresenceCoalescer().updateRosterUi();
         mXmppConnectionService.getShortcutService().refresh();
         mXmppConnectionService.syncRoster(account);
     }
@@ -544,7 +544,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                 }
                 if (message == null) {
                     if (query == null && extractChatState(mXmppConnectionService.find(account, counterpart.asBareJid()), isTypeGroupChat, packet)) {
-                        mXmppConnectionService.updateConversationUi();
+                        mXmppConnectionService.updateConversationUi(conversation);
                     }
                     if (query != null && status == Message.STATUS_SEND && remoteMsgId != null) {
                         Message previouslySent = conversation.findSentMessageWithUuid(remoteMsgId);
@@ -725,7 +725,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
 
             if (query == null) {
                 extractChatState(mXmppConnectionService.find(account, counterpart.asBareJid()), isTypeGroupChat, packet);
-                mXmppConnectionService.updateConversationUi();
+                mXmppConnectionService.updateConversationUi(conversation);
             }
 
             if (mXmppConnectionService.confirmMessages()
@@ -787,7 +787,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                         if (subject != null && conversation.getMucOptions().setSubject(subject.content)) {
                             mXmppConnectionService.updateConversation(conversation);
                         }
-                        mXmppConnectionService.updateConversationUi();
+                        mXmppConnectionService.updateConversationUi(conversation);
                         return;
                     }
                 }
@@ -812,8 +812,8 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                         if (!user.realJidMatchesAccount()) {
                             boolean isNew = conversation.getMucOptions().updateUser(user);
                             mXmppConnectionService.getAvatarService().clear(conversation);
-                            mXmppConnectionService.updateMucRosterUi();
-                            mXmppConnectionService.updateConversationUi();
+                            mXmppConnectionService.updateMucRosterUi(conversation);
+                            mXmppConnectionService.updateConversationUi(conversation);
                             Contact contact = user.getContact();
                             if (!user.getAffiliation().ranks(MucOptions.Affiliation.MEMBER)) {
                                 Jid jid = user.getRealJid();
@@ -1089,7 +1089,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                     mXmppConnectionService.databaseBackend.updateConversation(conversation);
                     final Contact contact = inviter != null ? account.getRoster().getContactFromContactList(inviter) : null;
                     mXmppConnectionService.joinMuc(conversation, contact != null && contact.mutualPresenceSubscription());
-                    mXmppConnectionService.updateConversationUi();
+                    mXmppConnectionService.updateConversationUi(conversation);
                 }
                 return true;
             }
@@ -46,12 +46,12 @@ public class PresenceParser extends AbstractParser implements
 			processConferencePresence(packet, conversation);
 			final List<MucOptions.User> tileUserAfter = mucOptions.getUsers(5);
 			if (!tileUserAfter.equals(tileUserBefore)) {
-				mXmppConnectionService.getAvatarService().clear(mucOptions);
+				mXmppConnectionService.getPresenceCoalescer().clearAvatar(mucOptions);
 			}
 			if (before != mucOptions.online() || (mucOptions.online() && count != mucOptions.getUserCount())) {
-				mXmppConnectionService.updateConversationUi();
+				mXmppConnectionService.getPresenceCoalescer().updateConversationUi(conversation);
 			} else if (mucOptions.online()) {
-				mXmppConnectionService.updateMucRosterUi();
+				mXmppConnectionService.getPresenceCoalescer().updateMucRosterUi(conversation);
 			}
 		}
 	}
@@ -73,7 +73,7 @@ public class PresenceParser extends AbstractParser implements
 						MucOptions.User user = parseItem(conversation, item, from);
 						if (codes.contains(MucOptions.STATUS_CODE_SELF_PRESENCE) || (codes.contains(MucOptions.STATUS_CODE_ROOM_CREATED) && jid.equals(InvalidJid.getNullForInvalid(item.getAttributeAsJid("jid"))))) {
 							if (mucOptions.setOnline()) {
-								mXmppConnectionService.getAvatarService().clear(mucOptions);
+								mXmppConnectionService.getPresenceCoalescer().clearAvatar(mucOptions);
 							}
 							if (mucOptions.setSelf(user)) {
 								Log.d(Config.LOGTAG,"role or affiliation changed");
@@ -117,14 +117,14 @@ public class PresenceParser extends AbstractParser implements
 							avatar.owner = from;
 							if (mXmppConnectionService.getFileBackend().isAvatarCached(avatar)) {
 								if (user.setAvatar(avatar)) {
-									mXmppConnectionService.getAvatarService().clear(user);
+									mXmppConnectionService.getPresenceCoalescer().clearAvatar(user);
 								}
 								if (user.getRealJid() != null) {
 									final Contact c = conversation.getAccount().getRoster().getContact(user.getRealJid());
 									c.setAvatar(avatar);
 									mXmppConnectionService.syncRoster(conversation.getAccount());
-									mXmppConnectionService.getAvatarService().clear(c);
-									mXmppConnectionService.updateRosterUi();
+									mXmppConnectionService.getPresenceCoalescer().clearAvatar(c);
+									mXmppConnectionService.getPresenceCoalescer().updateRosterUi();
 								}
 							} else if (mXmppConnectionService.isDataSaverDisabled()) {
 								mXmppConnectionService.fetchAvatar(mucOptions.getAccount(), avatar);
@@ -165,7 +165,7 @@ public class PresenceParser extends AbstractParser implements
 					}
 					MucOptions.User user = mucOptions.deleteUser(from);
 					if (user != null) {
-						mXmppConnectionService.getAvatarService().clear(user);
+						mXmppConnectionService.getPresenceCoalescer().clearAvatar(user);
 					}
 				}
 			} else if (type.equals("error")) {
@@ -266,15 +266,15 @@ public class PresenceParser extends AbstractParser implements
 					if (avatar.owner.equals(account.getJid().asBareJid())) {
 						account.setAvatar(avatar.getFilename());
 						mXmppConnectionService.databaseBackend.updateAccount(account);
-						mXmppConnectionService.getAvatarService().clear(account);
-						mXmppConnectionService.updateConversationUi();
-						mXmppConnectionService.updateAccountUi();
+						mXmppConnectionService.getPresenceCoalescer().clearAvatar(account);
+						mXmppConnectionService.getPresenceCoalescer().updateConversationUi();
+						mXmppConnectionService.getPresenceCoalescer().updateAccountUi();
 					} else {
 						contact.setAvatar(avatar);
 						mXmppConnectionService.syncRoster(account);
-						mXmppConnectionService.getAvatarService().clear(contact);
-						mXmppConnectionService.updateConversationUi();
-						mXmppConnectionService.updateRosterUi();
+						mXmppConnectionService.getPresenceCoalescer().clearAvatar(contact);
+						mXmppConnectionService.getPresenceCoalescer().updateConversationUi();
+						mXmppConnectionService.getPresenceCoalescer().updateRosterUi();
 					}
 				} else if (mXmppConnectionService.isDataSaverDisabled()){
 					mXmppConnectionService.fetchAvatar(account, avatar);
@@ -341,7 +341,7 @@ public class PresenceParser extends AbstractParser implements
 		} else if (type.equals("subscribe")) {
 			if (contact.setPresenceName(packet.findChildContent("nick", Namespace.NICK))) {
 				mXmppConnectionService.syncRoster(account);
-				mXmppConnectionService.getAvatarService().clear(contact);
+				mXmppConnectionService.getPresenceCoalescer().clearAvatar(contact);
 			}
 			if (contact.getOption(Contact.Options.PREEMPTIVE_GRANT)) {
 				mXmppConnectionService.sendPresencePacket(account,
@@ -363,7 +363,7 @@ public class PresenceParser extends AbstractParser implements
 				}
 			}
 		}
-		mXmppConnectionService.updateRosterUi();
+		mXmppConnectionService.getPresenceCoalescer().updateRosterUi(contact);
 	}
 
 	@Override
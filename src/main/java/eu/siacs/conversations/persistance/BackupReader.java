@@ -0,0 +1,274 @@
+package eu.siacs.conversations.persistance;
+
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import javax.crypto.Cipher;
+
+/**
+ * Reads the body of a version 2 backup file as written by {@link BackupWriter}.
+ * <p>
+ * Once the chunks have been opened and decompressed the body is a sequence of records:
+ * <pre>
+ * table: byte 1, string name, int column count, string column name...
+ * row:   byte 2, one value per column of the preceding table
+ * value: byte type (0 null, 1 integer, 2 float, 3 string, 4 blob) followed by
+ *        long (integer), double (float), int length + UTF-8 bytes (string) or int length + bytes (blob)
+ * </pre>
+ * Rows are not materialized; {@link #bind(SQLiteStatement)} binds the values of the current row
+ * straight to a prepared insert statement.
+ */
+public class BackupReader implements Closeable {
+
+    private static final int MAX_SEALED_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private final DataInputStream records;
+
+    private String table;
+    private String[] columns;
+    private boolean rowPending = false;
+
+    public BackupReader(final InputStream inputStream, final byte[] key, final byte[] iv) {
+        this.records = new DataInputStream(new ChunkInputStream(new DataInputStream(inputStream), key, iv));
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return {@link BackupWriter#RECORD_TABLE}, {@link BackupWriter#RECORD_ROW} or -1 at the end
+     * of the backup
+     */
+    public int next() throws IOException {
+        if (rowPending) {
+            skipRow();
+        }
+        final int type = records.read();
+        switch (type) {
+            case -1:
+                return -1;
+            case BackupWriter.RECORD_TABLE:
+                this.table = readString();
+                final int count = records.readInt();
+                this.columns = new String[count];
+                for (int i = 0; i < count; ++i) {
+                    this.columns[i] = readString();
+                }
+                return type;
+            case BackupWriter.RECORD_ROW:
+                if (columns == null) {
+                    throw new IOException("row without preceding table definition");
+                }
+                rowPending = true;
+                return type;
+            default:
+                throw new IOException("unknown record type " + type);
+        }
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * Binds the values of the current row to the statement. Parameters are numbered in the order
+     * of {@link #getColumns()}.
+     */
+    public void bind(final SQLiteStatement statement) throws IOException {
+        if (!rowPending) {
+            throw new IllegalStateException("not positioned on a row");
+        }
+        rowPending = false;
+        for (int i = 1; i <= columns.length; ++i) {
+            final int type = records.readByte();
+            switch (type) {
+                case BackupWriter.TYPE_NULL:
+                    statement.bindNull(i);
+                    break;
+                case BackupWriter.TYPE_INTEGER:
+                    statement.bindLong(i, records.readLong());
+                    break;
+                case BackupWriter.TYPE_FLOAT:
+                    statement.bindDouble(i, records.readDouble());
+                    break;
+                case BackupWriter.TYPE_STRING:
+                    statement.bindString(i, readString());
+                    break;
+                case BackupWriter.TYPE_BLOB:
+                    statement.bindBlob(i, readBytes());
+                    break;
+                default:
+                    throw new IOException("unknown value type " + type);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        records.close();
+    }
+
+    private void skipRow() throws IOException {
+        rowPending = false;
+        for (int i = 0; i < columns.length; ++i) {
+            final int type = records.readByte();
+            switch (type) {
+                case BackupWriter.TYPE_NULL:
+                    break;
+                case BackupWriter.TYPE_INTEGER:
+                case BackupWriter.TYPE_FLOAT:
+                    records.skipBytes(8);
+                    break;
+                case BackupWriter.TYPE_STRING:
+                case BackupWriter.TYPE_BLOB:
+                    readBytes();
+                    break;
+                default:
+                    throw new IOException("unknown value type " + type);
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    private byte[] readBytes() throws IOException {
+        final int length = records.readInt();
+        if (length < 0) {
+            throw new IOException("invalid length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        records.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Opens, verifies and inflates the chunks one after another and presents their content as one
+     * continuous stream.
+     */
+    private static class ChunkInputStream extends InputStream {
+
+        private final DataInputStream inputStream;
+        private final byte[] key;
+        private final byte[] iv;
+        private final Inflater inflater = new Inflater();
+
+        private byte[] buffer = new byte[0];
+        private int position = 0;
+        private int limit = 0;
+        private int index = 0;
+        private boolean end = false;
+
+        private ChunkInputStream(final DataInputStream inputStream, final byte[] key, final byte[] iv) {
+            this.inputStream = inputStream;
+            this.key = key;
+            this.iv = iv;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            final int count = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        private boolean fill() throws IOException {
+            while (position == limit) {
+                if (end) {
+                    return false;
+                }
+                final byte type;
+                final int length;
+                try {
+                    type = inputStream.readByte();
+                    length = inputStream.readInt();
+                } catch (final EOFException e) {
+                    throw new EOFException("backup file is truncated");
+                }
+                //chunks are usually about CHUNK_SIZE but a single large row can make them bigger
+                if (length < 0 || length > MAX_SEALED_CHUNK_SIZE) {
+                    throw new IOException("invalid chunk length " + length);
+                }
+                final byte[] sealed = new byte[length];
+                inputStream.readFully(sealed);
+                final byte[] compressed;
+                try {
+                    final Cipher cipher = BackupWriter.cipher(Cipher.DECRYPT_MODE, key, iv, index, type);
+                    compressed = cipher.doFinal(sealed);
+                } catch (final GeneralSecurityException e) {
+                    throw new IOException("unable to open chunk " + index, e);
+                }
+                ++index;
+                if (type == BackupWriter.CHUNK_END) {
+                    end = true;
+                } else if (type != BackupWriter.CHUNK_DATA) {
+                    throw new IOException("unknown chunk type " + type);
+                }
+                inflate(compressed);
+            }
+            return true;
+        }
+
+        private void inflate(final byte[] compressed) throws IOException {
+            inflater.reset();
+            inflater.setInput(compressed);
+            if (buffer.length < BackupWriter.CHUNK_SIZE * 2) {
+                buffer = new byte[BackupWriter.CHUNK_SIZE * 2];
+            }
+            int length = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (length == buffer.length) {
+                        final byte[] larger = new byte[buffer.length * 2];
+                        System.arraycopy(buffer, 0, larger, 0, length);
+                        buffer = larger;
+                    }
+                    final int inflated = inflater.inflate(buffer, length, buffer.length - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new ZipException("chunk is incomplete");
+                    }
+                    length += inflated;
+                }
+            } catch (final DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+            position = 0;
+            limit = length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package eu.siacs.conversations.persistance;
+
+import android.database.Cursor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import eu.siacs.conversations.services.ExportBackupService;
+import eu.siacs.conversations.utils.Compatibility;
+
+/**
+ * Writes the body of a version 2 backup file.
+ * <p>
+ * Tables and rows are encoded as typed records (see {@link BackupReader} for the layout). The
+ * resulting byte stream is cut into chunks that are compressed and sealed with AES-GCM on a pool
+ * of worker threads while the caller keeps reading from the database. Chunks are written in order
+ * as
+ * <pre>
+ * byte type (data or end), int length, byte[length] sealed chunk
+ * </pre>
+ * Every chunk uses its own nonce (derived from the IV in the file header and the chunk index) and
+ * authenticates its index and type so chunks can not be reordered, dropped or truncated unnoticed.
+ */
+public class BackupWriter implements Closeable {
+
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    public static final byte RECORD_TABLE = 1;
+    public static final byte RECORD_ROW = 2;
+
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_INTEGER = 1;
+    static final byte TYPE_FLOAT = 2;
+    static final byte TYPE_STRING = 3;
+    static final byte TYPE_BLOB = 4;
+
+    static final byte CHUNK_DATA = 0;
+    static final byte CHUNK_END = 1;
+
+    private final DataOutputStream outputStream;
+    private final byte[] key;
+    private final byte[] iv;
+    private final ExecutorService executor;
+    private final int maxPendingChunks;
+    private final ArrayDeque<Future<SealedChunk>> pendingChunks = new ArrayDeque<>();
+
+    private ChunkBuffer chunk = new ChunkBuffer();
+    private DataOutputStream records = new DataOutputStream(chunk);
+    private int chunkIndex = 0;
+    private long rows = 0;
+    private int columnCount = 0;
+
+    public BackupWriter(final OutputStream outputStream, final byte[] key, final byte[] iv) {
+        this.outputStream = new DataOutputStream(outputStream);
+        this.key = key;
+        this.iv = iv;
+        final int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.maxPendingChunks = threads * 2;
+    }
+
+    public void writeTable(final String table, final String[] columns) throws IOException {
+        records.writeByte(RECORD_TABLE);
+        writeString(table);
+        records.writeInt(columns.length);
+        for (final String column : columns) {
+            writeString(column);
+        }
+        this.columnCount = columns.length;
+        flushChunkIfFull();
+    }
+
+    /**
+     * Writes one row made up of the given cursor columns. The columns have to match the ones
+     * passed to the preceding {@link #writeTable(String, String[])}.
+     */
+    public void writeRow(final Cursor cursor, final int[] columns) throws IOException {
+        if (columns.length != columnCount) {
+            throw new IllegalArgumentException("row does not match table definition");
+        }
+        records.writeByte(RECORD_ROW);
+        for (final int column : columns) {
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    records.writeByte(TYPE_NULL);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    records.writeByte(TYPE_INTEGER);
+                    records.writeLong(cursor.getLong(column));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    records.writeByte(TYPE_FLOAT);
+                    records.writeDouble(cursor.getDouble(column));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    records.writeByte(TYPE_BLOB);
+                    final byte[] blob = cursor.getBlob(column);
+                    records.writeInt(blob.length);
+                    records.write(blob);
+                    break;
+                default:
+                    records.writeByte(TYPE_STRING);
+                    writeString(cursor.getString(column));
+                    break;
+            }
+        }
+        ++rows;
+        flushChunkIfFull();
+    }
+
+    /**
+     * Writes one row from values that have been read (and possibly altered) by the caller. Values
+     * may be null, Long, Integer, Double, String or byte[].
+     */
+    public void writeRow(final Object[] values) throws IOException {
+        if (values.length != columnCount) {
+            throw new IllegalArgumentException("row does not match table definition");
+        }
+        records.writeByte(RECORD_ROW);
+        for (final Object value : values) {
+            if (value == null) {
+                records.writeByte(TYPE_NULL);
+            } else if (value instanceof Long || value instanceof Integer) {
+                records.writeByte(TYPE_INTEGER);
+                records.writeLong(((Number) value).longValue());
+            } else if (value instanceof Double) {
+                records.writeByte(TYPE_FLOAT);
+                records.writeDouble((Double) value);
+            } else if (value instanceof byte[]) {
+                final byte[] blob = (byte[]) value;
+                records.writeByte(TYPE_BLOB);
+                records.writeInt(blob.length);
+                records.write(blob);
+            } else {
+                records.writeByte(TYPE_STRING);
+                writeString(value.toString());
+            }
+        }
+        ++rows;
+        flushChunkIfFull();
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    private void writeString(final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        records.writeInt(bytes.length);
+        records.write(bytes);
+    }
+
+    private void flushChunkIfFull() throws IOException {
+        if (chunk.size() >= CHUNK_SIZE) {
+            submit(CHUNK_DATA);
+        }
+    }
+
+    private void submit(final byte type) throws IOException {
+        records.flush();
+        final ChunkBuffer plain = this.chunk;
+        final int index = this.chunkIndex++;
+        pendingChunks.add(executor.submit(() -> seal(key, iv, index, type, plain.compress())));
+        this.chunk = new ChunkBuffer();
+        this.records = new DataOutputStream(this.chunk);
+        while (pendingChunks.size() > maxPendingChunks) {
+            writePendingChunk();
+        }
+    }
+
+    private void writePendingChunk() throws IOException {
+        final Future<SealedChunk> future = pendingChunks.poll();
+        final SealedChunk sealed;
+        try {
+            sealed = future.get();
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            throw new IOException("unable to seal backup chunk", e.getCause());
+        }
+        outputStream.writeByte(sealed.type);
+        outputStream.writeInt(sealed.data.length);
+        outputStream.write(sealed.data);
+    }
+
+    /**
+     * Writes the remaining data followed by the end marker. Does not close the underlying stream.
+     */
+    public void finish() throws IOException {
+        try {
+            if (chunk.size() > 0) {
+                submit(CHUNK_DATA);
+            }
+            submit(CHUNK_END);
+            while (!pendingChunks.isEmpty()) {
+                writePendingChunk();
+            }
+            outputStream.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        outputStream.close();
+    }
+
+    static byte[] nonce(final byte[] iv, final int index) {
+        final byte[] nonce = iv.clone();
+        final int offset = nonce.length - 4;
+        nonce[offset] ^= (byte) (index >>> 24);
+        nonce[offset + 1] ^= (byte) (index >>> 16);
+        nonce[offset + 2] ^= (byte) (index >>> 8);
+        nonce[offset + 3] ^= (byte) index;
+        return nonce;
+    }
+
+    static byte[] associatedData(final int index, final byte type) {
+        return new byte[]{(byte) (index >>> 24), (byte) (index >>> 16), (byte) (index >>> 8), (byte) index, type};
+    }
+
+    static Cipher cipher(final int mode, final byte[] key, final byte[] iv, final int index, final byte type) throws GeneralSecurityException {
+        final Cipher cipher = Compatibility.twentyEight() ? Cipher.getInstance(ExportBackupService.CIPHERMODE) : Cipher.getInstance(ExportBackupService.CIPHERMODE, ExportBackupService.PROVIDER);
+        cipher.init(mode, new SecretKeySpec(key, ExportBackupService.KEYTYPE), new GCMParameterSpec(128, nonce(iv, index)));
+        cipher.updateAAD(associatedData(index, type));
+        return cipher;
+    }
+
+    private static SealedChunk seal(final byte[] key, final byte[] iv, final int index, final byte type, final ChunkBuffer compressed) throws GeneralSecurityException {
+        final Cipher cipher = cipher(Cipher.ENCRYPT_MODE, key, iv, index, type);
+        return new SealedChunk(type, cipher.doFinal(compressed.buffer(), 0, compressed.size()));
+    }
+
+    private static class SealedChunk {
+        private final byte type;
+        private final byte[] data;
+
+        private SealedChunk(final byte type, final byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    private static class ChunkBuffer extends ByteArrayOutputStream {
+
+        private ChunkBuffer() {
+            super(CHUNK_SIZE + 8192);
+        }
+
+        private ChunkBuffer(final int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        ChunkBuffer compress() {
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            try {
+                deflater.setInput(buf, 0, count);
+                deflater.finish();
+                final ChunkBuffer compressed = new ChunkBuffer(Math.max(64, count / 2));
+                final byte[] block = new byte[8192];
+                while (!deflater.finished()) {
+                    final int length = deflater.deflate(block);
+                    compressed.write(block, 0, length);
+                }
+                return compressed;
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+}
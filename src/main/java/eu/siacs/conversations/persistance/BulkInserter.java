@@ -0,0 +1,147 @@
+package eu.siacs.conversations.persistance;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Inserts a large number of rows with compiled statements that are reused for every row of the
+ * same table and column set. Rows are committed in transactions of a fixed size so the journal
+ * does not grow with the amount of data.
+ * <p>
+ * While the inserter is open new messages are not added to the full text index one by one;
+ * {@link #close()} indexes all messages inserted in the meantime in a single statement. Rows of
+ * the transaction that is open when {@link #rollback()} is called are discarded, rows of
+ * transactions that have already been committed are not.
+ */
+public class BulkInserter implements Closeable {
+
+    private final SQLiteDatabase db;
+    private final int rowsPerTransaction;
+    private final HashMap<String, SQLiteStatement> statements = new HashMap<>();
+    private final long messageRowId;
+    private final long start = SystemClock.elapsedRealtime();
+
+    private boolean inTransaction;
+    private int rowsInTransaction = 0;
+    private long rows = 0;
+
+    public BulkInserter(final SQLiteDatabase db, final int rowsPerTransaction) {
+        this.db = db;
+        this.rowsPerTransaction = rowsPerTransaction;
+        db.beginTransaction();
+        try {
+            this.messageRowId = DatabaseBackend.suspendMessageIndexing(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.beginTransaction();
+        this.inTransaction = true;
+    }
+
+    /**
+     * @return a statement inserting into the given columns. Parameters are numbered in the order
+     * of the columns.
+     */
+    public SQLiteStatement getStatement(final String table, final String[] columns, final boolean ignoreConflicts) throws IOException {
+        final StringBuilder builder = new StringBuilder("INSERT ");
+        if (ignoreConflicts) {
+            builder.append("OR IGNORE ");
+        }
+        builder.append("INTO ").append(checkIdentifier(table)).append('(');
+        for (int i = 0; i < columns.length; ++i) {
+            if (i != 0) {
+                builder.append(',');
+            }
+            builder.append(checkIdentifier(columns[i]));
+        }
+        builder.append(") VALUES(");
+        for (int i = 0; i < columns.length; ++i) {
+            builder.append(i == 0 ? "?" : ",?");
+        }
+        builder.append(')');
+        final String sql = builder.toString();
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Executes a statement obtained from {@link #getStatement(String, String[], boolean)} after
+     * its parameters have been bound and commits the current transaction once it is full.
+     */
+    public void insert(final SQLiteStatement statement) {
+        if (!inTransaction) {
+            throw new IllegalStateException("inserter has already been committed or rolled back");
+        }
+        statement.executeInsert();
+        ++rows;
+        if (++rowsInTransaction >= rowsPerTransaction) {
+            db.setTransactionSuccessful();
+            db.endTransaction();
+            db.beginTransaction();
+            rowsInTransaction = 0;
+        }
+    }
+
+    public void commit() {
+        if (inTransaction) {
+            inTransaction = false;
+            db.setTransactionSuccessful();
+            db.endTransaction();
+        }
+    }
+
+    public void rollback() {
+        if (inTransaction) {
+            inTransaction = false;
+            db.endTransaction();
+        }
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getRowsPerSecond() {
+        final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        return rows * 1000 / elapsed;
+    }
+
+    @Override
+    public void close() {
+        rollback();
+        for (final SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        db.beginTransaction();
+        try {
+            DatabaseBackend.resumeMessageIndexing(db, messageRowId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static String checkIdentifier(final String identifier) throws IOException {
+        if (identifier.isEmpty()) {
+            throw new IOException("empty identifier");
+        }
+        for (int i = 0; i < identifier.length(); ++i) {
+            final char c = identifier.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_')) {
+                throw new IOException("invalid identifier " + identifier);
+            }
+        }
+        return identifier;
+    }
+}
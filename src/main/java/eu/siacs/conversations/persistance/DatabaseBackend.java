@@ -6,6 +6,8 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
 import android.os.Environment;
 import android.os.SystemClock;
 import android.util.Base64;
@@ -29,6 +31,7 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -55,6 +58,7 @@ import eu.siacs.conversations.utils.CursorUtils;
 import eu.siacs.conversations.utils.FtsUtils;
 import eu.siacs.conversations.utils.MimeUtils;
 import eu.siacs.conversations.utils.Resolver;
+import eu.siacs.conversations.utils.ResolverCache;
 import eu.siacs.conversations.xmpp.InvalidJid;
 import eu.siacs.conversations.xmpp.Jid;
 import eu.siacs.conversations.xmpp.mam.MamReference;
@@ -62,7 +66,7 @@ import eu.siacs.conversations.xmpp.mam.MamReference;
 public class DatabaseBackend extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "history";
-    private static final int DATABASE_VERSION = 48;
+    private static final int DATABASE_VERSION = 50;
     private static DatabaseBackend instance = null;
     private static final String CREATE_CONTATCS_STATEMENT = "create table "
             + Contact.TABLENAME + "(" + Contact.ACCOUNT + " TEXT, "
@@ -164,8 +168,22 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + "UNIQUE(" + Resolver.Result.DOMAIN + ") ON CONFLICT REPLACE"
             + ");";
 
+    private static final String CREATE_RESOLVER_CACHE_TABLE = "create table " + ResolverCache.TABLENAME + "("
+            + Resolver.Result.DOMAIN + " TEXT,"
+            + Resolver.Result.HOSTNAME + " TEXT,"
+            + Resolver.Result.IP + " BLOB,"
+            + Resolver.Result.PRIORITY + " NUMBER,"
+            + Resolver.Result.DIRECT_TLS + " NUMBER,"
+            + Resolver.Result.AUTHENTICATED + " NUMBER,"
+            + Resolver.Result.PORT + " NUMBER,"
+            + ResolverCache.EXPIRES + " NUMBER"
+            + ");";
+
+    private static final String CREATE_RESOLVER_CACHE_INDEX = "create INDEX resolver_cache_domain_index ON " + ResolverCache.TABLENAME + "(" + Resolver.Result.DOMAIN + ")";
+
     private static final String CREATE_MESSAGE_TIME_INDEX = "create INDEX message_time_index ON " + Message.TABLENAME + "(" + Message.TIME_SENT + ")";
     private static final String CREATE_MESSAGE_CONVERSATION_INDEX = "create INDEX message_conversation_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + ")";
+    private static final String CREATE_MESSAGE_CONVERSATION_TIME_INDEX = "create INDEX message_conversation_time_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.TIME_SENT + ")";
     private static final String CREATE_MESSAGE_DELETED_INDEX = "create index message_deleted_index ON " + Message.TABLENAME + "(" + Message.DELETED + ")";
     private static final String CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX = "create INDEX message_file_path_index ON " + Message.TABLENAME + "(" + Message.RELATIVE_FILE_PATH + ")";
     private static final String CREATE_MESSAGE_TYPE_INDEX = "create INDEX message_type_index ON " + Message.TABLENAME + "(" + Message.TYPE + ")";
@@ -199,6 +217,14 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.rawQuery("PRAGMA secure_delete=ON", null).close();
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            restoreMessageIndexing(db);
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL("create table " + Account.TABLENAME + "(" + Account.UUID + " TEXT PRIMARY KEY,"
@@ -247,7 +273,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
                 + Conversation.TABLENAME + "(" + Conversation.UUID
                 + ") ON DELETE CASCADE);");
         db.execSQL(CREATE_MESSAGE_TIME_INDEX);
-        db.execSQL(CREATE_MESSAGE_CONVERSATION_INDEX);
+        db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
         db.execSQL(CREATE_MESSAGE_DELETED_INDEX);
         db.execSQL(CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX);
         db.execSQL(CREATE_MESSAGE_TYPE_INDEX);
@@ -259,6 +285,8 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.execSQL(CREATE_IDENTITIES_STATEMENT);
         db.execSQL(CREATE_PRESENCE_TEMPLATES_STATEMENT);
         db.execSQL(CREATE_RESOLVER_RESULTS_TABLE);
+        db.execSQL(CREATE_RESOLVER_CACHE_TABLE);
+        db.execSQL(CREATE_RESOLVER_CACHE_INDEX);
         db.execSQL(CREATE_MESSAGE_INDEX_TABLE);
         db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
         db.execSQL(CREATE_MESSAGE_UPDATE_TRIGGER);
@@ -562,6 +590,15 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         if (oldVersion < 48 && newVersion >= 48) {
             db.execSQL("ALTER TABLE " + Contact.TABLENAME + " ADD COLUMN " + Contact.RTP_CAPABILITY + " TEXT");
         }
+        if (oldVersion < 49 && newVersion >= 49) {
+            //the new index starts with the conversation and thus makes the old one redundant
+            db.execSQL("DROP INDEX IF EXISTS message_conversation_index");
+            db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
+        }
+        if (oldVersion < 50 && newVersion >= 50) {
+            db.execSQL(CREATE_RESOLVER_CACHE_TABLE);
+            db.execSQL(CREATE_RESOLVER_CACHE_INDEX);
+        }
     }
 
     private void canonicalizeJids(SQLiteDatabase db) {
@@ -712,6 +749,59 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return result;
     }
 
+    public void writeResolverCacheEntry(final String domain, final ResolverCache.Entry entry) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(ResolverCache.TABLENAME, Resolver.Result.DOMAIN + "=?", new String[]{domain});
+            for (final Resolver.Result result : entry.getResults()) {
+                final ContentValues contentValues = result.toContentValues();
+                contentValues.put(Resolver.Result.DOMAIN, domain);
+                contentValues.put(ResolverCache.EXPIRES, entry.getExpires());
+                db.insert(ResolverCache.TABLENAME, null, contentValues);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void deleteResolverCacheEntry(final String domain) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.delete(ResolverCache.TABLENAME, Resolver.Result.DOMAIN + "=?", new String[]{domain});
+    }
+
+    /**
+     * @return all cached resolver results that are still usable. Older ones are deleted.
+     */
+    public HashMap<String, ResolverCache.Entry> readResolverCache() {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        final long oldest = System.currentTimeMillis() - Config.DNS_STALE_TIME * 1000L;
+        db.delete(ResolverCache.TABLENAME, ResolverCache.EXPIRES + "<?", new String[]{String.valueOf(oldest)});
+        final HashMap<String, List<Resolver.Result>> results = new HashMap<>();
+        final HashMap<String, Long> expires = new HashMap<>();
+        try (final Cursor cursor = db.query(ResolverCache.TABLENAME, null, null, null, null, null, "rowid")) {
+            while (cursor.moveToNext()) {
+                final String domain = cursor.getString(cursor.getColumnIndex(Resolver.Result.DOMAIN));
+                List<Resolver.Result> list = results.get(domain);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    results.put(domain, list);
+                    expires.put(domain, cursor.getLong(cursor.getColumnIndex(ResolverCache.EXPIRES)));
+                }
+                list.add(Resolver.Result.fromCursor(cursor));
+            }
+        } catch (final Exception e) {
+            Log.d(Config.LOGTAG, "unable to read resolver cache " + e.getMessage());
+            return new HashMap<>();
+        }
+        final HashMap<String, ResolverCache.Entry> entries = new HashMap<>();
+        for (final Map.Entry<String, List<Resolver.Result>> entry : results.entrySet()) {
+            entries.put(entry.getKey(), new ResolverCache.Entry(entry.getValue(), expires.get(entry.getKey())));
+        }
+        return entries;
+    }
+
     public void insertPresenceTemplate(PresenceTemplate template) {
         SQLiteDatabase db = this.getWritableDatabase();
         String whereToDelete = PresenceTemplate.MESSAGE + "=?";
@@ -755,48 +845,129 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public ArrayList<Message> getMessages(Conversation conversation, int limit, long timestamp) {
-        ArrayList<Message> list = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor;
+        final Cursor cursor;
         if (timestamp == -1) {
-            String[] selectionArgs = {conversation.getUuid()};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
-                    + "=?", selectionArgs, null, null, Message.TIME_SENT
-                    + " DESC", String.valueOf(limit));
+            final String[] selectionArgs = {conversation.getUuid()};
+            cursor = queryMessagePage(Message.CONVERSATION + "=?", selectionArgs, limit);
         } else {
-            String[] selectionArgs = {conversation.getUuid(),
-                    Long.toString(timestamp)};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
-                            + "=? and " + Message.TIME_SENT + "<?", selectionArgs,
-                    null, null, Message.TIME_SENT + " DESC",
-                    String.valueOf(limit));
+            final String[] selectionArgs = {conversation.getUuid(), Long.toString(timestamp)};
+            cursor = queryMessagePage(Message.CONVERSATION + "=? and " + Message.TIME_SENT + "<?", selectionArgs, limit);
+        }
+        return readMessagePage(cursor, conversation);
+    }
+
+    /**
+     * Loads the page of messages that precedes the given message. Paging uses (timeSent, rowid)
+     * as key so messages that share the timestamp of the oldest loaded message are not skipped.
+     * If the message is not in the database only messages strictly older than it are returned.
+     */
+    public ArrayList<Message> getMessages(Conversation conversation, int limit, Message before) {
+        final String timestamp = Long.toString(before.getTimeSent());
+        final String[] selectionArgs = {conversation.getUuid(), timestamp, timestamp, before.getUuid()};
+        final Cursor cursor = queryMessagePage(Message.CONVERSATION + "=? and (" + Message.TIME_SENT + "<? or (" + Message.TIME_SENT + "=? and rowid<(select rowid from " + Message.TABLENAME + " where " + Message.UUID + "=?)))", selectionArgs, limit);
+        return readMessagePage(cursor, conversation);
+    }
+
+    /**
+     * Reads the latest page of messages of all conversations with the given status in a single
+     * query (instead of one query per conversation) and hands them to the callback one
+     * conversation at a time. Conversations that are not in the map are skipped.
+     * <p>
+     * Conversations are visited in the order of their uuid and their messages are found through
+     * message_conversation_time_index, so rows are streamed as they are read; only the messages
+     * of a single conversation are ever sorted. Conversations therefore do not come in the order
+     * of {@link #getConversations(int)}.
+     */
+    public void readLatestMessages(final Map<String, Conversation> conversations, final int status, final int limit, final OnMessagePageRead onMessagePageRead) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        //timeSent of the oldest message on the page. ties can add a few rows that are dropped below
+        final String oldest = "ifnull((select " + Message.TIME_SENT + " from " + Message.TABLENAME + " where " + Message.CONVERSATION + "=c." + Conversation.UUID
+                + " order by " + Message.TIME_SENT + " desc limit 1 offset " + (limit - 1) + "),0)";
+        final String sql = "select m.* from " + Conversation.TABLENAME + " c cross join " + Message.TABLENAME + " m"
+                + " on m." + Message.CONVERSATION + "=c." + Conversation.UUID + " and m." + Message.TIME_SENT + ">=" + oldest
+                + " where c." + Conversation.STATUS + "=?"
+                + " order by c." + Conversation.UUID + ", m." + Message.TIME_SENT + ", m.rowid";
+        final Cursor cursor = db.rawQuery(sql, new String[]{Integer.toString(status)});
+        CursorUtils.upgradeCursorWindowSize(cursor);
+        final int conversationIndex = cursor.getColumnIndex(Message.CONVERSATION);
+        String currentUuid = null;
+        Conversation current = null;
+        ArrayList<Message> page = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                final String uuid = cursor.getString(conversationIndex);
+                if (!uuid.equals(currentUuid)) {
+                    deliverLatestMessages(current, page, limit, onMessagePageRead);
+                    page = new ArrayList<>();
+                    currentUuid = uuid;
+                    current = conversations.get(uuid);
+                }
+                if (current == null) {
+                    continue;
+                }
+                try {
+                    page.add(Message.fromCursor(cursor, current));
+                } catch (Exception e) {
+                    Log.e(Config.LOGTAG, "unable to restore message");
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        deliverLatestMessages(current, page, limit, onMessagePageRead);
+    }
+
+    private static void deliverLatestMessages(final Conversation conversation, final ArrayList<Message> page, final int limit, final OnMessagePageRead onMessagePageRead) {
+        if (conversation == null || page.isEmpty()) {
+            return;
+        }
+        if (page.size() > limit) {
+            onMessagePageRead.onMessagePageRead(conversation, new ArrayList<>(page.subList(page.size() - limit, page.size())));
+        } else {
+            onMessagePageRead.onMessagePageRead(conversation, page);
         }
+    }
+
+    private Cursor queryMessagePage(final String selection, final String[] selectionArgs, final int limit) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        return db.query(Message.TABLENAME, null, selection, selectionArgs, null, null, Message.TIME_SENT + " DESC, rowid DESC", String.valueOf(limit));
+    }
+
+    private static ArrayList<Message> readMessagePage(final Cursor cursor, final Conversation conversation) {
+        final ArrayList<Message> list = new ArrayList<>();
         CursorUtils.upgradeCursorWindowSize(cursor);
         while (cursor.moveToNext()) {
             try {
-                list.add(0, Message.fromCursor(cursor, conversation));
+                list.add(Message.fromCursor(cursor, conversation));
             } catch (Exception e) {
                 Log.e(Config.LOGTAG,"unable to restore message");
             }
         }
         cursor.close();
+        Collections.reverse(list);
         return list;
     }
 
-    public Cursor getMessageSearchCursor(final List<String> term, final String uuid) {
+    /**
+     * Returns up to {@link Config#MAX_SEARCH_RESULTS} search results, newest first. The matches
+     * are searched and sorted once; callers that want to show results early should hand them out
+     * while reading the cursor rather than query again.
+     */
+    public Cursor getMessageSearchCursor(final List<String> term, final String uuid, final CancellationSignal cancellationSignal) {
         final SQLiteDatabase db = this.getReadableDatabase();
         final StringBuilder SQL = new StringBuilder();
         final String[] selectionArgs;
+        final String matchString = FtsUtils.toMatchString(term);
         SQL.append("SELECT " + Message.TABLENAME + ".*," + Conversation.TABLENAME + '.' + Conversation.CONTACTJID + ',' + Conversation.TABLENAME + '.' + Conversation.ACCOUNT + ',' + Conversation.TABLENAME + '.' + Conversation.MODE + " FROM " + Message.TABLENAME + " join " + Conversation.TABLENAME + " on " + Message.TABLENAME + '.' + Message.CONVERSATION + '=' + Conversation.TABLENAME + '.' + Conversation.UUID + " join messages_index ON messages_index.uuid=messages.uuid where " + Message.ENCRYPTION + " NOT IN(" + Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE + ',' + Message.ENCRYPTION_PGP + ',' + Message.ENCRYPTION_DECRYPTION_FAILED + ',' + Message.ENCRYPTION_AXOLOTL_FAILED + ") AND " + Message.TYPE + " IN(" + Message.TYPE_TEXT + ',' + Message.TYPE_PRIVATE + ") AND messages_index.body MATCH ?");
         if (uuid == null) {
-            selectionArgs = new String[]{FtsUtils.toMatchString(term)};
+            selectionArgs = new String[]{matchString};
         } else {
-            selectionArgs = new String[]{FtsUtils.toMatchString(term), uuid};
+            selectionArgs = new String[]{matchString, uuid};
             SQL.append(" AND "+Conversation.TABLENAME+'.'+Conversation.UUID+"=?");
         }
-        SQL.append(" ORDER BY " + Message.TIME_SENT + " DESC limit " + Config.MAX_SEARCH_RESULTS);
-        Log.d(Config.LOGTAG, "search term: " + FtsUtils.toMatchString(term));
-        return db.rawQuery(SQL.toString(), selectionArgs);
+        SQL.append(" ORDER BY " + Message.TABLENAME + '.' + Message.TIME_SENT + " DESC limit " + Config.MAX_SEARCH_RESULTS);
+        Log.d(Config.LOGTAG, "search term: " + matchString);
+        return db.rawQuery(SQL.toString(), selectionArgs, cancellationSignal);
     }
 
     public List<String> markFileAsDeleted(final File file, final boolean internal) {
@@ -880,6 +1051,10 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return filesPaths;
     }
 
+    public interface OnMessagePageRead {
+        void onMessagePageRead(Conversation conversation, ArrayList<Message> messages);
+    }
+
     public static class FilePath {
         public final UUID uuid;
         public final String path;
@@ -1012,26 +1187,86 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         cursor.close();
     }
 
+    /**
+     * Writes the contacts that have changed since the roster has last been persisted and deletes
+     * those that should no longer be stored; see {@link Roster#getChanges()}.
+     */
     public void writeRoster(final Roster roster) {
-        long start = SystemClock.elapsedRealtime();
+        final long start = SystemClock.elapsedRealtime();
         final Account account = roster.getAccount();
-        final SQLiteDatabase db = this.getWritableDatabase();
-        db.beginTransaction();
-        for (Contact contact : roster.getContacts()) {
-            if (contact.getOption(Contact.Options.IN_ROSTER) || contact.hasAvatarOrPresenceName() || contact.getOption(Contact.Options.SYNCED_VIA_OTHER)) {
-                db.insert(Contact.TABLENAME, null, contact.getContentValues());
-            } else {
-                String where = Contact.ACCOUNT + "=? AND " + Contact.JID + "=?";
-                String[] whereArgs = {account.getUuid(), contact.getJid().toString()};
-                db.delete(Contact.TABLENAME, where, whereArgs);
+        final Roster.Changes changes = roster.getChanges();
+        final long compared = SystemClock.elapsedRealtime();
+        if (!changes.isEmpty()) {
+            final SQLiteDatabase db = this.getWritableDatabase();
+            SQLiteStatement insert = null;
+            String[] columns = null;
+            final SQLiteStatement delete = db.compileStatement("DELETE FROM " + Contact.TABLENAME + " WHERE " + Contact.ACCOUNT + "=? AND " + Contact.JID + "=?");
+            db.beginTransaction();
+            try {
+                for (final ContentValues values : changes.written.values()) {
+                    if (insert == null) {
+                        columns = values.keySet().toArray(new String[0]);
+                        insert = db.compileStatement(insertStatement(Contact.TABLENAME, columns));
+                    }
+                    if (values.size() != columns.length) {
+                        db.insert(Contact.TABLENAME, null, values);
+                        continue;
+                    }
+                    insert.clearBindings();
+                    for (int i = 0; i < columns.length; ++i) {
+                        bind(insert, i + 1, values.get(columns[i]));
+                    }
+                    insert.executeInsert();
+                }
+                for (final Jid jid : changes.deleted) {
+                    delete.bindString(1, account.getUuid());
+                    delete.bindString(2, jid.toString());
+                    delete.executeUpdateDelete();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                delete.close();
+                if (insert != null) {
+                    insert.close();
+                }
             }
+            roster.markPersisted(changes);
         }
-        db.setTransactionSuccessful();
-        db.endTransaction();
         account.setRosterVersion(roster.getVersion());
         updateAccount(account);
-        long duration = SystemClock.elapsedRealtime() - start;
-        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": persisted roster in " + duration + "ms");
+        final long end = SystemClock.elapsedRealtime();
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": persisted roster (written=" + changes.written.size()
+                + ", deleted=" + changes.deleted.size()
+                + ", stored=" + roster.getPersistedCount()
+                + ") in " + (end - start) + "ms (comparing took " + (compared - start) + "ms)");
+    }
+
+    private static String insertStatement(final String table, final String[] columns) {
+        final StringBuilder builder = new StringBuilder("INSERT INTO ").append(table).append('(');
+        for (int i = 0; i < columns.length; ++i) {
+            if (i != 0) {
+                builder.append(',');
+            }
+            builder.append(columns[i]);
+        }
+        builder.append(") VALUES(");
+        for (int i = 0; i < columns.length; ++i) {
+            builder.append(i == 0 ? "?" : ",?");
+        }
+        return builder.append(')').toString();
+    }
+
+    private static void bind(final SQLiteStatement statement, final int index, final Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Long || value instanceof Integer) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
     }
 
     public void deleteMessagesInConversation(Conversation conversation) {
@@ -1056,6 +1291,47 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.endTransaction();
     }
 
+    /**
+     * Drops the trigger that adds every inserted message to the full text index. Meant for bulk
+     * inserts which then index all new messages in one go with {@link #resumeMessageIndexing(SQLiteDatabase, long)}.
+     * Should the process die before that, the trigger is restored the next time the database is
+     * opened.
+     *
+     * @return the highest message rowid at the time indexing was suspended
+     */
+    static long suspendMessageIndexing(final SQLiteDatabase db) {
+        final long rowId = DatabaseUtils.longForQuery(db, "select ifnull(max(rowid),0) from " + Message.TABLENAME, null);
+        db.execSQL("DROP TRIGGER IF EXISTS after_message_insert");
+        return rowId;
+    }
+
+    /**
+     * Recreates the insert trigger if a bulk insert has been interrupted (for example because the
+     * process died during a backup import) and indexes the messages that have been inserted
+     * without it.
+     */
+    private static void restoreMessageIndexing(final SQLiteDatabase db) {
+        final long triggers = DatabaseUtils.longForQuery(db, "select count(*) from sqlite_master where type='trigger' and name='after_message_insert'", null);
+        if (triggers > 0) {
+            return;
+        }
+        Log.d(Config.LOGTAG, "message insert trigger was missing. indexing messages inserted without it");
+        db.beginTransaction();
+        try {
+            db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
+            db.execSQL("INSERT into messages_index(uuid,body) select uuid,body FROM " + Message.TABLENAME + " where uuid not in (select uuid from messages_index)");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    static void resumeMessageIndexing(final SQLiteDatabase db, final long afterRowId) {
+        db.execSQL("DROP TRIGGER IF EXISTS after_message_insert");
+        db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
+        db.execSQL("INSERT into messages_index(uuid,body) select uuid,body FROM " + Message.TABLENAME + " where rowid>?", new Object[]{afterRowId});
+    }
+
     public MamReference getLastMessageReceived(Account account) {
         Cursor cursor = null;
         try {
@@ -0,0 +1,264 @@
+package eu.siacs.conversations.persistance;
+
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Reads the body of a version 1 backup file, a sequence of
+ * <pre>
+ * INSERT [OR IGNORE] INTO table(column,...) VALUES(value,...),(value,...);
+ * </pre>
+ * statements where every value is either NULL, a number or a quoted string, and presents it with
+ * the same records as {@link BackupReader} so the statements do not have to be parsed by SQLite
+ * one by one.
+ */
+public class SqlBackupReader implements Closeable {
+
+    private static final int STATE_STATEMENT = 0;
+    private static final int STATE_VALUES = 1;
+    private static final int STATE_NEXT_ROW = 2;
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private final StringBuilder token = new StringBuilder();
+    private int position = 0;
+    private int limit = 0;
+
+    private int state = STATE_STATEMENT;
+    private String table;
+    private String[] columns;
+    private boolean ignoreConflicts;
+    private boolean rowPending = false;
+
+    public SqlBackupReader(final Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return {@link BackupWriter#RECORD_TABLE}, {@link BackupWriter#RECORD_ROW} or -1 at the end
+     * of the backup
+     */
+    public int next() throws IOException {
+        if (rowPending) {
+            bind(null);
+        }
+        while (true) {
+            switch (state) {
+                case STATE_STATEMENT:
+                    if (skipWhitespace() == -1) {
+                        return -1;
+                    }
+                    readStatementHead();
+                    state = STATE_VALUES;
+                    return BackupWriter.RECORD_TABLE;
+                case STATE_VALUES:
+                    expect('(');
+                    rowPending = true;
+                    state = STATE_NEXT_ROW;
+                    return BackupWriter.RECORD_ROW;
+                default:
+                    final int c = skipWhitespace();
+                    if (c == ',') {
+                        ++position;
+                        state = STATE_VALUES;
+                    } else if (c == ';') {
+                        ++position;
+                        state = STATE_STATEMENT;
+                    } else {
+                        throw unexpected(c);
+                    }
+            }
+        }
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+
+    public boolean isIgnoreConflicts() {
+        return ignoreConflicts;
+    }
+
+    /**
+     * Binds the values of the current row to the statement. Parameters are numbered in the order
+     * of {@link #getColumns()}. A null statement skips the row.
+     */
+    public void bind(final SQLiteStatement statement) throws IOException {
+        if (!rowPending) {
+            throw new IllegalStateException("not positioned on a row");
+        }
+        rowPending = false;
+        for (int i = 1; i <= columns.length; ++i) {
+            final int c = skipWhitespace();
+            if (c == '\'') {
+                ++position;
+                final String value = readString();
+                if (statement != null) {
+                    statement.bindString(i, value);
+                }
+            } else {
+                final String value = readWord();
+                if (statement != null) {
+                    if ("NULL".equalsIgnoreCase(value)) {
+                        statement.bindNull(i);
+                    } else {
+                        bindNumber(statement, i, value);
+                    }
+                }
+            }
+            expect(i == columns.length ? ')' : ',');
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void readStatementHead() throws IOException {
+        expectKeyword("INSERT");
+        String word = readWord();
+        if ("OR".equalsIgnoreCase(word)) {
+            expectKeyword("IGNORE");
+            ignoreConflicts = true;
+            word = readWord();
+        } else {
+            ignoreConflicts = false;
+        }
+        if (!"INTO".equalsIgnoreCase(word)) {
+            throw new IOException("expected INTO but got " + word);
+        }
+        this.table = readWord();
+        expect('(');
+        final ArrayList<String> columns = new ArrayList<>();
+        while (true) {
+            columns.add(readWord());
+            final int c = skipWhitespace();
+            ++position;
+            if (c == ')') {
+                break;
+            } else if (c != ',') {
+                throw unexpected(c);
+            }
+        }
+        this.columns = columns.toArray(new String[0]);
+        expectKeyword("VALUES");
+    }
+
+    private static void bindNumber(final SQLiteStatement statement, final int index, final String value) throws IOException {
+        try {
+            statement.bindLong(index, Long.parseLong(value));
+        } catch (final NumberFormatException e) {
+            try {
+                statement.bindDouble(index, Double.parseDouble(value));
+            } catch (final NumberFormatException ee) {
+                throw new IOException("invalid value " + value);
+            }
+        }
+    }
+
+    private void expectKeyword(final String keyword) throws IOException {
+        final String word = readWord();
+        if (!keyword.equalsIgnoreCase(word)) {
+            throw new IOException("expected " + keyword + " but got " + word);
+        }
+    }
+
+    private void expect(final char expected) throws IOException {
+        final int c = skipWhitespace();
+        if (c != expected) {
+            throw unexpected(c);
+        }
+        ++position;
+    }
+
+    /**
+     * Reads an identifier, keyword or unquoted value.
+     */
+    private String readWord() throws IOException {
+        skipWhitespace();
+        token.setLength(0);
+        while (fill()) {
+            final char c = buffer[position];
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-' || c == '+' || c == '.') {
+                token.append(c);
+                ++position;
+            } else {
+                break;
+            }
+        }
+        if (token.length() == 0) {
+            throw unexpected(fill() ? buffer[position] : -1);
+        }
+        return token.toString();
+    }
+
+    /**
+     * Reads a string literal up to and including the closing quote. The opening quote has already
+     * been consumed.
+     */
+    private String readString() throws IOException {
+        token.setLength(0);
+        while (true) {
+            if (!fill()) {
+                throw new EOFException("unterminated string");
+            }
+            final int start = position;
+            while (position < limit && buffer[position] != '\'') {
+                ++position;
+            }
+            token.append(buffer, start, position - start);
+            if (position == limit) {
+                continue;
+            }
+            ++position;
+            if (fill() && buffer[position] == '\'') {
+                token.append('\'');
+                ++position;
+            } else {
+                return token.toString();
+            }
+        }
+    }
+
+    private int skipWhitespace() throws IOException {
+        while (fill()) {
+            final char c = buffer[position];
+            if (Character.isWhitespace(c)) {
+                ++position;
+            } else {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private boolean fill() throws IOException {
+        if (position < limit) {
+            return true;
+        }
+        final int count = reader.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            position = limit = 0;
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+
+    private static IOException unexpected(final int c) {
+        return c == -1 ? new EOFException("unexpected end of backup") : new IOException("unexpected character '" + (char) c + "'");
+    }
+}
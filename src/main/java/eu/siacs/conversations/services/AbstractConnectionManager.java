@@ -6,6 +6,7 @@ import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
+import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.engines.AESEngine;
 import org.bouncycastle.crypto.io.CipherInputStream;
 import org.bouncycastle.crypto.io.CipherOutputStream;
@@ -20,6 +21,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -47,6 +49,7 @@ import static eu.siacs.conversations.entities.Transferable.VALID_CRYPTO_EXTENSIO
 public class AbstractConnectionManager {
 
     private static final int UI_REFRESH_THRESHOLD = 250;
+    private static final int RESTORE_BUFFER_SIZE = 64 * 1024;
     private static final AtomicLong LAST_UI_UPDATE_CALL = new AtomicLong(0);
     protected XmppConnectionService mXmppConnectionService;
 
@@ -101,12 +104,18 @@ public class AbstractConnectionManager {
         void onProgress(long progress);
     }
 
+    /**
+     * Opens an output stream to the file that, if decrypt is set and the file has a key, decrypts
+     * everything written to it. When appending to an encrypted download the cipher is first
+     * brought to the state it was in after the existing (already decrypted) content, so an
+     * interrupted download can be resumed at {@link DownloadableFile#getSize()} as it was before
+     * calling this method.
+     */
     public static OutputStream createOutputStream(DownloadableFile file, boolean append, boolean decrypt) {
         FileOutputStream os;
         try {
-            os = new FileOutputStream(file, append);
             if (file.getKey() == null || !decrypt) {
-                return os;
+                return new FileOutputStream(file, append);
             }
         } catch (FileNotFoundException e) {
             Log.d(Config.LOGTAG, "unable to create output stream", e);
@@ -115,6 +124,10 @@ public class AbstractConnectionManager {
         try {
             AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
             cipher.init(false, new AEADParameters(new KeyParameter(file.getKey()), 128, file.getIv()));
+            if (append && file.length() > 0) {
+                restoreDecryptionState(file, cipher);
+            }
+            os = new FileOutputStream(file, append);
             return new CipherOutputStream(os, cipher);
         } catch (Exception e) {
             Log.d(Config.LOGTAG, "unable to create cipher output stream", e);
@@ -122,6 +135,34 @@ public class AbstractConnectionManager {
         }
     }
 
+    /**
+     * Feeds the cipher text that corresponds to the plain text in the file (obtained by encrypting
+     * it again) into the decrypting cipher. GCM holds back the last few bytes it has been fed
+     * until it sees more input; the file is truncated to what the cipher has actually released
+     * because it will release the remainder again once the download continues.
+     */
+    private static void restoreDecryptionState(final DownloadableFile file, final AEADBlockCipher cipher) throws IOException, InvalidCipherTextException {
+        final AEADBlockCipher encryption = new GCMBlockCipher(new AESEngine());
+        encryption.init(true, new AEADParameters(new KeyParameter(file.getKey()), 128, file.getIv()));
+        final byte[] plainText = new byte[RESTORE_BUFFER_SIZE];
+        final byte[] cipherText = new byte[RESTORE_BUFFER_SIZE + 32];
+        final byte[] discarded = new byte[RESTORE_BUFFER_SIZE + 64];
+        long released = 0;
+        try (final InputStream is = new FileInputStream(file)) {
+            int count;
+            while ((count = is.read(plainText)) != -1) {
+                final int length = encryption.processBytes(plainText, 0, count, cipherText, 0);
+                released += cipher.processBytes(cipherText, 0, length, discarded, 0);
+            }
+        }
+        //the remaining cipher text is followed by the tag, which the download will provide
+        final int length = encryption.doFinal(cipherText, 0) - encryption.getMac().length;
+        released += cipher.processBytes(cipherText, 0, length, discarded, 0);
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(released);
+        }
+    }
+
     public XmppConnectionService getXmppConnectionService() {
         return this.mXmppConnectionService;
     }
@@ -0,0 +1,177 @@
+package eu.siacs.conversations.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.Conversational;
+import eu.siacs.conversations.entities.MucOptions;
+import eu.siacs.conversations.xmpp.Jid;
+
+/**
+ * Holds the list of open conversations together with lookup tables by (account, bare jid) and by
+ * uuid as well as a reverse index from the real jid of MUC occupants to the conferences they are
+ * in. All modifications of the list have to go through this class to keep the indices in sync.
+ */
+public class ConversationRegistry implements MucOptions.OnOccupantsChanged {
+
+    private final List<Conversation> conversations = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<Key, Conversation> byAccountAndJid = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Conversation> byUuid = new ConcurrentHashMap<>();
+
+    private final Map<Jid, Set<Conversation>> conferencesByOccupant = new HashMap<>();
+    private final Map<Conversation, Set<Jid>> occupantsByConference = new HashMap<>();
+
+    public List<Conversation> getConversations() {
+        return this.conversations;
+    }
+
+    public synchronized void add(final Conversation conversation) {
+        this.conversations.add(conversation);
+        index(conversation);
+    }
+
+    public synchronized void addAll(final Collection<Conversation> conversations) {
+        this.conversations.addAll(conversations);
+        for (final Conversation conversation : conversations) {
+            index(conversation);
+        }
+    }
+
+    public void remove(final Conversation conversation) {
+        synchronized (this) {
+            if (!this.conversations.remove(conversation)) {
+                return;
+            }
+            final Key key = Key.of(conversation);
+            if (byAccountAndJid.remove(key, conversation)) {
+                for (final Conversation candidate : this.conversations) {
+                    if (key.equals(Key.of(candidate))) {
+                        byAccountAndJid.put(key, candidate);
+                        break;
+                    }
+                }
+            }
+            byUuid.remove(conversation.getUuid(), conversation);
+            conversation.setOnOccupantsChangedListener(null);
+        }
+        onOccupantsChanged(conversation, Collections.emptySet());
+    }
+
+    private void index(final Conversation conversation) {
+        final Key key = Key.of(conversation);
+        if (!byAccountAndJid.containsKey(key)) {
+            byAccountAndJid.put(key, conversation);
+        }
+        if (!byUuid.containsKey(conversation.getUuid())) {
+            byUuid.put(conversation.getUuid(), conversation);
+        }
+        conversation.setOnOccupantsChangedListener(this);
+        if (conversation.getMode() == Conversational.MODE_MULTI) {
+            onOccupantsChanged(conversation, conversation.getMucOptions().getRealJids());
+        }
+    }
+
+    public Conversation find(final Account account, final Jid jid) {
+        if (jid == null) {
+            return null;
+        }
+        if (account != null) {
+            return byAccountAndJid.get(new Key(account.getUuid(), jid.asBareJid()));
+        }
+        final Jid bare = jid.asBareJid();
+        for (final Conversation conversation : this.conversations) {
+            if (conversation.getJid().asBareJid().equals(bare)) {
+                return conversation;
+            }
+        }
+        return null;
+    }
+
+    public Conversation findByUuid(final String uuid) {
+        return uuid == null ? null : byUuid.get(uuid);
+    }
+
+    /**
+     * @return all conferences that have the given (bare) jid as the real jid of one of their
+     * occupants or members
+     */
+    public List<Conversation> findConferencesWithOccupant(final Jid jid) {
+        synchronized (conferencesByOccupant) {
+            final Set<Conversation> conferences = conferencesByOccupant.get(jid);
+            return conferences == null ? Collections.emptyList() : new ArrayList<>(conferences);
+        }
+    }
+
+    @Override
+    public void onOccupantsChanged(final Conversation conversation, final Set<Jid> realJids) {
+        synchronized (conferencesByOccupant) {
+            final Set<Jid> previous = occupantsByConference.get(conversation);
+            if (previous != null) {
+                for (final Jid jid : previous) {
+                    if (!realJids.contains(jid)) {
+                        final Set<Conversation> conferences = conferencesByOccupant.get(jid);
+                        if (conferences != null && conferences.remove(conversation) && conferences.isEmpty()) {
+                            conferencesByOccupant.remove(jid);
+                        }
+                    }
+                }
+            }
+            for (final Jid jid : realJids) {
+                if (previous == null || !previous.contains(jid)) {
+                    Set<Conversation> conferences = conferencesByOccupant.get(jid);
+                    if (conferences == null) {
+                        conferences = new HashSet<>();
+                        conferencesByOccupant.put(jid, conferences);
+                    }
+                    conferences.add(conversation);
+                }
+            }
+            if (realJids.isEmpty()) {
+                occupantsByConference.remove(conversation);
+            } else {
+                occupantsByConference.put(conversation, new HashSet<>(realJids));
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String account;
+        private final Jid jid;
+
+        private Key(final String account, final Jid jid) {
+            this.account = account;
+            this.jid = jid;
+        }
+
+        private static Key of(final Conversation conversation) {
+            return new Key(conversation.getAccount().getUuid(), conversation.getJid().asBareJid());
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return account.equals(key.account) && jid.equals(key.jid);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * account.hashCode() + jid.hashCode();
+        }
+    }
+}
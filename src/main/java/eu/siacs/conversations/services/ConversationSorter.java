@@ -0,0 +1,107 @@
+package eu.siacs.conversations.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import eu.siacs.conversations.entities.Conversation;
+
+/**
+ * Orders conversations like {@link Conversation#compareTo(Conversation)} (pinned first, then by
+ * the time of the latest message or draft) without evaluating that order over and over during
+ * the sort. The sort key of each conversation is computed once per sort, so the latest message
+ * and the draft are looked up n instead of n log n times.
+ * <p>
+ * The order found by the previous sort is used as the starting order of the next one. Usually
+ * only a few conversations have moved in between, and the sort (a merge sort that detects
+ * ordered runs) then only has to reposition those, in close to linear time.
+ */
+final class ConversationSorter {
+
+    private List<Conversation> previousOrder = Collections.emptyList();
+
+    /**
+     * Sorts the list in place.
+     */
+    public void sort(final List<Conversation> list) {
+        final List<Key> keys = new ArrayList<>(list.size());
+        final HashSet<Conversation> remaining = new HashSet<>(list);
+        final List<Conversation> previousOrder;
+        synchronized (this) {
+            previousOrder = this.previousOrder;
+        }
+        for (final Conversation conversation : previousOrder) {
+            if (remaining.remove(conversation)) {
+                keys.add(new Key(conversation));
+            }
+        }
+        for (final Conversation conversation : list) {
+            if (remaining.remove(conversation)) {
+                keys.add(new Key(conversation));
+            }
+        }
+        Collections.sort(keys, Key.ORDER);
+        list.clear();
+        for (final Key key : keys) {
+            list.add(key.conversation);
+        }
+        synchronized (this) {
+            this.previousOrder = new ArrayList<>(list);
+        }
+    }
+
+    /**
+     * Sorts the list in place, keeping conversations that are in keepOrder in the order they have
+     * there. Conversations that are not are placed by their sort key.
+     */
+    public void sort(final List<Conversation> list, final List<Conversation> keepOrder) {
+        final HashMap<Conversation, Integer> positions = new HashMap<>();
+        for (int i = 0; i < keepOrder.size(); ++i) {
+            positions.put(keepOrder.get(i), i);
+        }
+        final List<Key> keys = new ArrayList<>(list.size());
+        for (final Conversation conversation : list) {
+            final Key key = new Key(conversation);
+            key.position = positions.get(conversation);
+            keys.add(key);
+        }
+        try {
+            Collections.sort(keys, (a, b) -> {
+                if (a.position == null || b.position == null || a.position.equals(b.position)) {
+                    return Key.ORDER.compare(a, b);
+                }
+                return a.position - b.position;
+            });
+        } catch (final IllegalArgumentException e) {
+            //mixing kept positions with sort keys is not transitive in every case; ignore
+        }
+        list.clear();
+        for (final Key key : keys) {
+            list.add(key.conversation);
+        }
+    }
+
+    private static class Key {
+
+        private static final Comparator<Key> ORDER = (a, b) -> {
+            if (a.pinned != b.pinned) {
+                return a.pinned ? -1 : 1;
+            }
+            return Long.compare(b.time, a.time);
+        };
+
+        private final Conversation conversation;
+        private final boolean pinned;
+        private final long time;
+        private Integer position;
+
+        private Key(final Conversation conversation) {
+            this.conversation = conversation;
+            this.pinned = conversation.getBooleanAttribute(Conversation.ATTRIBUTE_PINNED_ON_TOP, false);
+            this.time = conversation.getSortableTime();
+        }
+    }
+}
@@ -7,20 +7,21 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
 import com.google.common.base.Strings;
+import com.google.common.primitives.Ints;
 
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
@@ -29,14 +30,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.GZIPOutputStream;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -44,6 +40,7 @@ import eu.siacs.conversations.crypto.axolotl.SQLiteAxolotlStore;
 import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Conversation;
 import eu.siacs.conversations.entities.Message;
+import eu.siacs.conversations.persistance.BackupWriter;
 import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.utils.BackupFileHeader;
@@ -58,7 +55,6 @@ public class ExportBackupService extends Service {
     public static final String MIME_TYPE = "application/vnd.conversations.backup";
 
     private static final int NOTIFICATION_ID = 19;
-    private static final int PAGE_SIZE = 20;
     private static final AtomicBoolean RUNNING = new AtomicBoolean(false);
     private DatabaseBackend mDatabaseBackend;
     private List<Account> mAccounts;
@@ -88,124 +84,87 @@ public class ExportBackupService extends Service {
         return Arrays.asList(openIntent, amazeIntent, systemFallBack);
     }
 
-    private static void accountExport(final SQLiteDatabase db, final String uuid, final PrintWriter writer) {
-        final StringBuilder builder = new StringBuilder();
+    private static void accountExport(final SQLiteDatabase db, final String uuid, final BackupWriter writer) throws IOException {
         final Cursor accountCursor = db.query(Account.TABLENAME, null, Account.UUID + "=?", new String[]{uuid}, null, null, null);
-        while (accountCursor != null && accountCursor.moveToNext()) {
-            builder.append("INSERT INTO ").append(Account.TABLENAME).append("(");
-            for (int i = 0; i < accountCursor.getColumnCount(); ++i) {
-                if (i != 0) {
-                    builder.append(',');
-                }
-                builder.append(accountCursor.getColumnName(i));
-            }
-            builder.append(") VALUES(");
-            for (int i = 0; i < accountCursor.getColumnCount(); ++i) {
-                if (i != 0) {
-                    builder.append(',');
-                }
-                final String value = accountCursor.getString(i);
-                if (value == null || Account.ROSTERVERSION.equals(accountCursor.getColumnName(i))) {
-                    builder.append("NULL");
-                } else if (value.matches("\\d+")) {
-                    int intValue = Integer.parseInt(value);
-                    if (Account.OPTIONS.equals(accountCursor.getColumnName(i))) {
-                        intValue |= 1 << Account.OPTION_DISABLED;
+        try {
+            writer.writeTable(Account.TABLENAME, accountCursor.getColumnNames());
+            while (accountCursor.moveToNext()) {
+                final Object[] values = new Object[accountCursor.getColumnCount()];
+                for (int i = 0; i < values.length; ++i) {
+                    final String column = accountCursor.getColumnName(i);
+                    if (accountCursor.isNull(i) || Account.ROSTERVERSION.equals(column)) {
+                        values[i] = null;
+                    } else if (Account.OPTIONS.equals(column)) {
+                        values[i] = accountCursor.getInt(i) | 1 << Account.OPTION_DISABLED;
+                    } else {
+                        values[i] = getValue(accountCursor, i);
                     }
-                    builder.append(intValue);
-                } else {
-                    DatabaseUtils.appendEscapedSQLString(builder, value);
                 }
+                writer.writeRow(values);
             }
-            builder.append(")");
-            builder.append(';');
-            builder.append('\n');
-        }
-        if (accountCursor != null) {
+        } finally {
             accountCursor.close();
         }
-        writer.append(builder.toString());
     }
 
-    private static void simpleExport(SQLiteDatabase db, String table, String column, String uuid, PrintWriter writer) {
-        final Cursor cursor = db.query(table, null, column + "=?", new String[]{uuid}, null, null, null);
-        while (cursor != null && cursor.moveToNext()) {
-            writer.write(cursorToString(table, cursor, PAGE_SIZE));
-        }
-        if (cursor != null) {
-            cursor.close();
+    private static Object getValue(final Cursor cursor, final int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            default:
+                return null;
         }
     }
 
-    public static byte[] getKey(final String password, final byte[] salt) throws InvalidKeySpecException {
-        final SecretKeyFactory factory;
+    private static void simpleExport(SQLiteDatabase db, String table, String column, String uuid, BackupWriter writer) throws IOException {
+        final Cursor cursor = db.query(table, null, column + "=?", new String[]{uuid}, null, null, null);
         try {
-            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException(e);
+            tableExport(table, cursor, writer, null);
+        } finally {
+            cursor.close();
         }
-        return factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, 1024, 128)).getEncoded();
     }
 
-    private static String cursorToString(final String table, final Cursor cursor, final int max) {
-        return cursorToString(table, cursor, max, false);
-    }
-
-    private static String cursorToString(final String table, final Cursor cursor, int max, boolean ignore) {
+    /**
+     * writes the table definition followed by all rows of the cursor. Trust information of
+     * identities is never exported
+     */
+    private static void tableExport(final String table, final Cursor cursor, final BackupWriter writer, final Runnable onRowWritten) throws IOException {
         final boolean identities = SQLiteAxolotlStore.IDENTITIES_TABLENAME.equals(table);
-        StringBuilder builder = new StringBuilder();
-        builder.append("INSERT ");
-        if (ignore) {
-            builder.append("OR IGNORE ");
-        }
-        builder.append("INTO ").append(table).append("(");
-        int skipColumn = -1;
+        final List<String> names = new ArrayList<>();
+        final List<Integer> indices = new ArrayList<>();
         for (int i = 0; i < cursor.getColumnCount(); ++i) {
             final String name = cursor.getColumnName(i);
             if (identities && SQLiteAxolotlStore.TRUSTED.equals(name)) {
-                skipColumn = i;
                 continue;
             }
-            if (i != 0) {
-                builder.append(',');
-            }
-            builder.append(name);
+            names.add(name);
+            indices.add(i);
         }
-        builder.append(") VALUES");
-        for (int i = 0; i < max; ++i) {
-            if (i != 0) {
-                builder.append(',');
-            }
-            appendValues(cursor, builder, skipColumn);
-            if (i < max - 1 && !cursor.moveToNext()) {
-                break;
+        writer.writeTable(table, names.toArray(new String[0]));
+        final int[] columns = Ints.toArray(indices);
+        while (cursor.moveToNext()) {
+            writer.writeRow(cursor, columns);
+            if (onRowWritten != null) {
+                onRowWritten.run();
             }
         }
-        builder.append(';');
-        builder.append('\n');
-        return builder.toString();
     }
 
-    private static void appendValues(final Cursor cursor, final StringBuilder builder, final int skipColumn) {
-        builder.append("(");
-        for (int i = 0; i < cursor.getColumnCount(); ++i) {
-            if (i == skipColumn) {
-                continue;
-            }
-            if (i != 0) {
-                builder.append(',');
-            }
-            final String value = cursor.getString(i);
-            if (value == null) {
-                builder.append("NULL");
-            } else if (value.matches("[0-9]+")) {
-                builder.append(value);
-            } else {
-                DatabaseUtils.appendEscapedSQLString(builder, value);
-            }
+    public static byte[] getKey(final String password, final byte[] salt) throws InvalidKeySpecException {
+        final SecretKeyFactory factory;
+        try {
+            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
-        builder.append(")");
-
+        return factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, 1024, 128)).getEncoded();
     }
 
     @Override
@@ -243,26 +202,20 @@ public class ExportBackupService extends Service {
         return START_NOT_STICKY;
     }
 
-    private void messageExport(SQLiteDatabase db, String uuid, PrintWriter writer, Progress progress) {
-        Cursor cursor = db.rawQuery("select messages.* from messages join conversations on conversations.uuid=messages.conversationUuid where conversations.accountUuid=?", new String[]{uuid});
-        int size = cursor != null ? cursor.getCount() : 0;
-        Log.d(Config.LOGTAG, "exporting " + size + " messages for account " + uuid);
-        int i = 0;
-        int p = 0;
-        while (cursor != null && cursor.moveToNext()) {
-            writer.write(cursorToString(Message.TABLENAME, cursor, PAGE_SIZE, false));
-            if (i + PAGE_SIZE > size) {
-                i = size;
-            } else {
-                i += PAGE_SIZE;
-            }
-            final int percentage = i * 100 / size;
-            if (p < percentage) {
-                p = percentage;
-                notificationManager.notify(NOTIFICATION_ID, progress.build(p));
-            }
-        }
-        if (cursor != null) {
+    private void messageExport(SQLiteDatabase db, String uuid, BackupWriter writer, Progress progress) throws IOException {
+        final Cursor cursor = db.rawQuery("select messages.* from messages join conversations on conversations.uuid=messages.conversationUuid where conversations.accountUuid=?", new String[]{uuid});
+        try {
+            final int size = cursor.getCount();
+            Log.d(Config.LOGTAG, "exporting " + size + " messages for account " + uuid);
+            final int[] written = {0, 0};
+            tableExport(Message.TABLENAME, cursor, writer, () -> {
+                final int percentage = ++written[0] * 100 / size;
+                if (written[1] < percentage) {
+                    written[1] = percentage;
+                    notificationManager.notify(NOTIFICATION_ID, progress.build(percentage));
+                }
+            });
+        } finally {
             cursor.close();
         }
     }
@@ -297,32 +250,29 @@ public class ExportBackupService extends Service {
             if (directory != null && directory.mkdirs()) {
                 Log.d(Config.LOGTAG, "created backup directory " + directory.getAbsolutePath());
             }
+            final long start = SystemClock.elapsedRealtime();
             final FileOutputStream fileOutputStream = new FileOutputStream(file);
             final DataOutputStream dataOutputStream = new DataOutputStream(fileOutputStream);
             backupFileHeader.write(dataOutputStream);
             dataOutputStream.flush();
 
-            final Cipher cipher = Compatibility.twentyEight() ? Cipher.getInstance(CIPHERMODE) : Cipher.getInstance(CIPHERMODE, PROVIDER);
             final byte[] key = getKey(password, salt);
-            SecretKeySpec keySpec = new SecretKeySpec(key, KEYTYPE);
-            IvParameterSpec ivSpec = new IvParameterSpec(IV);
-            cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-            CipherOutputStream cipherOutputStream = new CipherOutputStream(fileOutputStream, cipher);
-
-            GZIPOutputStream gzipOutputStream = new GZIPOutputStream(cipherOutputStream);
-            PrintWriter writer = new PrintWriter(gzipOutputStream);
-            SQLiteDatabase db = this.mDatabaseBackend.getReadableDatabase();
-            final String uuid = account.getUuid();
-            accountExport(db, uuid, writer);
-            simpleExport(db, Conversation.TABLENAME, Conversation.ACCOUNT, uuid, writer);
-            messageExport(db, uuid, writer, progress);
-            for (String table : Arrays.asList(SQLiteAxolotlStore.PREKEY_TABLENAME, SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME, SQLiteAxolotlStore.SESSION_TABLENAME, SQLiteAxolotlStore.IDENTITIES_TABLENAME)) {
-                simpleExport(db, table, SQLiteAxolotlStore.ACCOUNT, uuid, writer);
+            final BackupWriter writer = new BackupWriter(fileOutputStream, key, IV);
+            try {
+                SQLiteDatabase db = this.mDatabaseBackend.getReadableDatabase();
+                final String uuid = account.getUuid();
+                accountExport(db, uuid, writer);
+                simpleExport(db, Conversation.TABLENAME, Conversation.ACCOUNT, uuid, writer);
+                messageExport(db, uuid, writer, progress);
+                for (String table : Arrays.asList(SQLiteAxolotlStore.PREKEY_TABLENAME, SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME, SQLiteAxolotlStore.SESSION_TABLENAME, SQLiteAxolotlStore.IDENTITIES_TABLENAME)) {
+                    simpleExport(db, table, SQLiteAxolotlStore.ACCOUNT, uuid, writer);
+                }
+                writer.finish();
+            } finally {
+                writer.close();
             }
-            writer.flush();
-            writer.close();
             mediaScannerScanFile(file);
-            Log.d(Config.LOGTAG, "written backup to " + file.getAbsoluteFile());
+            Log.d(Config.LOGTAG, "written " + writer.getRows() + " rows to " + file.getAbsoluteFile() + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
             count++;
         }
         return files;
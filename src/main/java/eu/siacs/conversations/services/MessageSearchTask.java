@@ -30,9 +30,13 @@
 package eu.siacs.conversations.services;
 
 import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.google.common.collect.Lists;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -59,7 +63,8 @@ public class MessageSearchTask implements Runnable, Cancellable {
 	private final String uuid;
 	private final OnSearchResultsAvailable onSearchResultsAvailable;
 
-	private boolean isCancelled = false;
+	private final CancellationSignal cancellationSignal = new CancellationSignal();
+	private volatile boolean isCancelled = false;
 
 	private MessageSearchTask(XmppConnectionService xmppConnectionService, List<String> term, final String uuid, OnSearchResultsAvailable onSearchResultsAvailable) {
 		this.xmppConnectionService = xmppConnectionService;
@@ -79,55 +84,64 @@ public class MessageSearchTask implements Runnable, Cancellable {
 	@Override
 	public void cancel() {
 		this.isCancelled = true;
+		this.cancellationSignal.cancel();
 	}
 
 	@Override
 	public void run() {
-		long startTimestamp = SystemClock.elapsedRealtime();
+		final long startTimestamp = SystemClock.elapsedRealtime();
+		final HashMap<String, Conversational> conversationCache = new HashMap<>();
+		//newest first; reversed before being handed to the UI
+		final List<Message> page = new ArrayList<>();
+		int found = 0;
+		int pages = 0;
 		Cursor cursor = null;
 		try {
-			final HashMap<String, Conversational> conversationCache = new HashMap<>();
-			final List<Message> result = new ArrayList<>();
-			cursor = xmppConnectionService.databaseBackend.getMessageSearchCursor(term, uuid);
-			long dbTimer = SystemClock.elapsedRealtime();
+			cursor = xmppConnectionService.databaseBackend.getMessageSearchCursor(term, uuid, cancellationSignal);
+			final int indexBody = cursor.getColumnIndex(Message.BODY);
+			final int indexOob = cursor.getColumnIndex(Message.OOB);
+			final int indexConversation = cursor.getColumnIndex(Message.CONVERSATION);
+			final int indexAccount = cursor.getColumnIndex(Conversation.ACCOUNT);
+			final int indexContact = cursor.getColumnIndex(Conversation.CONTACTJID);
+			final int indexMode = cursor.getColumnIndex(Conversation.MODE);
+			while (cursor.moveToNext()) {
+				if (isCancelled) {
+					Log.d(Config.LOGTAG, "canceled search task");
+					return;
+				}
+				final String body = cursor.getString(indexBody);
+				final boolean oob = cursor.getInt(indexOob) > 0;
+				if (MessageUtils.treatAsDownloadable(body, oob)) {
+					continue;
+				}
+				final String conversationUuid = cursor.getString(indexConversation);
+				Conversational conversation = conversationCache.get(conversationUuid);
+				if (conversation == null) {
+					String accountUuid = cursor.getString(indexAccount);
+					String contactJid = cursor.getString(indexContact);
+					int mode = cursor.getInt(indexMode);
+					conversation = findOrGenerateStub(conversationUuid, accountUuid, contactJid, mode);
+					conversationCache.put(conversationUuid, conversation);
+				}
+				page.add(IndividualMessage.fromCursor(cursor, conversation));
+				if (page.size() >= Config.SEARCH_RESULTS_PAGE_SIZE) {
+					deliver(page, pages++);
+					found += page.size();
+					page.clear();
+				}
+			}
 			if (isCancelled) {
 				Log.d(Config.LOGTAG, "canceled search task");
 				return;
 			}
-			if (cursor != null && cursor.getCount() > 0) {
-				cursor.moveToLast();
-				final int indexBody = cursor.getColumnIndex(Message.BODY);
-				final int indexOob = cursor.getColumnIndex(Message.OOB);
-				final int indexConversation = cursor.getColumnIndex(Message.CONVERSATION);
-				final int indexAccount = cursor.getColumnIndex(Conversation.ACCOUNT);
-				final int indexContact = cursor.getColumnIndex(Conversation.CONTACTJID);
-				final int indexMode = cursor.getColumnIndex(Conversation.MODE);
-				do {
-					if (isCancelled) {
-						Log.d(Config.LOGTAG, "canceled search task");
-						return;
-					}
-					final String body = cursor.getString(indexBody);
-					final boolean oob = cursor.getInt(indexOob) > 0;
-					if (MessageUtils.treatAsDownloadable(body,oob)) {
-						continue;
-					}
-					final String conversationUuid = cursor.getString(indexConversation);
-					Conversational conversation = conversationCache.get(conversationUuid);
-					if (conversation == null) {
-						String accountUuid = cursor.getString(indexAccount);
-						String contactJid = cursor.getString(indexContact);
-						int mode = cursor.getInt(indexMode);
-						conversation = findOrGenerateStub(conversationUuid, accountUuid, contactJid, mode);
-						conversationCache.put(conversationUuid, conversation);
-					}
-					Message message = IndividualMessage.fromCursor(cursor, conversation);
-					result.add(message);
-				} while (cursor.moveToPrevious());
+			if (pages == 0 || page.size() > 0) {
+				deliver(page, pages++);
+				found += page.size();
 			}
-			long stopTimestamp = SystemClock.elapsedRealtime();
-			Log.d(Config.LOGTAG, "found " + result.size() + " messages in " + (stopTimestamp - startTimestamp) + "ms"+ " (db was "+(dbTimer - startTimestamp)+"ms)");
-			onSearchResultsAvailable.onSearchResultsAvailable(term, result);
+			final long stopTimestamp = SystemClock.elapsedRealtime();
+			Log.d(Config.LOGTAG, "found " + found + " messages in " + (stopTimestamp - startTimestamp) + "ms (" + pages + " pages)");
+		} catch (final OperationCanceledException e) {
+			Log.d(Config.LOGTAG, "canceled search query");
 		} catch (Exception e) {
 			Log.d(Config.LOGTAG, "exception while searching ", e);
 		} finally {
@@ -137,6 +151,18 @@ public class MessageSearchTask implements Runnable, Cancellable {
 		}
 	}
 
+	private void deliver(final List<Message> page, final int number) {
+		if (isCancelled) {
+			return;
+		}
+		final List<Message> messages = Lists.reverse(new ArrayList<>(page));
+		if (number == 0) {
+			onSearchResultsAvailable.onSearchResultsAvailable(term, messages);
+		} else {
+			onSearchResultsAvailable.onOlderSearchResultsAvailable(term, messages);
+		}
+	}
+
 	private Conversational findOrGenerateStub(String conversationUuid, String accountUuid, String contactJid, int mode) throws Exception {
 		Conversation conversation = xmppConnectionService.findConversationByUuid(conversationUuid);
 		if (conversation != null) {
@@ -0,0 +1,232 @@
+package eu.siacs.conversations.services;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Contact;
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.MucOptions;
+
+/**
+ * Folds the avatar invalidations and UI updates caused by incoming presences and roster pushes
+ * into notifications that are sent at most once every {@link Config#PRESENCE_UI_INTERVAL}. The
+ * presence state itself is still applied as each stanza comes in; only the consequences for the
+ * UI are deferred, so joining a MUC with thousands of occupants or logging in with a large roster
+ * results in a handful of redraws instead of one per presence.
+ * <p>
+ * Avatars are always invalidated before the UI is updated. Updates that name the conversation or
+ * contact they are about are passed on as such to the {@link UiUpdateBus}.
+ */
+public class PresenceCoalescer {
+
+    private static final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE = Executors.newSingleThreadScheduledExecutor();
+
+    private final XmppConnectionService mXmppConnectionService;
+
+    private Set<Contact> contactAvatars = new HashSet<>();
+    private Set<MucOptions> mucAvatars = new HashSet<>();
+    private Set<MucOptions.User> userAvatars = new HashSet<>();
+    private Set<Account> accountAvatars = new HashSet<>();
+    private boolean conversationUi = false;
+    private boolean rosterUi = false;
+    private boolean mucRosterUi = false;
+    private boolean accountUi = false;
+    private Set<Conversation> conversations = new HashSet<>();
+    private Set<Contact> contacts = new HashSet<>();
+    private Set<Conversation> mucRosters = new HashSet<>();
+
+    private boolean scheduled = false;
+    private long lastFlush = 0;
+    private int pending = 0;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    PresenceCoalescer(final XmppConnectionService service) {
+        this.mXmppConnectionService = service;
+    }
+
+    public synchronized void clearAvatar(final Contact contact) {
+        contactAvatars.add(contact);
+        schedule();
+    }
+
+    public synchronized void clearAvatar(final MucOptions mucOptions) {
+        if (mucOptions == null) {
+            return;
+        }
+        mucAvatars.add(mucOptions);
+        schedule();
+    }
+
+    public synchronized void clearAvatar(final MucOptions.User user) {
+        userAvatars.add(user);
+        schedule();
+    }
+
+    public synchronized void clearAvatar(final Account account) {
+        accountAvatars.add(account);
+        schedule();
+    }
+
+    public synchronized void updateConversationUi() {
+        conversationUi = true;
+        schedule();
+    }
+
+    public synchronized void updateConversationUi(final Conversation conversation) {
+        conversations.add(conversation);
+        schedule();
+    }
+
+    public synchronized void updateRosterUi() {
+        rosterUi = true;
+        schedule();
+    }
+
+    public synchronized void updateRosterUi(final Contact contact) {
+        contacts.add(contact);
+        schedule();
+    }
+
+    public synchronized void updateMucRosterUi() {
+        mucRosterUi = true;
+        schedule();
+    }
+
+    public synchronized void updateMucRosterUi(final Conversation conversation) {
+        mucRosters.add(conversation);
+        schedule();
+    }
+
+    public synchronized void updateAccountUi() {
+        accountUi = true;
+        schedule();
+    }
+
+    private void schedule() {
+        requests.incrementAndGet();
+        ++pending;
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        final long delay = Math.max(0, lastFlush + Config.PRESENCE_UI_INTERVAL - SystemClock.elapsedRealtime());
+        SCHEDULED_EXECUTOR_SERVICE.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        final Set<Contact> contactAvatars;
+        final Set<MucOptions> mucAvatars;
+        final Set<MucOptions.User> userAvatars;
+        final Set<Account> accountAvatars;
+        final Set<Conversation> conversations;
+        final Set<Contact> contacts;
+        final Set<Conversation> mucRosters;
+        final boolean conversationUi, rosterUi, mucRosterUi, accountUi;
+        final int batch;
+        synchronized (this) {
+            contactAvatars = this.contactAvatars;
+            mucAvatars = this.mucAvatars;
+            userAvatars = this.userAvatars;
+            accountAvatars = this.accountAvatars;
+            this.contactAvatars = new HashSet<>();
+            this.mucAvatars = new HashSet<>();
+            this.userAvatars = new HashSet<>();
+            this.accountAvatars = new HashSet<>();
+            conversations = this.conversations;
+            contacts = this.contacts;
+            mucRosters = this.mucRosters;
+            this.conversations = new HashSet<>();
+            this.contacts = new HashSet<>();
+            this.mucRosters = new HashSet<>();
+            conversationUi = this.conversationUi;
+            rosterUi = this.rosterUi;
+            mucRosterUi = this.mucRosterUi;
+            accountUi = this.accountUi;
+            this.conversationUi = false;
+            this.rosterUi = false;
+            this.mucRosterUi = false;
+            this.accountUi = false;
+            scheduled = false;
+            lastFlush = SystemClock.elapsedRealtime();
+            batch = pending;
+            pending = 0;
+            flushes.incrementAndGet();
+        }
+        try {
+            final AvatarService avatarService = mXmppConnectionService.getAvatarService();
+            for (final Contact contact : contactAvatars) {
+                avatarService.clear(contact);
+            }
+            for (final MucOptions mucOptions : mucAvatars) {
+                avatarService.clear(mucOptions);
+            }
+            for (final MucOptions.User user : userAvatars) {
+                avatarService.clear(user);
+            }
+            for (final Account account : accountAvatars) {
+                avatarService.clear(account);
+            }
+            if (conversationUi) {
+                mXmppConnectionService.updateConversationUi();
+            } else {
+                for (final Conversation conversation : conversations) {
+                    mXmppConnectionService.updateConversationUi(conversation);
+                }
+            }
+            if (rosterUi) {
+                mXmppConnectionService.updateRosterUi();
+            } else {
+                for (final Contact contact : contacts) {
+                    mXmppConnectionService.updateRosterUi(contact);
+                }
+            }
+            if (mucRosterUi) {
+                mXmppConnectionService.updateMucRosterUi();
+            } else {
+                for (final Conversation conversation : mucRosters) {
+                    mXmppConnectionService.updateMucRosterUi(conversation);
+                }
+            }
+            if (accountUi) {
+                mXmppConnectionService.updateAccountUi();
+            }
+        } catch (final RuntimeException e) {
+            Log.d(Config.LOGTAG, "unable to notify about presence changes", e);
+        }
+        if (batch > 1) {
+            Log.d(Config.LOGTAG, "folded " + batch + " presence notifications into one (" + getStatistics() + ")");
+        }
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * @return the number of requests that did not cause a notification of their own
+     */
+    public long getFolded() {
+        return requests.get() - flushes.get();
+    }
+
+    public String getStatistics() {
+        final long requests = this.requests.get();
+        final long flushes = this.flushes.get();
+        return "requests=" + requests + ", flushes=" + flushes + ", folded=" + (requests - flushes);
+    }
+}
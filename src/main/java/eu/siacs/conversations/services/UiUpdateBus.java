@@ -0,0 +1,229 @@
+package eu.siacs.conversations.services;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Contact;
+import eu.siacs.conversations.entities.Conversation;
+
+/**
+ * Notifies the conversation, roster, MUC roster and account listeners of
+ * {@link XmppConnectionService} at most once every {@link Config#UI_UPDATE_INTERVAL}. Updates that
+ * are posted in between are folded into the next notification, so a burst of messages, receipts
+ * or chat states results in one redraw per frame instead of one per stanza.
+ * <p>
+ * Updates can name the conversation, contact or account they are about. Views that want to redraw
+ * only what has changed register {@link Changes} with the respective {@link Channel} and drain
+ * them when they refresh.
+ */
+public class UiUpdateBus {
+
+    private static final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE = Executors.newSingleThreadScheduledExecutor();
+
+    private final Channel<Conversation> conversations;
+    private final Channel<Contact> contacts;
+    private final Channel<Conversation> mucRosters;
+    private final Channel<Account> accounts;
+    private final List<Channel<?>> channels;
+
+    private boolean scheduled = false;
+    private long lastDelivery = 0;
+
+    UiUpdateBus(final Runnable conversationUi, final Runnable rosterUi, final Runnable mucRosterUi, final Runnable accountUi) {
+        this.conversations = new Channel<>(conversationUi);
+        this.contacts = new Channel<>(rosterUi);
+        this.mucRosters = new Channel<>(mucRosterUi);
+        this.accounts = new Channel<>(accountUi);
+        this.channels = Arrays.asList(conversations, contacts, mucRosters, accounts);
+    }
+
+    public Channel<Conversation> getConversations() {
+        return conversations;
+    }
+
+    public Channel<Contact> getContacts() {
+        return contacts;
+    }
+
+    public Channel<Conversation> getMucRosters() {
+        return mucRosters;
+    }
+
+    public Channel<Account> getAccounts() {
+        return accounts;
+    }
+
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        final long delay = Math.max(0, lastDelivery + Config.UI_UPDATE_INTERVAL - SystemClock.elapsedRealtime());
+        SCHEDULED_EXECUTOR_SERVICE.schedule(this::deliver, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void deliver() {
+        final List<Runnable> listeners = new ArrayList<>(channels.size());
+        synchronized (this) {
+            scheduled = false;
+            lastDelivery = SystemClock.elapsedRealtime();
+            for (final Channel<?> channel : channels) {
+                if (channel.collect()) {
+                    listeners.add(channel.listeners);
+                }
+            }
+        }
+        for (final Runnable runnable : listeners) {
+            try {
+                runnable.run();
+            } catch (final RuntimeException e) {
+                Log.d(Config.LOGTAG, "unable to notify UI listeners", e);
+            }
+        }
+    }
+
+    public synchronized long getPosted() {
+        long posted = 0;
+        for (final Channel<?> channel : channels) {
+            posted += channel.posted;
+        }
+        return posted;
+    }
+
+    public synchronized long getDelivered() {
+        long delivered = 0;
+        for (final Channel<?> channel : channels) {
+            delivered += channel.delivered;
+        }
+        return delivered;
+    }
+
+    /**
+     * @return the number of updates that did not cause a notification of their own
+     */
+    public long getSuppressed() {
+        return getPosted() - getDelivered();
+    }
+
+    public String getStatistics() {
+        final long posted = getPosted();
+        final long delivered = getDelivered();
+        return "posted=" + posted + ", delivered=" + delivered + ", suppressed=" + (posted - delivered);
+    }
+
+    /**
+     * The updates of one kind of listener and the entities they have been posted for.
+     * Synchronized on the bus.
+     */
+    public final class Channel<T> {
+
+        private final Runnable listeners;
+        private final Set<Changes<T>> trackers = Collections.newSetFromMap(new WeakHashMap<Changes<T>, Boolean>());
+        private Set<T> changed = new HashSet<>();
+        private boolean everything = false;
+        private boolean pending = false;
+        private long posted = 0;
+        private long delivered = 0;
+
+        private Channel(final Runnable listeners) {
+            this.listeners = listeners;
+        }
+
+        /**
+         * @param entity what the update is about or null if that is not known
+         */
+        void post(final T entity) {
+            synchronized (UiUpdateBus.this) {
+                ++posted;
+                pending = true;
+                if (entity == null) {
+                    everything = true;
+                } else if (!everything) {
+                    changed.add(entity);
+                }
+                schedule();
+            }
+        }
+
+        /**
+         * Starts recording the entities of delivered updates into the given changes. Everything
+         * is considered changed until the first time they are drained. Changes are held weakly
+         * and should nevertheless be untracked once the view is gone.
+         */
+        public void track(final Changes<T> changes) {
+            changes.invalidate();
+            synchronized (UiUpdateBus.this) {
+                trackers.add(changes);
+            }
+        }
+
+        public void untrack(final Changes<T> changes) {
+            synchronized (UiUpdateBus.this) {
+                trackers.remove(changes);
+            }
+        }
+
+        private boolean collect() {
+            if (!pending) {
+                return false;
+            }
+            for (final Changes<T> changes : trackers) {
+                changes.add(changed, everything);
+            }
+            changed = new HashSet<>();
+            everything = false;
+            pending = false;
+            ++delivered;
+            return true;
+        }
+    }
+
+    /**
+     * The entities that have changed since a view last refreshed.
+     */
+    public static final class Changes<T> {
+
+        private Set<T> changed = new HashSet<>();
+        private boolean everything = true;
+
+        private synchronized void add(final Set<T> changed, final boolean everything) {
+            if (this.everything) {
+                return;
+            }
+            if (everything) {
+                invalidate();
+            } else {
+                this.changed.addAll(changed);
+            }
+        }
+
+        public synchronized void invalidate() {
+            this.changed = new HashSet<>();
+            this.everything = true;
+        }
+
+        /**
+         * @return the entities that changed since the last call or null if it is not known what
+         * changed, for example because an update was posted without naming what it was about
+         */
+        public synchronized Set<T> drain() {
+            final Set<T> changed = this.everything ? null : this.changed;
+            this.changed = new HashSet<>();
+            this.everything = false;
+            return changed;
+        }
+    }
+}
@@ -64,6 +64,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
@@ -72,7 +73,6 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -190,7 +190,9 @@ public class XmppConnectionService extends Service {
     private final SerialSingleThreadExecutor mNotificationExecutor = new SerialSingleThreadExecutor("NotificationExecutor");
     private final ReplacingTaskManager mRosterSyncTaskManager = new ReplacingTaskManager();
     private final IBinder mBinder = new XmppConnectionBinder();
-    private final List<Conversation> conversations = new CopyOnWriteArrayList<>();
+    private final ConversationRegistry conversationRegistry = new ConversationRegistry();
+    private final List<Conversation> conversations = conversationRegistry.getConversations();
+    private final ConversationSorter conversationSorter = new ConversationSorter();
     private final IqGenerator mIqGenerator = new IqGenerator(this);
     private final Set<String> mInProgressAvatarFetches = new HashSet<>();
     private final Set<String> mOmittedPepAvatarFetches = new HashSet<>();
@@ -235,6 +237,8 @@ public class XmppConnectionService extends Service {
     private final JingleConnectionManager mJingleConnectionManager = new JingleConnectionManager(this);
     private final HttpConnectionManager mHttpConnectionManager = new HttpConnectionManager(this);
     private final AvatarService mAvatarService = new AvatarService(this);
+    private final PresenceCoalescer mPresenceCoalescer = new PresenceCoalescer(this);
+    private final UiUpdateBus mUiUpdateBus = new UiUpdateBus(this::deliverConversationUi, this::deliverRosterUi, this::deliverMucRosterUi, this::deliverAccountUi);
     private final MessageArchiveService mMessageArchiveService = new MessageArchiveService(this);
     private final PushManagementService mPushManagementService = new PushManagementService(this);
     private final QuickConversationsService mQuickConversationsService = new QuickConversationsService(this);
@@ -261,17 +265,14 @@ public class XmppConnectionService extends Service {
             }
 
 
-            final Jid bare = to.asBareJid();
-
-            for (final Conversation conversation : getConversations()) {
-                if (conversation.getAccount() == account && conversation.getJid().asBareJid().equals(bare)) {
-                    final Message message = conversation.findUnsentMessageWithUuid(id);
-                    if (message != null) {
-                        message.setStatus(Message.STATUS_SEND);
-                        message.setErrorMessage(null);
-                        databaseBackend.updateMessage(message, false);
-                        return true;
-                    }
+            final Conversation conversation = conversationRegistry.find(account, to);
+            if (conversation != null) {
+                final Message message = conversation.findUnsentMessageWithUuid(id);
+                if (message != null) {
+                    message.setStatus(Message.STATUS_SEND);
+                    message.setErrorMessage(null);
+                    databaseBackend.updateMessage(message, false);
+                    return true;
                 }
             }
             return false;
@@ -533,6 +534,14 @@ public class XmppConnectionService extends Service {
         return this.mAvatarService;
     }
 
+    public PresenceCoalescer getPresenceCoalescer() {
+        return this.mPresenceCoalescer;
+    }
+
+    public UiUpdateBus getUiUpdateBus() {
+        return this.mUiUpdateBus;
+    }
+
     public void attachLocationToConversation(final Conversation conversation, final Uri uri, final UiCallback<Message> callback) {
         int encryption = conversation.getNextEncryption();
         if (encryption == Message.ENCRYPTION_PGP) {
@@ -622,7 +631,7 @@ public class XmppConnectionService extends Service {
     }
 
     public Conversation find(final Account account, final Jid jid) {
-        return find(getConversations(), account, jid);
+        return conversationRegistry.find(account, jid);
     }
 
     public boolean isMuc(final Account account, final Jid jid) {
@@ -1599,7 +1608,7 @@ public class XmppConnectionService extends Service {
                     Log.e(Config.LOGTAG, "error updated message in DB after edit");
                 }
             }
-            updateConversationUi();
+            updateConversationUi(conversation);
         }
         if (packet != null) {
             if (delay) {
@@ -1864,8 +1873,8 @@ public class XmppConnectionService extends Service {
             }
             Log.d(Config.LOGTAG, "restoring conversations...");
             final long startTimeConversationsRestore = SystemClock.elapsedRealtime();
-            this.conversations.addAll(databaseBackend.getConversations(Conversation.STATUS_AVAILABLE));
-            for (Iterator<Conversation> iterator = conversations.listIterator(); iterator.hasNext(); ) {
+            final List<Conversation> restored = databaseBackend.getConversations(Conversation.STATUS_AVAILABLE);
+            for (Iterator<Conversation> iterator = restored.iterator(); iterator.hasNext(); ) {
                 Conversation conversation = iterator.next();
                 Account account = accountLookupTable.get(conversation.getAccountUuid());
                 if (account != null) {
@@ -1875,6 +1884,7 @@ public class XmppConnectionService extends Service {
                     iterator.remove();
                 }
             }
+            this.conversationRegistry.addAll(restored);
             long diffConversationsRestore = SystemClock.elapsedRealtime() - startTimeConversationsRestore;
             Log.d(Config.LOGTAG, "finished restoring conversations in " + diffConversationsRestore + "ms");
             Runnable runnable = () -> {
@@ -1895,28 +1905,42 @@ public class XmppConnectionService extends Service {
                 final long startMessageRestore = SystemClock.elapsedRealtime();
                 final Conversation quickLoad = QuickLoader.get(this.conversations);
                 if (quickLoad != null) {
-                    restoreMessages(quickLoad);
+                    restoreMessages(quickLoad, databaseBackend.getMessages(quickLoad, Config.PAGE_SIZE));
                     updateConversationUi();
                     final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
                     Log.d(Config.LOGTAG, "quickly restored " + quickLoad.getName() + " after " + diffMessageRestore + "ms");
                 }
-                for (Conversation conversation : this.conversations) {
+                final Map<String, Conversation> remaining = new HashMap<>();
+                for (final Conversation conversation : this.conversations) {
                     if (quickLoad != conversation) {
-                        restoreMessages(conversation);
+                        remaining.put(conversation.getUuid(), conversation);
                     }
                 }
+                final AtomicLong lastUiUpdate = new AtomicLong(SystemClock.elapsedRealtime());
+                final AtomicLong firstRestored = new AtomicLong(-1);
+                databaseBackend.readLatestMessages(remaining, Conversation.STATUS_AVAILABLE, Config.PAGE_SIZE, (conversation, messages) -> {
+                    restoreMessages(conversation, messages);
+                    final long now = SystemClock.elapsedRealtime();
+                    firstRestored.compareAndSet(-1, now - startMessageRestore);
+                    //publish conversations as they come in but do not redraw for every single one
+                    if (now - lastUiUpdate.get() >= Config.REFRESH_UI_INTERVAL) {
+                        lastUiUpdate.set(now);
+                        updateConversationUi();
+                    }
+                });
                 mNotificationService.finishBacklog(false);
                 restoredFromDatabaseLatch.countDown();
                 final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
-                Log.d(Config.LOGTAG, "finished restoring messages in " + diffMessageRestore + "ms");
+                Log.d(Config.LOGTAG, "finished restoring messages of " + this.conversations.size() + " conversations in " + diffMessageRestore + "ms (first after " + firstRestored.get() + "ms)");
                 updateConversationUi();
+                Log.d(Config.LOGTAG, "ui updates so far: " + mUiUpdateBus.getStatistics());
             };
             mDatabaseReaderExecutor.execute(runnable); //will contain one write command (expiry) but that's fine
         }
     }
 
-    private void restoreMessages(Conversation conversation) {
-        conversation.addAll(0, databaseBackend.getMessages(conversation, Config.PAGE_SIZE));
+    private void restoreMessages(final Conversation conversation, final List<Message> messages) {
+        conversation.addAll(0, messages);
         conversation.findUnsentTextMessages(message -> markMessage(message, Message.STATUS_WAITING));
         conversation.findUnreadMessages(message -> mNotificationService.pushFromBacklog(message));
     }
@@ -2003,15 +2027,7 @@ public class XmppConnectionService extends Service {
     }
 
     public void populateWithOrderedConversations(final List<Conversation> list, final boolean includeNoFileUpload, final boolean sort) {
-        final List<String> orderedUuids;
-        if (sort) {
-            orderedUuids = null;
-        } else {
-            orderedUuids = new ArrayList<>();
-            for (Conversation conversation : list) {
-                orderedUuids.add(conversation.getUuid());
-            }
-        }
+        final List<Conversation> keepOrder = sort ? null : new ArrayList<>(list);
         list.clear();
         if (includeNoFileUpload) {
             list.addAll(getConversations());
@@ -2023,21 +2039,10 @@ public class XmppConnectionService extends Service {
                 }
             }
         }
-        try {
-            if (orderedUuids != null) {
-                Collections.sort(list, (a, b) -> {
-                    final int indexA = orderedUuids.indexOf(a.getUuid());
-                    final int indexB = orderedUuids.indexOf(b.getUuid());
-                    if (indexA == -1 || indexB == -1 || indexA == indexB) {
-                        return a.compareTo(b);
-                    }
-                    return indexA - indexB;
-                });
-            } else {
-                Collections.sort(list);
-            }
-        } catch (IllegalArgumentException e) {
-            //ignore
+        if (keepOrder != null) {
+            conversationSorter.sort(list, keepOrder);
+        } else {
+            conversationSorter.sort(list);
         }
     }
 
@@ -2050,7 +2055,13 @@ public class XmppConnectionService extends Service {
         Log.d(Config.LOGTAG, "load more messages for " + conversation.getName() + " prior to " + MessageGenerator.getTimestamp(timestamp));
         final Runnable runnable = () -> {
             final Account account = conversation.getAccount();
-            List<Message> messages = databaseBackend.getMessages(conversation, 50, timestamp);
+            final Message oldest = conversation.getOldestLoadedMessage();
+            final List<Message> messages;
+            if (oldest != null && oldest.getTimeSent() == timestamp) {
+                messages = databaseBackend.getMessages(conversation, 50, oldest);
+            } else {
+                messages = databaseBackend.getMessages(conversation, 50, timestamp);
+            }
             if (messages.size() > 0) {
                 conversation.addAll(0, messages);
                 callback.onMoreMessagesLoaded(messages.size(), conversation);
@@ -2088,12 +2099,15 @@ public class XmppConnectionService extends Service {
      */
     public List<Conversation> findAllConferencesWith(Contact contact) {
         final ArrayList<Conversation> results = new ArrayList<>();
-        for (final Conversation c : conversations) {
-            if (c.getMode() != Conversation.MODE_MULTI) {
-                continue;
+        final Jid jid = contact.getJid().asBareJid();
+        for (final Account account : this.accounts) {
+            final Conversation conference = conversationRegistry.find(account, jid);
+            if (conference != null && conference.getMode() == Conversation.MODE_MULTI) {
+                results.add(conference);
             }
-            final MucOptions mucOptions = c.getMucOptions();
-            if (c.getJid().asBareJid().equals(contact.getJid().asBareJid()) || (mucOptions != null && mucOptions.isContactInRoom(contact))) {
+        }
+        for (final Conversation c : conversationRegistry.findConferencesWithOccupant(jid)) {
+            if (c.getMode() == Conversation.MODE_MULTI && !results.contains(c)) {
                 results.add(c);
             }
         }
@@ -2190,7 +2204,7 @@ public class XmppConnectionService extends Service {
             final Runnable runnable = () -> {
                 if (loadMessagesFromDb) {
                     c.addAll(0, databaseBackend.getMessages(c, Config.PAGE_SIZE));
-                    updateConversationUi();
+                    updateConversationUi(c);
                     c.messagesLoaded.set(true);
                 }
                 if (account.getXmppConnection() != null
@@ -2214,7 +2228,7 @@ public class XmppConnectionService extends Service {
             } else {
                 runnable.run();
             }
-            this.conversations.add(conversation);
+            this.conversationRegistry.add(conversation);
             updateConversationUi();
             return conversation;
         }
@@ -2251,7 +2265,7 @@ public class XmppConnectionService extends Service {
                 }
             }
             updateConversation(conversation);
-            this.conversations.remove(conversation);
+            this.conversationRegistry.remove(conversation);
             updateConversationUi();
         }
     }
@@ -2409,7 +2423,7 @@ public class XmppConnectionService extends Service {
                             leaveMuc(conversation);
                         }
                     }
-                    conversations.remove(conversation);
+                    conversationRegistry.remove(conversation);
                     mNotificationService.clear(conversation);
                 }
             }
@@ -3416,7 +3430,7 @@ public class XmppConnectionService extends Service {
 
     public void updateMessage(Message message, boolean includeBody) {
         databaseBackend.updateMessage(message, includeBody);
-        updateConversationUi();
+        updateConversationUi(message);
     }
 
     public void createMessageAsync(final Message message) {
@@ -3427,7 +3441,7 @@ public class XmppConnectionService extends Service {
         if (!databaseBackend.updateMessage(message, uuid)) {
             Log.e(Config.LOGTAG, "error updated message in DB after edit");
         }
-        updateConversationUi();
+        updateConversationUi(message);
     }
 
     protected void syncDirtyContacts(Account account) {
@@ -4008,7 +4022,7 @@ public class XmppConnectionService extends Service {
         message.setErrorMessage(errorMessage);
         message.setStatus(status);
         databaseBackend.updateMessage(message, includeBody);
-        updateConversationUi();
+        updateConversationUi(message);
         if (oldStatus != status && status == Message.STATUS_SEND_FAILED) {
             mNotificationService.pushFailedDelivery(message);
         }
@@ -4086,6 +4100,19 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateConversationUi() {
+        mUiUpdateBus.getConversations().post(null);
+    }
+
+    public void updateConversationUi(final Conversation conversation) {
+        mUiUpdateBus.getConversations().post(conversation);
+    }
+
+    private void updateConversationUi(final Message message) {
+        final Conversational conversation = message.getConversation();
+        updateConversationUi(conversation instanceof Conversation ? (Conversation) conversation : null);
+    }
+
+    private void deliverConversationUi() {
         for (OnConversationUpdate listener : threadSafeList(this.mOnConversationUpdates)) {
             listener.onConversationUpdate();
         }
@@ -4104,12 +4131,28 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateAccountUi() {
+        mUiUpdateBus.getAccounts().post(null);
+    }
+
+    public void updateAccountUi(final Account account) {
+        mUiUpdateBus.getAccounts().post(account);
+    }
+
+    private void deliverAccountUi() {
         for (OnAccountUpdate listener : threadSafeList(this.mOnAccountUpdates)) {
             listener.onAccountUpdate();
         }
     }
 
     public void updateRosterUi() {
+        mUiUpdateBus.getContacts().post(null);
+    }
+
+    public void updateRosterUi(final Contact contact) {
+        mUiUpdateBus.getContacts().post(contact);
+    }
+
+    private void deliverRosterUi() {
         for (OnRosterUpdate listener : threadSafeList(this.mOnRosterUpdates)) {
             listener.onRosterUpdate();
         }
@@ -4135,6 +4178,14 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateMucRosterUi() {
+        mUiUpdateBus.getMucRosters().post(null);
+    }
+
+    public void updateMucRosterUi(final Conversation conversation) {
+        mUiUpdateBus.getMucRosters().post(conversation);
+    }
+
+    private void deliverMucRosterUi() {
         for (OnMucRosterUpdate listener : threadSafeList(this.mOnMucRosterUpdate)) {
             listener.onMucRosterUpdate();
         }
@@ -4165,12 +4216,7 @@ public class XmppConnectionService extends Service {
     }
 
     public Conversation findConversationByUuid(String uuid) {
-        for (Conversation conversation : getConversations()) {
-            if (conversation.getUuid().equals(uuid)) {
-                return conversation;
-            }
-        }
-        return null;
+        return conversationRegistry.findByUuid(uuid);
     }
 
     public Conversation findUniqueConversationByJid(XmppUri xmppUri) {
@@ -4203,7 +4249,7 @@ public class XmppConnectionService extends Service {
                 }
             };
             mDatabaseWriterExecutor.execute(runnable);
-            updateConversationUi();
+            updateConversationUi(conversation);
             updateUnreadCountBadge();
             return readMessages;
         } else {
@@ -4524,7 +4570,7 @@ public class XmppConnectionService extends Service {
                 if (conversation.getAccount() == account
                         && conversation.getMode() == Conversation.MODE_SINGLE
                         && jidMatches) {
-                    this.conversations.remove(conversation);
+                    this.conversationRegistry.remove(conversation);
                     markRead(conversation);
                     conversation.setStatus(Conversation.STATUS_ARCHIVED);
                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": archiving conversation " + conversation.getJid().asBareJid() + " because jid was blocked");
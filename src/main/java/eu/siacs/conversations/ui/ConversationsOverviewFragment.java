@@ -54,15 +54,19 @@ import com.google.android.material.snackbar.Snackbar;
 import com.google.common.collect.Collections2;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
 import eu.siacs.conversations.databinding.FragmentConversationsOverviewBinding;
 import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Contact;
 import eu.siacs.conversations.entities.Conversation;
 import eu.siacs.conversations.entities.Conversational;
+import eu.siacs.conversations.services.UiUpdateBus;
 import eu.siacs.conversations.ui.adapter.ConversationAdapter;
 import eu.siacs.conversations.ui.interfaces.OnConversationArchived;
 import eu.siacs.conversations.ui.interfaces.OnConversationSelected;
@@ -90,6 +94,10 @@ public class ConversationsOverviewFragment extends XmppFragment {
 	private XmppActivity activity;
 	private float mSwipeEscapeVelocity = 0f;
 	private final PendingActionHelper pendingActionHelper = new PendingActionHelper();
+	private final UiUpdateBus.Changes<Conversation> conversationChanges = new UiUpdateBus.Changes<>();
+	private final UiUpdateBus.Changes<Conversation> mucRosterChanges = new UiUpdateBus.Changes<>();
+	private final UiUpdateBus.Changes<Contact> contactChanges = new UiUpdateBus.Changes<>();
+	private final UiUpdateBus.Changes<Account> accountChanges = new UiUpdateBus.Changes<>();
 
 	private final ItemTouchHelper.SimpleCallback callback = new ItemTouchHelper.SimpleCallback(0,LEFT|RIGHT) {
 		@Override
@@ -254,6 +262,13 @@ public class ConversationsOverviewFragment extends XmppFragment {
 	public void onDestroyView() {
 		Log.d(Config.LOGTAG,"ConversationsOverviewFragment.onDestroyView()");
 		super.onDestroyView();
+		if (this.activity != null && this.activity.xmppConnectionService != null) {
+			final UiUpdateBus bus = this.activity.xmppConnectionService.getUiUpdateBus();
+			bus.getConversations().untrack(conversationChanges);
+			bus.getMucRosters().untrack(mucRosterChanges);
+			bus.getContacts().untrack(contactChanges);
+			bus.getAccounts().untrack(accountChanges);
+		}
 		this.binding = null;
 		this.conversationsAdapter = null;
 		this.touchHelper = null;
@@ -314,6 +329,11 @@ public class ConversationsOverviewFragment extends XmppFragment {
 
 	@Override
 	public void onBackendConnected() {
+		final UiUpdateBus bus = this.activity.xmppConnectionService.getUiUpdateBus();
+		bus.getConversations().track(conversationChanges);
+		bus.getMucRosters().track(mucRosterChanges);
+		bus.getContacts().track(contactChanges);
+		bus.getAccounts().track(accountChanges);
 		refresh();
 	}
 
@@ -400,6 +420,7 @@ public class ConversationsOverviewFragment extends XmppFragment {
 			Log.d(Config.LOGTAG,"ConversationsOverviewFragment.refresh() skipped updated because view binding or activity was null");
 			return;
 		}
+		final List<Conversation> previous = new ArrayList<>(this.conversations);
 		this.activity.xmppConnectionService.populateWithOrderedConversations(this.conversations);
 		Conversation removed = this.swipedConversation.peek();
 		if (removed != null) {
@@ -409,13 +430,47 @@ public class ConversationsOverviewFragment extends XmppFragment {
 				pendingActionHelper.execute();
 			}
 		}
-		this.conversationsAdapter.notifyDataSetChanged();
+		final Set<Conversation> changed = drainChanges();
+		//refreshes that were not caused by the update bus have nothing to drain and redraw everything
+		if (changed == null || changed.isEmpty() || !previous.equals(this.conversations)) {
+			this.conversationsAdapter.notifyDataSetChanged();
+		} else {
+			for (int i = 0; i < this.conversations.size(); ++i) {
+				if (changed.contains(this.conversations.get(i))) {
+					this.conversationsAdapter.notifyItemChanged(i);
+				}
+			}
+		}
 		ScrollState scrollState = pendingScrollState.pop();
 		if (scrollState != null) {
 			setScrollPosition(scrollState);
 		}
 	}
 
+	/**
+	 * @return the conversations whose rows need to be redrawn since the last refresh or null if
+	 * all of them do
+	 */
+	private Set<Conversation> drainChanges() {
+		final Set<Conversation> conversations = conversationChanges.drain();
+		final Set<Conversation> mucRosters = mucRosterChanges.drain();
+		final Set<Contact> contacts = contactChanges.drain();
+		final Set<Account> accounts = accountChanges.drain();
+		if (conversations == null || mucRosters == null || contacts == null || accounts == null || !accounts.isEmpty()) {
+			return null;
+		}
+		final Set<Conversation> changed = new HashSet<>(conversations);
+		changed.addAll(mucRosters);
+		if (!contacts.isEmpty()) {
+			for (final Conversation conversation : this.conversations) {
+				if (contacts.contains(conversation.getContact())) {
+					changed.add(conversation);
+				}
+			}
+		}
+		return changed;
+	}
+
 	private void setScrollPosition(ScrollState scrollPosition) {
 		if (scrollPosition != null) {
 			LinearLayoutManager layoutManager = (LinearLayoutManager) binding.list.getLayoutManager();
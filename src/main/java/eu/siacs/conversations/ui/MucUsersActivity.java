@@ -17,6 +17,7 @@ import androidx.databinding.DataBindingUtil;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 
 import eu.siacs.conversations.R;
@@ -37,7 +38,7 @@ public class MucUsersActivity extends XmppActivity implements XmppConnectionServ
 
     private EditText mSearchEditText;
 
-    private ArrayList<MucOptions.User> allUsers = new ArrayList<>();
+    private List<MucOptions.User> allUsers = Collections.emptyList();
 
     @Override
     protected void refreshUiReal() {
@@ -55,8 +56,7 @@ public class MucUsersActivity extends XmppActivity implements XmppConnectionServ
 
     private void loadAndSubmitUsers() {
         if (mConversation != null) {
-            allUsers = mConversation.getMucOptions().getUsers();
-            Collections.sort(allUsers);
+            allUsers = mConversation.getMucOptions().getSortedUsers();
             submitFilteredList(mSearchEditText != null ? mSearchEditText.getText().toString() : null);
         }
     }
@@ -41,6 +41,7 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.EditText;
+import android.widget.ListView;
 
 import androidx.databinding.DataBindingUtil;
 
@@ -67,6 +68,7 @@ import eu.siacs.conversations.ui.util.ShareUtil;
 import eu.siacs.conversations.ui.util.StyledAttributes;
 import eu.siacs.conversations.utils.FtsUtils;
 import eu.siacs.conversations.utils.MessageUtils;
+import eu.siacs.conversations.utils.UIHelper;
 
 import static eu.siacs.conversations.ui.util.SoftKeyboardUtils.hideSoftKeyboard;
 import static eu.siacs.conversations.ui.util.SoftKeyboardUtils.showKeyboard;
@@ -272,6 +274,30 @@ public class SearchActivity extends XmppActivity implements TextWatcher, OnSearc
 		});
 	}
 
+	@Override
+	public void onOlderSearchResultsAvailable(List<String> term, List<Message> messages) {
+		runOnUiThread(() -> {
+			if (messages.isEmpty()) {
+				return;
+			}
+			final List<Message> older = new ArrayList<>(messages);
+			DateSeparator.addAll(older);
+			int added = older.size();
+			//the results shown so far start with a date separator that might now be redundant
+			if (this.messages.size() > 1 && UIHelper.sameDay(older.get(older.size() - 1).getTimeSent(), this.messages.get(1).getTimeSent())) {
+				this.messages.remove(0);
+				--added;
+			}
+			final ListView list = this.binding.searchResults;
+			final View first = list.getChildAt(0);
+			final int position = list.getFirstVisiblePosition();
+			final int top = first == null ? 0 : first.getTop();
+			this.messages.addAll(0, older);
+			messageListAdapter.notifyDataSetChanged();
+			list.setSelectionFromTop(position + added, top);
+		});
+	}
+
 	@Override
 	public void onContactPictureClicked(Message message) {
 		String fingerprint;
@@ -62,6 +62,7 @@ import eu.siacs.conversations.ui.service.AudioPlayer;
 import eu.siacs.conversations.ui.text.DividerSpan;
 import eu.siacs.conversations.ui.text.QuoteSpan;
 import eu.siacs.conversations.ui.util.AvatarWorkerTask;
+import eu.siacs.conversations.ui.util.MessageBodyCache;
 import eu.siacs.conversations.ui.util.MyLinkify;
 import eu.siacs.conversations.ui.util.ViewUtil;
 import eu.siacs.conversations.ui.widget.ClickableMovementMethod;
@@ -91,6 +92,10 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     private OnContactPictureClicked mOnContactPictureClickedListener;
     private OnContactPictureLongClicked mOnContactPictureLongClickedListener;
     private boolean mUseGreenBackground = false;
+    private final MessageBodyCache bodyCache = new MessageBodyCache(this::renderBody);
+    private Integer textColorOnLight = null;
+    private Integer textColorOnDark = null;
+    private int lastBoundPosition = 0;
 
     public MessageAdapter(XmppActivity activity, List<Message> messages) {
         super(activity, 0, messages);
@@ -425,83 +430,148 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         viewHolder.messageBody.setTypeface(null, Typeface.NORMAL);
 
         if (message.getBody() != null) {
-            final String nick = UIHelper.getMessageDisplayName(message);
-            SpannableStringBuilder body = message.getMergedBody();
-            boolean hasMeCommand = message.hasMeCommand();
+            final int textColor = viewHolder.messageBody.getCurrentTextColor();
+            if (darkBackground) {
+                textColorOnDark = textColor;
+            } else {
+                textColorOnLight = textColor;
+            }
+            final MessageBodyCache.Key key = MessageBodyCache.Key.of(message, darkBackground, textColor, highlightedTerm);
+            viewHolder.messageBody.setAutoLinkMask(0);
+            viewHolder.messageBody.setText(bodyCache.get(key));
+            viewHolder.messageBody.setMovementMethod(ClickableMovementMethod.getInstance());
+        } else {
+            viewHolder.messageBody.setText("");
+            viewHolder.messageBody.setTextIsSelectable(false);
+        }
+    }
+
+    /**
+     * Builds the styled body of a text message. Runs on a background thread when the body is
+     * prefetched and must therefore only rely on the captured key.
+     */
+    private CharSequence renderBody(final MessageBodyCache.Key key) {
+        final String nick = key.nick;
+        final boolean darkBackground = key.darkBackground;
+        SpannableStringBuilder body = key.getMergedBody();
+        boolean hasMeCommand = key.meCommand;
+        if (hasMeCommand) {
+            body = body.replace(0, Message.ME_COMMAND.length(), nick + " ");
+        }
+        if (body.length() > Config.MAX_DISPLAY_MESSAGE_CHARS) {
+            body = new SpannableStringBuilder(body, 0, Config.MAX_DISPLAY_MESSAGE_CHARS);
+            body.append("\u2026");
+        }
+        Message.MergeSeparator[] mergeSeparators = body.getSpans(0, body.length(), Message.MergeSeparator.class);
+        for (Message.MergeSeparator mergeSeparator : mergeSeparators) {
+            int start = body.getSpanStart(mergeSeparator);
+            int end = body.getSpanEnd(mergeSeparator);
+            body.setSpan(new DividerSpan(true), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        boolean startsWithQuote = handleTextQuotes(body, darkBackground);
+        if (!key.privateMessage) {
             if (hasMeCommand) {
-                body = body.replace(0, Message.ME_COMMAND.length(), nick + " ");
-            }
-            if (body.length() > Config.MAX_DISPLAY_MESSAGE_CHARS) {
-                body = new SpannableStringBuilder(body, 0, Config.MAX_DISPLAY_MESSAGE_CHARS);
-                body.append("\u2026");
-            }
-            Message.MergeSeparator[] mergeSeparators = body.getSpans(0, body.length(), Message.MergeSeparator.class);
-            for (Message.MergeSeparator mergeSeparator : mergeSeparators) {
-                int start = body.getSpanStart(mergeSeparator);
-                int end = body.getSpanEnd(mergeSeparator);
-                body.setSpan(new DividerSpan(true), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            boolean startsWithQuote = handleTextQuotes(body, darkBackground);
-            if (!message.isPrivateMessage()) {
-                if (hasMeCommand) {
-                    body.setSpan(new StyleSpan(Typeface.BOLD_ITALIC), 0, nick.length(),
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
+                body.setSpan(new StyleSpan(Typeface.BOLD_ITALIC), 0, nick.length(),
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        } else {
+            String privateMarker;
+            if (key.status <= Message.STATUS_RECEIVED) {
+                privateMarker = activity.getString(R.string.private_message);
             } else {
-                String privateMarker;
-                if (message.getStatus() <= Message.STATUS_RECEIVED) {
-                    privateMarker = activity.getString(R.string.private_message);
-                } else {
-                    Jid cp = message.getCounterpart();
-                    privateMarker = activity.getString(R.string.private_message_to, Strings.nullToEmpty(cp == null ? null : cp.getResource()));
-                }
-                body.insert(0, privateMarker);
-                int privateMarkerIndex = privateMarker.length();
-                if (startsWithQuote) {
-                    body.insert(privateMarkerIndex, "\n\n");
-                    body.setSpan(new DividerSpan(false), privateMarkerIndex, privateMarkerIndex + 2,
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                } else {
-                    body.insert(privateMarkerIndex, " ");
-                }
-                body.setSpan(new ForegroundColorSpan(getMessageTextColor(darkBackground, false)), 0, privateMarkerIndex, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                body.setSpan(new StyleSpan(Typeface.BOLD), 0, privateMarkerIndex, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                if (hasMeCommand) {
-                    body.setSpan(new StyleSpan(Typeface.BOLD_ITALIC), privateMarkerIndex + 1,
-                            privateMarkerIndex + 1 + nick.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
+                privateMarker = activity.getString(R.string.private_message_to, Strings.nullToEmpty(key.counterpartResource));
+            }
+            body.insert(0, privateMarker);
+            int privateMarkerIndex = privateMarker.length();
+            if (startsWithQuote) {
+                body.insert(privateMarkerIndex, "\n\n");
+                body.setSpan(new DividerSpan(false), privateMarkerIndex, privateMarkerIndex + 2,
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            } else {
+                body.insert(privateMarkerIndex, " ");
             }
-            if (message.getConversation().getMode() == Conversation.MODE_MULTI && message.getStatus() == Message.STATUS_RECEIVED) {
-                if (message.getConversation() instanceof Conversation) {
-                    final Conversation conversation = (Conversation) message.getConversation();
-                    Pattern pattern = NotificationService.generateNickHighlightPattern(conversation.getMucOptions().getActualNick());
-                    Matcher matcher = pattern.matcher(body);
-                    while (matcher.find()) {
-                        body.setSpan(new StyleSpan(Typeface.BOLD), matcher.start(), matcher.end(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    }
-                }
+            body.setSpan(new ForegroundColorSpan(getMessageTextColor(darkBackground, false)), 0, privateMarkerIndex, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            body.setSpan(new StyleSpan(Typeface.BOLD), 0, privateMarkerIndex, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            if (hasMeCommand) {
+                body.setSpan(new StyleSpan(Typeface.BOLD_ITALIC), privateMarkerIndex + 1,
+                        privateMarkerIndex + 1 + nick.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             }
-            Matcher matcher = Emoticons.getEmojiPattern(body).matcher(body);
+        }
+        if (key.actualNick != null) {
+            Pattern pattern = NotificationService.generateNickHighlightPattern(key.actualNick);
+            Matcher matcher = pattern.matcher(body);
             while (matcher.find()) {
-                if (matcher.start() < matcher.end()) {
-                    body.setSpan(new RelativeSizeSpan(1.2f), matcher.start(), matcher.end(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
+                body.setSpan(new StyleSpan(Typeface.BOLD), matcher.start(), matcher.end(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             }
+        }
+        Matcher matcher = Emoticons.getEmojiPattern(body).matcher(body);
+        while (matcher.find()) {
+            if (matcher.start() < matcher.end()) {
+                body.setSpan(new RelativeSizeSpan(1.2f), matcher.start(), matcher.end(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+
+        StylingHelper.format(body, key.textColor);
+        if (key.highlightedTerms != null) {
+            StylingHelper.highlight(activity, body, key.highlightedTerms, StylingHelper.isDarkText(key.textColor));
+        }
+        MyLinkify.addLinks(body, true);
+        return EmojiWrapper.transform(body);
+    }
 
-            StylingHelper.format(body, viewHolder.messageBody.getCurrentTextColor());
-            if (highlightedTerm != null) {
-                StylingHelper.highlight(activity, body, highlightedTerm, StylingHelper.isDarkText(viewHolder.messageBody));
+    /**
+     * Renders the bodies of the next few text messages in scroll direction in the background.
+     */
+    private void prefetchBodies(final int position) {
+        final int direction = position >= lastBoundPosition ? 1 : -1;
+        lastBoundPosition = position;
+        for (int i = 1; i <= Config.MESSAGE_BODY_PREFETCH; ++i) {
+            final int prefetchPosition = position + i * direction;
+            if (prefetchPosition < 0 || prefetchPosition >= getCount()) {
+                break;
+            }
+            final Message message = getItem(prefetchPosition);
+            if (message == null || message.getBody() == null || !isRenderedAsText(message)) {
+                continue;
+            }
+            final int type = getItemViewType(message);
+            if (type != SENT && type != RECEIVED) {
+                continue;
+            }
+            final boolean darkBackground = isDarkBackground(message, type);
+            final Integer textColor = darkBackground ? textColorOnDark : textColorOnLight;
+            if (textColor != null) {
+                bodyCache.prefetch(MessageBodyCache.Key.of(message, darkBackground, textColor, highlightedTerm));
             }
-            MyLinkify.addLinks(body, true);
-            viewHolder.messageBody.setAutoLinkMask(0);
-            viewHolder.messageBody.setText(EmojiWrapper.transform(body));
-            viewHolder.messageBody.setMovementMethod(ClickableMovementMethod.getInstance());
-        } else {
-            viewHolder.messageBody.setText("");
-            viewHolder.messageBody.setTextIsSelectable(false);
         }
     }
 
+    /**
+     * @return true if {@link #getView(int, View, ViewGroup)} displays the message with
+     * {@link #displayTextMessage(ViewHolder, Message, boolean, int)}
+     */
+    private static boolean isRenderedAsText(final Message message) {
+        final Transferable transferable = message.getTransferable();
+        final int encryption = message.getEncryption();
+        return !MessageUtils.unInitiatedButKnownSize(message)
+                && !message.isDeleted()
+                && (transferable == null || transferable.getStatus() == Transferable.STATUS_UPLOADING)
+                && !message.isFileOrImage()
+                && encryption != Message.ENCRYPTION_PGP
+                && encryption != Message.ENCRYPTION_DECRYPTION_FAILED
+                && encryption != Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE
+                && encryption != Message.ENCRYPTION_AXOLOTL_FAILED
+                && !message.isGeoUri()
+                && !(message.bodyIsOnlyEmojis() && message.getType() != Message.TYPE_PRIVATE)
+                && !message.treatAsDownloadable();
+    }
+
+    private boolean isDarkBackground(final Message message, final int type) {
+        final boolean omemoEncryption = message.getEncryption() == Message.ENCRYPTION_AXOLOTL;
+        final boolean isInValidSession = message.isValidInSession() && (!omemoEncryption || message.isTrusted());
+        return type == RECEIVED && (!isInValidSession || mUseGreenBackground) || activity.isDarkTheme();
+    }
+
     private void displayDownloadableMessage(ViewHolder viewHolder, final Message message, String text, final boolean darkBackground) {
         toggleWhisperInfo(viewHolder, message, darkBackground);
         viewHolder.image.setVisibility(View.GONE);
@@ -673,7 +743,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
             }
         }
 
-        boolean darkBackground = type == RECEIVED && (!isInValidSession || mUseGreenBackground) || activity.isDarkTheme();
+        boolean darkBackground = isDarkBackground(message, type);
 
         if (type == DATE_SEPARATOR) {
             if (UIHelper.today(message.getTimeSent())) {
@@ -742,6 +812,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         }
 
         resetClickListener(viewHolder.message_box, viewHolder.messageBody);
+        prefetchBodies(position);
 
         viewHolder.contact_picture.setOnClickListener(v -> {
             if (MessageAdapter.this.mOnContactPictureClickedListener != null) {
@@ -906,6 +977,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     public void updatePreferences() {
         SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(activity);
         this.mUseGreenBackground = p.getBoolean("use_green_background", activity.getResources().getBoolean(R.bool.use_green_background));
+        this.bodyCache.clear();
     }
 
 
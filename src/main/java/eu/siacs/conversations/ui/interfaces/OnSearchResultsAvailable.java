@@ -35,6 +35,14 @@ import eu.siacs.conversations.entities.Message;
 
 public interface OnSearchResultsAvailable {
 
+	/**
+	 * Replaces previous results with the newest results of a search, oldest first.
+	 */
 	void onSearchResultsAvailable(List<String> term, List<Message> messages);
 
+	/**
+	 * Adds results older than all results handed out so far, oldest first.
+	 */
+	void onOlderSearchResultsAvailable(List<String> term, List<Message> messages);
+
 }
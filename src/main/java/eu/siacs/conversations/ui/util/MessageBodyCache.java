@@ -0,0 +1,196 @@
+package eu.siacs.conversations.ui.util;
+
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.Message;
+import eu.siacs.conversations.utils.UIHelper;
+import eu.siacs.conversations.xmpp.Jid;
+
+/**
+ * Holds fully styled message bodies so binding a message view does not have to run quote
+ * handling, nick highlighting, emoji sizing, styling and linkification again. Bodies are keyed by
+ * the uuid of the (first) message and only used while everything that went into them, as captured
+ * by {@link Key}, is unchanged; a correction or a message merged into the bubble therefore simply
+ * misses the cache.
+ * <p>
+ * Bodies of messages that are about to be scrolled into view can be rendered ahead of time on a
+ * background thread with {@link #prefetch(Key)}. Rendering only ever looks at the key, never at the
+ * message itself, which may change while the body is being rendered.
+ */
+public class MessageBodyCache {
+
+    private static final int MAX_ENTRIES = 512;
+
+    private static final Executor EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final LruCache<String, Entry> entries = new LruCache<>(MAX_ENTRIES);
+    private final HashSet<String> pending = new HashSet<>();
+    private final Renderer renderer;
+    private int generation = 0;
+
+    public MessageBodyCache(final Renderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * @return the cached body or, if there is none, the body rendered on the calling thread
+     */
+    public CharSequence get(final Key key) {
+        final Entry entry = entries.get(key.uuid);
+        if (entry != null && entry.key.equals(key)) {
+            return entry.body;
+        }
+        final CharSequence body = renderer.render(key);
+        entries.put(key.uuid, new Entry(key, body));
+        return body;
+    }
+
+    public void prefetch(final Key key) {
+        final Entry entry = entries.get(key.uuid);
+        if (entry != null && entry.key.equals(key)) {
+            return;
+        }
+        final int generation;
+        synchronized (pending) {
+            if (!pending.add(key.uuid)) {
+                return;
+            }
+            generation = this.generation;
+        }
+        EXECUTOR.execute(() -> {
+            try {
+                final CharSequence body = renderer.render(key);
+                synchronized (pending) {
+                    if (generation == this.generation) {
+                        entries.put(key.uuid, new Entry(key, body));
+                    }
+                }
+            } catch (final RuntimeException e) {
+                Log.d(Config.LOGTAG, "unable to prefetch body of " + key.uuid, e);
+            } finally {
+                synchronized (pending) {
+                    pending.remove(key.uuid);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops all bodies, for example after the styling preferences have changed. Bodies that are
+     * being prefetched while this is called will not be added.
+     */
+    public void clear() {
+        synchronized (pending) {
+            ++generation;
+            entries.evictAll();
+        }
+    }
+
+    public interface Renderer {
+        /**
+         * Renders the body captured by the key. Must not touch any views or the message; may be
+         * called on a background thread.
+         */
+        CharSequence render(Key key);
+    }
+
+    private static class Entry {
+        private final Key key;
+        private final CharSequence body;
+
+        private Entry(final Key key, final CharSequence body) {
+            this.key = key;
+            this.body = body;
+        }
+    }
+
+    public static final class Key {
+        private final String uuid;
+        private final List<String> bodies;
+        private final SpannableStringBuilder mergedBody;
+        public final int status;
+        public final boolean meCommand;
+        public final boolean privateMessage;
+        public final String counterpartResource;
+        public final String nick;
+        public final String actualNick;
+        public final boolean darkBackground;
+        public final int textColor;
+        public final List<String> highlightedTerms;
+
+        private Key(final Message message, final boolean darkBackground, final int textColor, final List<String> highlightedTerms) {
+            this.uuid = message.getUuid();
+            this.bodies = new ArrayList<>();
+            Message current = message;
+            this.bodies.add(current.getBody());
+            while (current.mergeable(current.next())) {
+                current = current.next();
+                this.bodies.add(current.getBody());
+            }
+            this.mergedBody = message.getMergedBody();
+            this.status = message.getStatus();
+            this.meCommand = message.hasMeCommand();
+            this.privateMessage = message.isPrivateMessage();
+            final Jid counterpart = this.privateMessage ? message.getCounterpart() : null;
+            this.counterpartResource = counterpart == null ? null : counterpart.getResource();
+            this.nick = UIHelper.getMessageDisplayName(message);
+            if (message.getConversation() instanceof Conversation
+                    && message.getConversation().getMode() == Conversation.MODE_MULTI
+                    && message.getStatus() == Message.STATUS_RECEIVED) {
+                this.actualNick = ((Conversation) message.getConversation()).getMucOptions().getActualNick();
+            } else {
+                this.actualNick = null;
+            }
+            this.darkBackground = darkBackground;
+            this.textColor = textColor;
+            this.highlightedTerms = highlightedTerms;
+        }
+
+        /**
+         * Captures the state that goes into the rendered body. Must be called on the UI thread.
+         */
+        public static Key of(final Message message, final boolean darkBackground, final int textColor, final List<String> highlightedTerms) {
+            return new Key(message, darkBackground, textColor, highlightedTerms);
+        }
+
+        /**
+         * @return a copy of the merged body that can be modified
+         */
+        public SpannableStringBuilder getMergedBody() {
+            return new SpannableStringBuilder(mergedBody);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key key = (Key) o;
+            return status == key.status
+                    && privateMessage == key.privateMessage
+                    && darkBackground == key.darkBackground
+                    && textColor == key.textColor
+                    && uuid.equals(key.uuid)
+                    && bodies.equals(key.bodies)
+                    && Objects.equals(counterpartResource, key.counterpartResource)
+                    && Objects.equals(nick, key.nick)
+                    && Objects.equals(actualNick, key.actualNick)
+                    && Objects.equals(highlightedTerms, key.highlightedTerms);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(uuid, bodies, status, privateMessage, counterpartResource, nick, actualNick, darkBackground, textColor, highlightedTerms);
+        }
+    }
+}
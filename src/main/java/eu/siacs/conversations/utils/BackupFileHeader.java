@@ -8,8 +8,11 @@ import eu.siacs.conversations.xmpp.Jid;
 
 public class BackupFileHeader {
 
-    private static final int VERSION = 1;
+    public static final int VERSION_SQL = 1;
+    public static final int VERSION_CHUNKED = 2;
+    private static final int VERSION = VERSION_CHUNKED;
 
+    private final int version;
     private final String app;
     private final Jid jid;
     private final long timestamp;
@@ -20,7 +23,8 @@ public class BackupFileHeader {
     @Override
     public String toString() {
         return "BackupFileHeader{" +
-                "app='" + app + '\'' +
+                "version=" + version +
+                ", app='" + app + '\'' +
                 ", jid=" + jid +
                 ", timestamp=" + timestamp +
                 ", iv=" + CryptoHelper.bytesToHex(iv) +
@@ -29,6 +33,11 @@ public class BackupFileHeader {
     }
 
     public BackupFileHeader(String app, Jid jid, long timestamp, byte[] iv, byte[] salt) {
+        this(VERSION, app, jid, timestamp, iv, salt);
+    }
+
+    private BackupFileHeader(int version, String app, Jid jid, long timestamp, byte[] iv, byte[] salt) {
+        this.version = version;
         this.app = app;
         this.jid = jid;
         this.timestamp = timestamp;
@@ -37,7 +46,7 @@ public class BackupFileHeader {
     }
 
     public void write(DataOutputStream dataOutputStream) throws IOException {
-        dataOutputStream.writeInt(VERSION);
+        dataOutputStream.writeInt(version);
         dataOutputStream.writeUTF(app);
         dataOutputStream.writeUTF(jid.asBareJid().toEscapedString());
         dataOutputStream.writeLong(timestamp);
@@ -58,8 +67,12 @@ public class BackupFileHeader {
         byte[] salt = new byte[16];
         inputStream.readFully(salt);
 
-        return new BackupFileHeader(app, Jid.of(jid), timestamp, iv, salt);
+        return new BackupFileHeader(version, app, Jid.of(jid), timestamp, iv, salt);
+
+    }
 
+    public int getVersion() {
+        return version;
     }
 
     public byte[] getSalt() {
@@ -0,0 +1,209 @@
+package eu.siacs.conversations.utils;
+
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import eu.siacs.conversations.persistance.FileBackend;
+
+/**
+ * Connects to one of several candidates in the spirit of RFC 8305 (Happy Eyeballs). Attempts are
+ * started in order, each one a fixed delay after the previous one or right away when the previous
+ * one failed. The first attempt that succeeds wins; all other attempts are cancelled by closing
+ * whatever they have registered with their {@link Attempt}, and connections of attempts that
+ * succeed after the winner has been picked are closed.
+ */
+public class ConnectionRace<C, S> {
+
+    private static final int MAX_CONCURRENT_ATTEMPTS = 4;
+
+    private final List<C> candidates;
+    private final long delay;
+    private final Connector<C, S> connector;
+    private final List<Timing<C>> timings = new ArrayList<>();
+
+    public ConnectionRace(final List<C> candidates, final long delay, final Connector<C, S> connector) {
+        this.candidates = candidates;
+        this.delay = delay;
+        this.connector = connector;
+    }
+
+    /**
+     * @return the connection of the attempt that succeeded first
+     * @throws Exception the failure of the last candidate if all attempts have failed
+     */
+    public Winner<C, S> run() throws Exception {
+        if (candidates.isEmpty()) {
+            throw new IllegalStateException("no candidates");
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_CONCURRENT_ATTEMPTS, candidates.size()));
+        final ExecutorCompletionService<S> completionService = new ExecutorCompletionService<>(executor);
+        final List<Attempt> attempts = new ArrayList<>();
+        final List<Future<S>> futures = new ArrayList<>();
+        final long start = SystemClock.elapsedRealtime();
+        Exception lastFailure = null;
+        int lastFailureIndex = -1;
+        int running = 0;
+        try {
+            while (running > 0 || attempts.size() < candidates.size()) {
+                final boolean canStartNext = attempts.size() < candidates.size() && running < MAX_CONCURRENT_ATTEMPTS;
+                final Future<S> done;
+                if (running == 0) {
+                    done = null;
+                } else if (canStartNext) {
+                    done = completionService.poll(delay, TimeUnit.MILLISECONDS);
+                } else {
+                    done = completionService.take();
+                }
+                if (done == null) {
+                    final int index = attempts.size();
+                    final C candidate = candidates.get(index);
+                    final Attempt attempt = new Attempt(SystemClock.elapsedRealtime() - start);
+                    attempts.add(attempt);
+                    futures.add(completionService.submit(() -> connector.connect(candidate, attempt)));
+                    ++running;
+                    continue;
+                }
+                --running;
+                final int index = futures.indexOf(done);
+                final Attempt attempt = attempts.get(index);
+                final long duration = SystemClock.elapsedRealtime() - start - attempt.started;
+                try {
+                    final S connection = done.get();
+                    timings.add(new Timing<>(candidates.get(index), attempt.started, duration, null));
+                    cancel(attempts, futures, index);
+                    return new Winner<>(candidates.get(index), connection);
+                } catch (final ExecutionException e) {
+                    final Exception failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    timings.add(new Timing<>(candidates.get(index), attempt.started, duration, failure));
+                    if (index > lastFailureIndex) {
+                        lastFailure = failure;
+                        lastFailureIndex = index;
+                    }
+                }
+            }
+            throw lastFailure;
+        } catch (final InterruptedException e) {
+            cancel(attempts, futures, -1);
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void cancel(final List<Attempt> attempts, final List<Future<S>> futures, final int winner) {
+        for (int i = 0; i < attempts.size(); ++i) {
+            if (i == winner) {
+                continue;
+            }
+            final Future<S> future = futures.get(i);
+            attempts.get(i).cancel();
+            if (!future.cancel(true) && future.isDone()) {
+                try {
+                    connector.close(future.get());
+                } catch (final ExecutionException | InterruptedException e) {
+                    //failed anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * @return start, duration and outcome of every attempt that has finished before the race was
+     * decided
+     */
+    public List<Timing<C>> getTimings() {
+        return timings;
+    }
+
+    public interface Connector<C, S> {
+        /**
+         * Runs on a worker thread. Sockets and other resources that might block should be
+         * registered with the attempt so they can be closed when another attempt wins.
+         */
+        S connect(C candidate, Attempt attempt) throws Exception;
+
+        void close(S connection);
+    }
+
+    public static final class Attempt {
+
+        private final long started;
+        private final List<Closeable> closeables = new ArrayList<>();
+        private boolean cancelled = false;
+
+        private Attempt(final long started) {
+            this.started = started;
+        }
+
+        /**
+         * Registers something to be closed when the attempt is cancelled. If the attempt has
+         * already been cancelled it is closed right away.
+         */
+        public void register(final Closeable closeable) {
+            final boolean close;
+            synchronized (this) {
+                close = cancelled;
+                if (!close) {
+                    closeables.add(closeable);
+                }
+            }
+            if (close) {
+                FileBackend.close(closeable);
+            }
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void cancel() {
+            final List<Closeable> closeables;
+            synchronized (this) {
+                cancelled = true;
+                closeables = new ArrayList<>(this.closeables);
+                this.closeables.clear();
+            }
+            for (final Closeable closeable : closeables) {
+                FileBackend.close(closeable);
+            }
+        }
+    }
+
+    public static final class Winner<C, S> {
+        public final C candidate;
+        public final S connection;
+
+        private Winner(final C candidate, final S connection) {
+            this.candidate = candidate;
+            this.connection = connection;
+        }
+    }
+
+    public static final class Timing<C> {
+        public final C candidate;
+        public final long started;
+        public final long duration;
+        public final Exception failure;
+
+        private Timing(final C candidate, final long started, final long duration, final Exception failure) {
+            this.candidate = candidate;
+            this.started = started;
+            this.duration = duration;
+            this.failure = failure;
+        }
+
+        @Override
+        public String toString() {
+            return candidate + " started after " + started + "ms " + (failure == null ? "connected" : "failed (" + failure.getClass().getSimpleName() + ")") + " after " + duration + "ms";
+        }
+    }
+}
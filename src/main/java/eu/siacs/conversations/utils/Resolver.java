@@ -14,17 +14,24 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import de.measite.minidns.AbstractDNSClient;
 import de.measite.minidns.DNSClient;
+import de.measite.minidns.DNSMessage;
 import de.measite.minidns.DNSName;
 import de.measite.minidns.Question;
 import de.measite.minidns.Record;
-import de.measite.minidns.dnssec.DNSSECResultNotAuthenticException;
+import de.measite.minidns.dnssec.DNSSECMessage;
 import de.measite.minidns.dnsserverlookup.AndroidUsingExec;
 import de.measite.minidns.hla.DnssecResolverApi;
 import de.measite.minidns.hla.ResolverApi;
-import de.measite.minidns.hla.ResolverResult;
 import de.measite.minidns.iterative.ReliableDNSClient;
 import de.measite.minidns.record.A;
 import de.measite.minidns.record.AAAA;
@@ -45,6 +52,14 @@ public class Resolver {
 
     private static XmppConnectionService SERVICE = null;
 
+    private static final ResolverCache CACHE = new ResolverCache();
+    private static final Object CACHE_LOAD_LOCK = new Object();
+    private static boolean cacheLoaded = false;
+
+    //runs nested lookups on the calling thread once all threads are busy so they can not starve
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(0, Config.DNS_LOOKUP_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), new ThreadPoolExecutor.CallerRunsPolicy());
+    private static final SerialSingleThreadExecutor REFRESH_EXECUTOR = new SerialSingleThreadExecutor(Resolver.class.getSimpleName());
+
 
     public static void init(XmppConnectionService service) {
         Resolver.SERVICE = service;
@@ -98,67 +113,181 @@ public class Resolver {
         return port == 443 || port == 5223;
     }
 
-    public static List<Result> resolve(String domain) {
-        final  List<Result> ipResults = fromIpAddress(domain);
+    /**
+     * Resolves the domain, answering from the cache while the records are valid. Expired answers
+     * are still returned for a while and refreshed in the background.
+     */
+    public static List<Result> resolve(final String domain) {
+        final List<Result> ipResults = fromIpAddress(domain);
         if (ipResults.size() > 0) {
             return ipResults;
         }
-        final List<Result> results = new ArrayList<>();
-        final List<Result> fallbackResults = new ArrayList<>();
-        Thread[] threads = new Thread[3];
-        threads[0] = new Thread(() -> {
-            try {
-                final List<Result> list = resolveSrv(domain, true);
-                synchronized (results) {
-                    results.addAll(list);
-                }
-            } catch (Throwable throwable) {
-                Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": error resolving SRV record (direct TLS)", throwable);
+        loadCache();
+        final ResolverCache.Entry cached = CACHE.get(domain);
+        if (cached != null) {
+            final boolean stale = cached.isStale();
+            if (stale) {
+                refreshInBackground(domain);
             }
-        });
-        threads[1] = new Thread(() -> {
-            try {
-                final List<Result> list = resolveSrv(domain, false);
-                synchronized (results) {
-                    results.addAll(list);
-                }
-            } catch (Throwable throwable) {
-                Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": error resolving SRV record (STARTTLS)", throwable);
+            Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": using " + (stale ? "stale " : "") + "cached results for " + domain + " (" + CACHE.getStatistics() + ")");
+            return new ArrayList<>(cached.getResults());
+        }
+        Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": no cached results for " + domain + " (" + CACHE.getStatistics() + ")");
+        try {
+            return lookup(domain);
+        } catch (final InterruptedException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Drops the cached results for the domain, for example because none of them could be connected
+     * to, so that the next call to {@link #resolve(String)} queries the DNS again.
+     */
+    public static void invalidate(final String domain) {
+        loadCache();
+        if (CACHE.remove(domain)) {
+            Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": invalidated cached results for " + domain);
+        }
+        if (SERVICE != null) {
+            SERVICE.databaseBackend.deleteResolverCacheEntry(domain);
+        }
+    }
+
+    private static void loadCache() {
+        synchronized (CACHE_LOAD_LOCK) {
+            if (cacheLoaded || SERVICE == null) {
+                return;
             }
-        });
-        threads[2] = new Thread(() -> {
-            List<Result> list = resolveNoSrvRecords(DNSName.from(domain), true);
-            synchronized (fallbackResults) {
-                fallbackResults.addAll(list);
+            cacheLoaded = true;
+            final Map<String, ResolverCache.Entry> entries = SERVICE.databaseBackend.readResolverCache();
+            CACHE.putAll(entries);
+            Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": restored " + entries.size() + " cached results");
+        }
+    }
+
+    private static void refreshInBackground(final String domain) {
+        if (!CACHE.beginRefresh(domain)) {
+            return;
+        }
+        REFRESH_EXECUTOR.execute(() -> {
+            try {
+                lookup(domain);
+            } catch (final InterruptedException e) {
+                Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": refreshing " + domain + " was interrupted");
+            } finally {
+                CACHE.endRefresh(domain);
             }
         });
-        for (Thread thread : threads) {
-            thread.start();
-        }
+    }
+
+    /**
+     * Queries SRV records for direct TLS and STARTTLS and the fallback A and AAAA records in
+     * parallel and caches the result if it is based on actual answers. Lookups that failed, as
+     * opposed to ones that were answered with NXDOMAIN or without records, are never cached.
+     */
+    private static List<Result> lookup(final String domain) throws InterruptedException {
+        final Future<List<Result>> directTls = EXECUTOR.submit(() -> resolveSrv(domain, true));
+        final Future<List<Result>> startTls = EXECUTOR.submit(() -> resolveSrv(domain, false));
+        final Future<List<Result>> fallback = EXECUTOR.submit(() -> resolveNoSrvRecords(DNSName.from(domain), true));
+        final List<Result> results = new ArrayList<>();
+        final boolean cacheable;
         try {
-            threads[0].join();
-            threads[1].join();
+            final List<Result> directTlsResults = get(directTls, "error resolving SRV record (direct TLS)");
+            final List<Result> startTlsResults = get(startTls, "error resolving SRV record (STARTTLS)");
+            final boolean srvCompleted = directTlsResults != null && startTlsResults != null;
+            if (directTlsResults != null) {
+                results.addAll(directTlsResults);
+            }
+            if (startTlsResults != null) {
+                results.addAll(startTlsResults);
+            }
             if (results.size() > 0) {
-                threads[2].interrupt();
-                synchronized (results) {
-                    Collections.sort(results);
-                    Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": " + results.toString());
-                    return new ArrayList<>(results);
-                }
+                fallback.cancel(true);
+                cacheable = srvCompleted;
             } else {
-                threads[2].join();
-                synchronized (fallbackResults) {
-                    Collections.sort(fallbackResults);
-                    Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": " + fallbackResults.toString());
-                    return new ArrayList<>(fallbackResults);
+                final List<Result> fallbackResults = get(fallback, "error resolving fallback records");
+                if (fallbackResults != null) {
+                    results.addAll(fallbackResults);
+                } else {
+                    results.add(Result.createDefault(DNSName.from(domain)));
                 }
+                cacheable = srvCompleted && fallbackResults != null && hasAddress(results);
             }
-        } catch (InterruptedException e) {
-            for (Thread thread : threads) {
-                thread.interrupt();
+        } catch (final InterruptedException e) {
+            directTls.cancel(true);
+            startTls.cancel(true);
+            fallback.cancel(true);
+            throw e;
+        }
+        Collections.sort(results);
+        Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": " + results.toString());
+        if (cacheable) {
+            long ttl = Long.MAX_VALUE;
+            for (final Result result : results) {
+                ttl = Math.min(ttl, result.ttl);
+            }
+            final ResolverCache.Entry entry = ResolverCache.Entry.of(results, ttl);
+            CACHE.put(domain, entry);
+            if (SERVICE != null) {
+                SERVICE.databaseBackend.writeResolverCacheEntry(domain, entry);
+            }
+        }
+        return results;
+    }
+
+    private static boolean hasAddress(final List<Result> results) {
+        for (final Result result : results) {
+            if (result.ip != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the results of the lookup or null if it failed
+     */
+    private static List<Result> get(final Future<List<Result>> future, final String error) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": " + error, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Reorders the results so that IPv4 and IPv6 addresses alternate, starting with the family of
+     * the first result, as recommended by RFC 8305. Otherwise the order is kept.
+     */
+    public static List<Result> interleaveAddressFamilies(final List<Result> results) {
+        final List<Result> first = new ArrayList<>();
+        final List<Result> second = new ArrayList<>();
+        final List<Result> unresolved = new ArrayList<>();
+        Boolean firstIsIpv4 = null;
+        for (final Result result : results) {
+            if (result.ip == null) {
+                unresolved.add(result);
+                continue;
+            }
+            final boolean ipv4 = result.ip instanceof Inet4Address;
+            if (firstIsIpv4 == null) {
+                firstIsIpv4 = ipv4;
+            }
+            (ipv4 == firstIsIpv4 ? first : second).add(result);
+        }
+        final List<Result> interleaved = new ArrayList<>(results.size());
+        for (int i = 0; i < Math.max(first.size(), second.size()); ++i) {
+            if (i < first.size()) {
+                interleaved.add(first.get(i));
+            }
+            if (i < second.size()) {
+                interleaved.add(second.get(i));
             }
-            return Collections.emptyList();
         }
+        interleaved.addAll(unresolved);
+        return interleaved;
     }
 
     private static List<Result> fromIpAddress(String domain) {
@@ -175,55 +304,52 @@ public class Resolver {
         }
     }
 
-    private static List<Result> resolveSrv(String domain, final boolean directTls) throws IOException {
+    private static List<Result> resolveSrv(String domain, final boolean directTls) throws IOException, InterruptedException {
         DNSName dnsName = DNSName.from((directTls ? DIRECT_TLS_SERVICE : STARTTLS_SERVICE) + "._tcp." + domain);
-        ResolverResult<SRV> result = resolveWithFallback(dnsName, SRV.class);
-        final List<Result> results = new ArrayList<>();
-        final List<Thread> threads = new ArrayList<>();
-        for (SRV record : result.getAnswersOrEmptySet()) {
+        final Answer<SRV> answer = resolveWithFallback(dnsName, SRV.class);
+        final List<Future<List<Result>>> futures = new ArrayList<>();
+        for (SRV record : answer.records) {
             if (record.name.length() == 0 && record.priority == 0) {
                 continue;
             }
-            threads.add(new Thread(() -> {
-                final List<Result> ipv4s = resolveIp(record, A.class, result.isAuthenticData(), directTls);
+            futures.add(EXECUTOR.submit(() -> {
+                final List<Result> ipv4s = resolveIp(record, A.class, answer, directTls);
                 if (ipv4s.size() == 0) {
                     Result resolverResult = Result.fromRecord(record, directTls);
-                    resolverResult.authenticated = result.isAuthenticData();
+                    resolverResult.authenticated = answer.authenticated;
+                    resolverResult.ttl = answer.ttl;
                     ipv4s.add(resolverResult);
                 }
-                synchronized (results) {
-                    results.addAll(ipv4s);
-                }
-
-            }));
-            threads.add(new Thread(() -> {
-                final List<Result> ipv6s = resolveIp(record, AAAA.class, result.isAuthenticData(), directTls);
-                synchronized (results) {
-                    results.addAll(ipv6s);
-                }
+                return ipv4s;
             }));
+            futures.add(EXECUTOR.submit(() -> resolveIp(record, AAAA.class, answer, directTls)));
         }
-        for (Thread thread : threads) {
-            thread.start();
-        }
-        for (Thread thread : threads) {
-            try {
-                thread.join();
-            } catch (InterruptedException e) {
-                return Collections.emptyList();
+        final List<Result> results = new ArrayList<>();
+        try {
+            for (final Future<List<Result>> future : futures) {
+                final List<Result> addresses = get(future, "error resolving address of SRV target");
+                if (addresses != null) {
+                    results.addAll(addresses);
+                }
+            }
+        } catch (final InterruptedException e) {
+            for (final Future<List<Result>> future : futures) {
+                future.cancel(true);
             }
+            throw e;
         }
         return results;
     }
 
-    private static <D extends InternetAddressRR> List<Result> resolveIp(SRV srv, Class<D> type, boolean authenticated, boolean directTls) {
+    private static <D extends InternetAddressRR> List<Result> resolveIp(SRV srv, Class<D> type, Answer<SRV> srvAnswer, boolean directTls) {
         List<Result> list = new ArrayList<>();
         try {
-            ResolverResult<D> results = resolveWithFallback(srv.name, type, authenticated);
-            for (D record : results.getAnswersOrEmptySet()) {
+            final Answer<D> answer = resolveWithFallback(srv.name, type, srvAnswer.authenticated);
+            for (D record : answer.records) {
                 Result resolverResult = Result.fromRecord(srv, directTls);
-                resolverResult.authenticated = results.isAuthenticData() && authenticated; //TODO technically it doesn’t matter if the IP was authenticated
+                resolverResult.authenticated = answer.authenticated && srvAnswer.authenticated; //TODO technically it doesn’t matter if the IP was authenticated
                 resolverResult.ip = record.getInetAddress();
+                resolverResult.ttl = Math.min(srvAnswer.ttl, answer.ttl);
                 list.add(resolverResult);
             }
         } catch (Throwable t) {
@@ -232,52 +358,84 @@ public class Resolver {
         return list;
     }
 
-    private static List<Result> resolveNoSrvRecords(DNSName dnsName, boolean withCnames) {
+    private static List<Result> resolveNoSrvRecords(DNSName dnsName, boolean withCnames) throws IOException {
         List<Result> results = new ArrayList<>();
-        try {
-            for (A a : resolveWithFallback(dnsName, A.class, false).getAnswersOrEmptySet()) {
-                results.add(Result.createDefault(dnsName, a.getInetAddress()));
-            }
-            for (AAAA aaaa : resolveWithFallback(dnsName, AAAA.class, false).getAnswersOrEmptySet()) {
-                results.add(Result.createDefault(dnsName, aaaa.getInetAddress()));
-            }
-            if (results.size() == 0 && withCnames) {
-                for (CNAME cname : resolveWithFallback(dnsName, CNAME.class, false).getAnswersOrEmptySet()) {
-                    results.addAll(resolveNoSrvRecords(cname.name, false));
-                }
+        final Answer<A> ipv4s = resolveWithFallback(dnsName, A.class, false);
+        for (A a : ipv4s.records) {
+            results.add(Result.createDefault(dnsName, a.getInetAddress(), ipv4s.ttl));
+        }
+        final Answer<AAAA> ipv6s = resolveWithFallback(dnsName, AAAA.class, false);
+        for (AAAA aaaa : ipv6s.records) {
+            results.add(Result.createDefault(dnsName, aaaa.getInetAddress(), ipv6s.ttl));
+        }
+        if (results.size() == 0 && withCnames) {
+            for (CNAME cname : resolveWithFallback(dnsName, CNAME.class, false).records) {
+                results.addAll(resolveNoSrvRecords(cname.name, false));
             }
-        } catch (Throwable throwable) {
-            Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + "error resolving fallback records", throwable);
         }
         results.add(Result.createDefault(dnsName));
         return results;
     }
 
-    private static <D extends Data> ResolverResult<D> resolveWithFallback(DNSName dnsName, Class<D> type) throws IOException {
+    private static <D extends Data> Answer<D> resolveWithFallback(DNSName dnsName, Class<D> type) throws IOException {
         return resolveWithFallback(dnsName, type, validateHostname());
     }
 
-    private static <D extends Data> ResolverResult<D> resolveWithFallback(DNSName dnsName, Class<D> type, boolean validateHostname) throws IOException {
+    /**
+     * Queries the DNS clients directly rather than through the high level API, which does not
+     * expose the time to live of the records.
+     */
+    private static <D extends Data> Answer<D> resolveWithFallback(DNSName dnsName, Class<D> type, boolean validateHostname) throws IOException {
         final Question question = new Question(dnsName, Record.TYPE.getType(type));
         if (!validateHostname) {
-            return ResolverApi.INSTANCE.resolve(question);
+            return Answer.of(question, ResolverApi.INSTANCE.getClient().query(question), false);
         }
         try {
-            return DnssecResolverApi.INSTANCE.resolveDnssecReliable(question);
-        } catch (DNSSECResultNotAuthenticException e) {
-            Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": error resolving " + type.getSimpleName() + " with DNSSEC. Trying DNS instead.", e);
+            final DNSSECMessage message = DnssecResolverApi.INSTANCE.getDnssecClient().queryDnssec(question);
+            if (message != null) {
+                return Answer.of(question, message, message.getUnverifiedReasons().isEmpty());
+            }
+            Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": no answer resolving " + type.getSimpleName() + " with DNSSEC. Trying DNS instead.");
         } catch (IOException e) {
             throw e;
         } catch (Throwable throwable) {
             Log.d(Config.LOGTAG, Resolver.class.getSimpleName() + ": error resolving " + type.getSimpleName() + " with DNSSEC. Trying DNS instead.", throwable);
         }
-        return ResolverApi.INSTANCE.resolve(question);
+        return Answer.of(question, ResolverApi.INSTANCE.getClient().query(question), false);
     }
 
     private static boolean validateHostname() {
         return SERVICE != null && SERVICE.getBooleanPreference("validate_hostname", R.bool.validate_hostname);
     }
 
+    private static class Answer<D extends Data> {
+        private final Set<D> records;
+        private final boolean authenticated;
+        private final long ttl;
+
+        private Answer(final Set<D> records, final boolean authenticated, final long ttl) {
+            this.records = records;
+            this.authenticated = authenticated;
+            this.ttl = ttl;
+        }
+
+        private static <D extends Data> Answer<D> of(final Question question, final DNSMessage message, final boolean authenticated) throws IOException {
+            if (message == null) {
+                throw new IOException("no answer for " + question);
+            }
+            //NXDOMAIN is a valid answer; anything else, like SERVFAIL, says nothing about the records
+            if (message.responseCode != DNSMessage.RESPONSE_CODE.NO_ERROR && message.responseCode != DNSMessage.RESPONSE_CODE.NX_DOMAIN) {
+                throw new IOException(message.responseCode + " for " + question);
+            }
+            final Set<D> records = message.getAnswersFor(question);
+            long ttl = Long.MAX_VALUE;
+            for (final Record<? extends Data> record : message.answerSection) {
+                ttl = Math.min(ttl, record.getTtl());
+            }
+            return new Answer<>(records == null ? Collections.<D>emptySet() : records, authenticated, ttl);
+        }
+    }
+
     public static class Result implements Comparable<Result> {
         public static final String DOMAIN = "domain";
         public static final String IP = "ip";
@@ -292,6 +450,7 @@ public class Resolver {
         private boolean directTls = false;
         private boolean authenticated = false;
         private int priority;
+        private long ttl = Long.MAX_VALUE;
 
         static Result fromRecord(SRV srv, boolean directTls) {
             Result result = new Result();
@@ -310,6 +469,12 @@ public class Resolver {
             return result;
         }
 
+        static Result createDefault(DNSName hostname, InetAddress ip, long ttl) {
+            Result result = createDefault(hostname, ip);
+            result.ttl = ttl;
+            return result;
+        }
+
         static Result createDefault(DNSName hostname) {
             return createDefault(hostname, null);
         }
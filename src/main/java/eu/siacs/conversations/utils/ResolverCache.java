@@ -0,0 +1,129 @@
+package eu.siacs.conversations.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Remembers the results of {@link Resolver#resolve(String)} for as long as the DNS records they
+ * were built from are valid. Entries that have expired less than {@link Config#DNS_STALE_TIME}
+ * ago are still handed out (and marked stale) so a connection attempt does not have to wait for
+ * the lookup that refreshes them.
+ * <p>
+ * Expiry times are stored as wall clock times so entries can be persisted and survive a restart.
+ */
+public class ResolverCache {
+
+    public static final String TABLENAME = "resolver_cache";
+    public static final String EXPIRES = "expires";
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private final HashSet<String> refreshing = new HashSet<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @return the cached entry for the domain or null if there is none or it is too old to be
+     * used. Counts as hit or miss.
+     */
+    public synchronized Entry get(final String domain) {
+        final Entry entry = entries.get(domain);
+        final long now = System.currentTimeMillis();
+        if (entry == null || entry.expires + Config.DNS_STALE_TIME * 1000L < now) {
+            misses.incrementAndGet();
+            return null;
+        }
+        (entry.isStale(now) ? staleHits : hits).incrementAndGet();
+        return entry;
+    }
+
+    public synchronized void put(final String domain, final Entry entry) {
+        entries.put(domain, entry);
+    }
+
+    /**
+     * @return false if there was no entry for the domain
+     */
+    public synchronized boolean remove(final String domain) {
+        return entries.remove(domain) != null;
+    }
+
+    public synchronized void putAll(final Map<String, Entry> entries) {
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (!this.entries.containsKey(entry.getKey())) {
+                this.entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Marks the domain as being refreshed in the background.
+     *
+     * @return false if a refresh is already in progress
+     */
+    public synchronized boolean beginRefresh(final String domain) {
+        return refreshing.add(domain);
+    }
+
+    public synchronized void endRefresh(final String domain) {
+        refreshing.remove(domain);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public String getStatistics() {
+        return "hits=" + hits.get() + ", stale=" + staleHits.get() + ", misses=" + misses.get();
+    }
+
+    public static class Entry {
+        private final List<Resolver.Result> results;
+        private final long expires;
+
+        public Entry(final List<Resolver.Result> results, final long expires) {
+            this.results = Collections.unmodifiableList(new ArrayList<>(results));
+            this.expires = expires;
+        }
+
+        /**
+         * Creates an entry that expires after the given time to live (in seconds), clamped to
+         * {@link Config#DNS_MIN_TTL} and {@link Config#DNS_MAX_TTL}.
+         */
+        public static Entry of(final List<Resolver.Result> results, final long ttl) {
+            final long clamped = Math.max(Config.DNS_MIN_TTL, Math.min(Config.DNS_MAX_TTL, ttl));
+            return new Entry(results, System.currentTimeMillis() + clamped * 1000L);
+        }
+
+        public List<Resolver.Result> getResults() {
+            return results;
+        }
+
+        public long getExpires() {
+            return expires;
+        }
+
+        public boolean isStale() {
+            return isStale(System.currentTimeMillis());
+        }
+
+        private boolean isStale(final long now) {
+            return expires < now;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package eu.siacs.conversations.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on a shared executor while guaranteeing that tasks submitted with the same key are
+ * executed one after another in submission order. Tasks with different keys run in parallel.
+ * <p>
+ * Additionally tasks can be scheduled to run once everything that had been submitted up to that
+ * point (regardless of the key) has finished, either on their own or as part of a key.
+ */
+public class SerialPerKeyExecutor {
+
+    private final Executor executor;
+    private final HashMap<Object, ArrayDeque<Task>> queues = new HashMap<>();
+    private final List<Barrier> barriers = new ArrayList<>();
+    private final TreeSet<Long> completedOutOfOrder = new TreeSet<>();
+    //tasks at the head of their queue that wait for earlier tasks of other keys
+    private final List<Task> waiting = new ArrayList<>();
+    private long submitted = 0;
+    private long completed = 0;
+
+    public SerialPerKeyExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    public void execute(final Object key, final Runnable runnable) {
+        execute(key, runnable, false);
+    }
+
+    /**
+     * Runs the given runnable after the tasks that have been submitted with the same key (like
+     * {@link #execute(Object, Runnable)}) and after all tasks that have been submitted before
+     * this call regardless of their key. Tasks submitted later with the same key wait for it.
+     */
+    public void executeAfterPending(final Object key, final Runnable runnable) {
+        execute(key, runnable, true);
+    }
+
+    private void execute(final Object key, final Runnable runnable, final boolean afterPending) {
+        final boolean schedule;
+        final Task task;
+        synchronized (this) {
+            final long sequence = ++submitted;
+            task = new Task(key, sequence, afterPending ? sequence - 1 : 0, runnable);
+            ArrayDeque<Task> queue = queues.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(key, queue);
+                schedule = isReady(task);
+            } else {
+                schedule = false;
+            }
+            queue.add(task);
+        }
+        if (schedule) {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Checks whether a task at the head of its queue can run and remembers it otherwise. Must be
+     * called while holding the lock.
+     */
+    private boolean isReady(final Task task) {
+        if (task.waitFor <= completed) {
+            return true;
+        }
+        waiting.add(task);
+        return false;
+    }
+
+    /**
+     * Runs the given runnable once all tasks that have been submitted before this call have
+     * finished. If nothing is pending the runnable is executed right away on the calling thread.
+     */
+    public void executeAfterPending(final Runnable runnable) {
+        synchronized (this) {
+            if (completed < submitted) {
+                barriers.add(new Barrier(submitted, runnable));
+                return;
+            }
+        }
+        runnable.run();
+    }
+
+    public synchronized long getPending() {
+        return submitted - completed;
+    }
+
+    /**
+     * Blocks until fewer than max tasks are pending.
+     */
+    public synchronized void awaitPendingBelow(final int max) throws InterruptedException {
+        while (submitted - completed >= max) {
+            wait();
+        }
+    }
+
+    private void onTaskFinished(final Task task) {
+        final List<Task> ready = new ArrayList<>();
+        final List<Runnable> releasedBarriers = new ArrayList<>();
+        synchronized (this) {
+            final ArrayDeque<Task> queue = queues.get(task.key);
+            queue.poll();
+            final Task next = queue.peek();
+            if (next == null) {
+                queues.remove(task.key);
+            }
+            if (task.sequence == completed + 1) {
+                completed++;
+                while (!completedOutOfOrder.isEmpty() && completedOutOfOrder.first() == completed + 1) {
+                    completed = completedOutOfOrder.pollFirst();
+                }
+            } else {
+                completedOutOfOrder.add(task.sequence);
+            }
+            if (next != null && isReady(next)) {
+                ready.add(next);
+            }
+            final Iterator<Task> waitingIterator = waiting.iterator();
+            while (waitingIterator.hasNext()) {
+                final Task waitingTask = waitingIterator.next();
+                if (waitingTask.waitFor <= completed) {
+                    ready.add(waitingTask);
+                    waitingIterator.remove();
+                }
+            }
+            notifyAll();
+            final Iterator<Barrier> iterator = barriers.iterator();
+            while (iterator.hasNext()) {
+                final Barrier barrier = iterator.next();
+                if (barrier.sequence <= completed) {
+                    releasedBarriers.add(barrier.runnable);
+                    iterator.remove();
+                }
+            }
+        }
+        for (final Task readyTask : ready) {
+            executor.execute(readyTask);
+        }
+        for (final Runnable runnable : releasedBarriers) {
+            runnable.run();
+        }
+    }
+
+    private static class Barrier {
+        private final long sequence;
+        private final Runnable runnable;
+
+        private Barrier(final long sequence, final Runnable runnable) {
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+    }
+
+    private class Task implements Runnable {
+
+        private final Object key;
+        private final long sequence;
+        //the task must not start before this many tasks have completed
+        private final long waitFor;
+        private final Runnable runnable;
+
+        private Task(final Object key, final long sequence, final long waitFor, final Runnable runnable) {
+            this.key = key;
+            this.sequence = sequence;
+            this.waitFor = waitFor;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            try {
+                runnable.run();
+            } finally {
+                onTaskFinished(this);
+            }
+        }
+    }
+}
@@ -1,18 +1,84 @@
 package eu.siacs.conversations.utils;
 
+import java.io.IOException;
+
 import eu.siacs.conversations.xml.Element;
 
 public class XmlHelper {
 	public static String encodeEntities(String content) {
-		content = content.replace("&", "&amp;");
-		content = content.replace("<", "&lt;");
-		content = content.replace(">", "&gt;");
-		content = content.replace("\"", "&quot;");
-		content = content.replace("'", "&apos;");
-		content = content.replaceAll("[\\p{Cntrl}&&[^\n\t\r]]", "");
+		for (int i = 0; i < content.length(); ++i) {
+			if (needsEncoding(content.charAt(i))) {
+				final StringBuilder builder = new StringBuilder(content.length() + 16);
+				builder.append(content, 0, i);
+				try {
+					encodeEntities(content, i, builder);
+				} catch (final IOException e) {
+					throw new AssertionError(e);
+				}
+				return builder.toString();
+			}
+		}
 		return content;
 	}
 
+	public static void encodeEntities(final String content, final Appendable output) throws IOException {
+		encodeEntities(content, 0, output);
+	}
+
+	private static void encodeEntities(final String content, final int offset, final Appendable output) throws IOException {
+		int start = offset;
+		for (int i = offset; i < content.length(); ++i) {
+			final char c = content.charAt(i);
+			if (!needsEncoding(c)) {
+				continue;
+			}
+			if (start < i) {
+				output.append(content, start, i);
+			}
+			start = i + 1;
+			switch (c) {
+				case '&':
+					output.append("&amp;");
+					break;
+				case '<':
+					output.append("&lt;");
+					break;
+				case '>':
+					output.append("&gt;");
+					break;
+				case '"':
+					output.append("&quot;");
+					break;
+				case '\'':
+					output.append("&apos;");
+					break;
+				default:
+					//control characters other than \n, \t and \r are not allowed in xml
+					break;
+			}
+		}
+		if (start < content.length()) {
+			output.append(content, start, content.length());
+		}
+	}
+
+	private static boolean needsEncoding(final char c) {
+		switch (c) {
+			case '&':
+			case '<':
+			case '>':
+			case '"':
+			case '\'':
+				return true;
+			case '\n':
+			case '\t':
+			case '\r':
+				return false;
+			default:
+				return c < 0x20 || c == 0x7f;
+		}
+	}
+
 	public static String printElementNames(final Element element) {
 		final StringBuilder builder = new StringBuilder();
 		builder.append('[');
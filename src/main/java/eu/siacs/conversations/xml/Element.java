@@ -1,5 +1,6 @@
 package eu.siacs.conversations.xml;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
@@ -11,16 +12,23 @@ import eu.siacs.conversations.xmpp.stanzas.MessagePacket;
 
 public class Element {
 	private final String name;
-	private Hashtable<String, String> attributes = new Hashtable<>();
+	private Hashtable<String, String> attributes;
 	private String content;
 	protected List<Element> children = new ArrayList<>();
 
 	public Element(String name) {
 		this.name = name;
+		this.attributes = new Hashtable<>();
+	}
+
+	Element(String name, Hashtable<String, String> attributes) {
+		this.name = name;
+		this.attributes = attributes;
 	}
 
 	public Element(String name, String xmlns) {
 		this.name = name;
+		this.attributes = new Hashtable<>();
 		this.setAttribute("xmlns", xmlns);
 	}
 
@@ -166,26 +174,35 @@ public class Element {
 	}
 
 	public String toString() {
-		StringBuilder elementOutput = new StringBuilder();
-		if ((content == null) && (children.size() == 0)) {
-			Tag emptyTag = Tag.empty(name);
-			emptyTag.setAtttributes(this.attributes);
-			elementOutput.append(emptyTag.toString());
+		final StringBuilder elementOutput = new StringBuilder();
+		try {
+			writeTo(elementOutput);
+		} catch (final IOException e) {
+			throw new AssertionError(e);
+		}
+		return elementOutput.toString();
+	}
+
+	/**
+	 * Serializes this element and its children straight into the given Appendable without
+	 * building intermediate Strings for every node.
+	 */
+	public void writeTo(final Appendable output) throws IOException {
+		output.append('<').append(name);
+		Tag.writeAttributes(this.attributes, output);
+		if (content == null && children.size() == 0) {
+			output.append("/>");
+			return;
+		}
+		output.append('>');
+		if (content != null) {
+			XmlHelper.encodeEntities(content, output);
 		} else {
-			Tag startTag = Tag.start(name);
-			startTag.setAtttributes(this.attributes);
-			elementOutput.append(startTag);
-			if (content != null) {
-				elementOutput.append(XmlHelper.encodeEntities(content));
-			} else {
-				for (Element child : children) {
-					elementOutput.append(child.toString());
-				}
+			for (Element child : children) {
+				child.writeTo(output);
 			}
-			Tag endTag = Tag.end(name);
-			elementOutput.append(endTag);
 		}
-		return elementOutput.toString();
+		output.append("</").append(name).append('>');
 	}
 
 	public final String getName() {
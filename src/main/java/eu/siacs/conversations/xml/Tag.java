@@ -1,9 +1,8 @@
 package eu.siacs.conversations.xml;
 
+import java.io.IOException;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.Map.Entry;
-import java.util.Set;
 
 import eu.siacs.conversations.utils.XmlHelper;
 
@@ -15,7 +14,7 @@ public class Tag {
 
 	protected int type;
 	protected String name;
-	protected Hashtable<String, String> attributes = new Hashtable<String, String>();
+	protected Hashtable<String, String> attributes = null;
 
 	protected Tag(int type, String name) {
 		this.type = type;
@@ -43,11 +42,11 @@ public class Tag {
 	}
 
 	public String getAttribute(String attrName) {
-		return this.attributes.get(attrName);
+		return this.attributes == null ? null : this.attributes.get(attrName);
 	}
 
 	public Tag setAttribute(String attrName, String attrValue) {
-		this.attributes.put(attrName, attrValue);
+		getAttributes().put(attrName, attrValue);
 		return this;
 	}
 
@@ -80,15 +79,10 @@ public class Tag {
 		}
 		tagOutput.append(name);
 		if (type != END) {
-			Set<Entry<String, String>> attributeSet = attributes.entrySet();
-			Iterator<Entry<String, String>> it = attributeSet.iterator();
-			while (it.hasNext()) {
-				Entry<String, String> entry = it.next();
-				tagOutput.append(' ');
-				tagOutput.append(entry.getKey());
-				tagOutput.append("=\"");
-				tagOutput.append(XmlHelper.encodeEntities(entry.getValue()));
-				tagOutput.append('"');
+			try {
+				writeAttributes(attributes, tagOutput);
+			} catch (final IOException e) {
+				throw new AssertionError(e);
 			}
 		}
 		if (type == EMPTY) {
@@ -98,7 +92,23 @@ public class Tag {
 		return tagOutput.toString();
 	}
 
+	static void writeAttributes(final Hashtable<String, String> attributes, final Appendable output) throws IOException {
+		if (attributes == null) {
+			return;
+		}
+		for (final Entry<String, String> entry : attributes.entrySet()) {
+			output.append(' ');
+			output.append(entry.getKey());
+			output.append("=\"");
+			XmlHelper.encodeEntities(entry.getValue(), output);
+			output.append('"');
+		}
+	}
+
 	public Hashtable<String, String> getAttributes() {
+		if (this.attributes == null) {
+			this.attributes = new Hashtable<>();
+		}
 		return this.attributes;
 	}
 }
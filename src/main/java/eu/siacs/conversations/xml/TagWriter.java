@@ -1,23 +1,39 @@
 package eu.siacs.conversations.xml;
 
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.xmpp.stanzas.AbstractStanza;
 
 public class TagWriter {
 
-	private OutputStreamWriter outputStream;
+	private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+	private volatile OutputStream outputStream;
 	private boolean finished = false;
 	private final LinkedBlockingQueue<AbstractStanza> writeQueue = new LinkedBlockingQueue<AbstractStanza>();
 	private CountDownLatch stanzaWriterCountDownLatch = null;
+	//serializes synchronous and asynchronous writes; guards buffer. Never taken by forceClose() so
+	//closing the stream can interrupt a write that is blocked on the socket
+	private final Object writeLock = new Object();
+	private BatchBuffer buffer = new BatchBuffer();
+
+	private final AtomicLong bytesWritten = new AtomicLong(0);
+	private final AtomicLong stanzasWritten = new AtomicLong(0);
+	private final AtomicLong flushes = new AtomicLong(0);
+	private final long created = SystemClock.elapsedRealtime();
 
 	private final Thread asyncStanzaWriter = new Thread() {
 
@@ -30,9 +46,18 @@ public class TagWriter {
 				}
 				try {
 					AbstractStanza output = writeQueue.take();
-					outputStream.write(output.toString());
-					if (writeQueue.size() == 0) {
-						outputStream.flush();
+					synchronized (writeLock) {
+						//never wait for more stanzas; only coalesce those that are already queued
+						int count = 0;
+						while (output != null) {
+							buffer.append(output);
+							count++;
+							if (buffer.size() >= Config.STANZA_COALESCING_MAX_BYTES) {
+								break;
+							}
+							output = writeQueue.poll();
+						}
+						flush(count);
 					}
 				} catch (Exception e) {
 					break;
@@ -46,40 +71,65 @@ public class TagWriter {
 	public TagWriter() {
 	}
 
-	public synchronized void setOutputStream(OutputStream out) throws IOException {
+	public void setOutputStream(OutputStream out) throws IOException {
 		if (out == null) {
 			throw new IOException();
 		}
-		this.outputStream = new OutputStreamWriter(out);
+		this.outputStream = out;
 	}
 
 	public TagWriter beginDocument() throws IOException {
 		if (outputStream == null) {
 			throw new IOException("output stream was null");
 		}
-		outputStream.write("<?xml version='1.0'?>");
-		outputStream.flush();
+		synchronized (writeLock) {
+			buffer.append("<?xml version='1.0'?>");
+			flush(0);
+		}
 		return this;
 	}
 
-	public synchronized  TagWriter writeTag(Tag tag) throws IOException {
+	public TagWriter writeTag(Tag tag) throws IOException {
 		if (outputStream == null) {
 			throw new IOException("output stream was null");
 		}
-		outputStream.write(tag.toString());
-		outputStream.flush();
+		synchronized (writeLock) {
+			buffer.append(tag.toString());
+			flush(0);
+		}
 		return this;
 	}
 
-	public synchronized TagWriter writeElement(Element element) throws IOException {
+	public TagWriter writeElement(Element element) throws IOException {
 		if (outputStream == null) {
 			throw new IOException("output stream was null");
 		}
-		outputStream.write(element.toString());
-		outputStream.flush();
+		synchronized (writeLock) {
+			buffer.append(element);
+			flush(0);
+		}
 		return this;
 	}
 
+	/**
+	 * Writes the buffer to the socket. Must be called while holding writeLock.
+	 *
+	 * @param stanzas the number of stanzas in the buffer
+	 */
+	private void flush(final int stanzas) throws IOException {
+		final OutputStream outputStream = this.outputStream;
+		if (outputStream == null) {
+			buffer.reset();
+			throw new IOException("output stream was null");
+		}
+		bytesWritten.addAndGet(buffer.flushTo(outputStream));
+		stanzasWritten.addAndGet(stanzas);
+		flushes.incrementAndGet();
+		if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+			buffer = new BatchBuffer();
+		}
+	}
+
 	public TagWriter writeStanzaAsync(AbstractStanza stanza) {
 		if (finished) {
 			Log.d(Config.LOGTAG,"attempting to write stanza to finished TagWriter");
@@ -113,8 +163,27 @@ public class TagWriter {
 		return outputStream != null;
 	}
 
-	public synchronized void forceClose() {
+	public long getStanzasWritten() {
+		return stanzasWritten.get();
+	}
+
+	public String getStatistics() {
+		final long seconds = Math.max(1, (SystemClock.elapsedRealtime() - created) / 1000);
+		final long bytes = bytesWritten.get();
+		final long stanzas = stanzasWritten.get();
+		final long flushes = this.flushes.get();
+		return String.format(
+				"%d bytes (%d/s), %d stanzas (%d/s), %d flushes (%d/s)",
+				bytes, bytes / seconds,
+				stanzas, stanzas / seconds,
+				flushes, flushes / seconds
+		);
+	}
+
+	public void forceClose() {
 		asyncStanzaWriter.interrupt();
+		final OutputStream outputStream = this.outputStream;
+		this.outputStream = null;
 		if (outputStream != null) {
 			try {
 				outputStream.close();
@@ -122,6 +191,43 @@ public class TagWriter {
 				//ignoring
 			}
 		}
-		outputStream = null;
+	}
+
+	/**
+	 * Reusable buffer that collects the serialized form of several stanzas so they can be handed
+	 * to the socket (and thus to TLS) as a single write.
+	 */
+	private static class BatchBuffer extends ByteArrayOutputStream {
+
+		private final Writer writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+
+		private BatchBuffer() {
+			super(8192);
+		}
+
+		void append(final Element element) throws IOException {
+			element.writeTo(writer);
+			writer.flush();
+		}
+
+		void append(final String string) throws IOException {
+			writer.write(string);
+			writer.flush();
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+
+		int flushTo(final OutputStream outputStream) throws IOException {
+			final int size = count;
+			try {
+				outputStream.write(buf, 0, size);
+				outputStream.flush();
+			} finally {
+				reset();
+			}
+			return size;
+		}
 	}
 }
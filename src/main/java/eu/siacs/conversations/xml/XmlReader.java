@@ -1,29 +1,55 @@
 package eu.siacs.conversations.xml;
 
-import android.util.Log;
-import android.util.Xml;
-
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-
-import eu.siacs.conversations.Config;
+import java.util.Arrays;
+import java.util.Hashtable;
 
+/**
+ * Streaming tokenizer for the restricted XML profile used by XMPP (RFC 6120 section 11).
+ * <p>
+ * Bytes are decoded straight out of a reusable buffer; element names, prefixes and namespace
+ * URIs are interned in a bounded symbol table so repeated stanzas do not allocate new Strings for
+ * them. Namespaces are processed the same way the previous XmlPullParser based reader did: tags
+ * carry their local name, the resolved namespace is exposed as the 'xmlns' attribute, namespace
+ * declarations are dropped and other prefixed attributes keep their 'prefix:name' form.
+ */
 public class XmlReader implements Closeable {
-	private final XmlPullParser parser;
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_DEPTH = 256;
+	private static final String XML_PREFIX = "xml";
+	private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+	private final int[] pushback = new int[2];
+	private int pushbackCount = 0;
+	private int lowSurrogate = -1;
+
+	private char[] chars = new char[256];
+	private int length = 0;
+
+	private final Symbols symbols = new Symbols();
+
+	private String[] nsPrefixes = new String[16];
+	private String[] nsUris = new String[16];
+	private int nsCount = 0;
+	private final int[] nsCountAtDepth = new int[MAX_DEPTH + 1];
+	private final String[] elementStack = new String[MAX_DEPTH];
+	private int depth = 0;
+	private String pendingEnd = null;
+
+	private String[] attributeNames = new String[8];
+	private String[] attributeValues = new String[8];
+	private int attributeCount = 0;
+
 	private InputStream is;
 
 	public XmlReader() {
-		this.parser = Xml.newPullParser();
-		try {
-			this.parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
-		} catch (XmlPullParserException e) {
-			Log.d(Config.LOGTAG, "error setting namespace feature on parser");
-		}
+		resetState();
 	}
 
 	public void setInputStream(InputStream inputStream) throws IOException {
@@ -31,22 +57,28 @@ public class XmlReader implements Closeable {
 			throw new IOException();
 		}
 		this.is = inputStream;
-		try {
-			parser.setInput(new InputStreamReader(this.is));
-		} catch (XmlPullParserException e) {
-			throw new IOException("error resetting parser");
-		}
+		this.position = 0;
+		this.limit = 0;
+		resetState();
 	}
 
 	public void reset() throws IOException {
 		if (this.is == null) {
 			throw new IOException();
 		}
-		try {
-			parser.setInput(new InputStreamReader(this.is));
-		} catch (XmlPullParserException e) {
-			throw new IOException("error resetting parser");
-		}
+		resetState();
+	}
+
+	private void resetState() {
+		this.pushbackCount = 0;
+		this.lowSurrogate = -1;
+		this.depth = 0;
+		this.pendingEnd = null;
+		this.nsCount = 0;
+		this.nsCountAtDepth[0] = 0;
+		declareNamespace(XML_PREFIX, XML_NAMESPACE);
+		declareNamespace("", "");
+		this.nsCountAtDepth[0] = this.nsCount;
 	}
 
 	@Override
@@ -55,41 +87,51 @@ public class XmlReader implements Closeable {
 	}
 
 	public Tag readTag() throws IOException {
-		try {
-			while (this.is != null && parser.next() != XmlPullParser.END_DOCUMENT) {
-				if (parser.getEventType() == XmlPullParser.START_TAG) {
-					Tag tag = Tag.start(parser.getName());
-					final String xmlns = parser.getNamespace();
-					for (int i = 0; i < parser.getAttributeCount(); ++i) {
-						final String prefix = parser.getAttributePrefix(i);
-						String name;
-						if (prefix != null && !prefix.isEmpty()) {
-							name = prefix+":"+parser.getAttributeName(i);
-						} else {
-							name = parser.getAttributeName(i);
-						}
-						tag.setAttribute(name,parser.getAttributeValue(i));
-					}
-					if (xmlns != null) {
-						tag.setAttribute("xmlns", xmlns);
-					}
-					return tag;
-				} else if (parser.getEventType() == XmlPullParser.END_TAG) {
-					return Tag.end(parser.getName());
-				} else if (parser.getEventType() == XmlPullParser.TEXT) {
-					return Tag.no(parser.getText());
+		if (this.is == null) {
+			return null;
+		}
+		if (pendingEnd != null) {
+			final String name = pendingEnd;
+			pendingEnd = null;
+			popElement();
+			return Tag.end(name);
+		}
+		while (true) {
+			int c = read();
+			if (c == -1) {
+				return null;
+			}
+			if (c != '<') {
+				unread(c);
+				length = 0;
+				return Tag.no(readText());
+			}
+			c = read();
+			if (c == '/') {
+				return readEndTag();
+			} else if (c == '?') {
+				skipUntil("?>");
+			} else if (c == '!') {
+				if (consume("[CDATA[")) {
+					length = 0;
+					appendCData();
+					return Tag.no(readText());
+				} else if (consume("--")) {
+					skipUntil("-->");
+				} else {
+					throw new IOException("document type declarations are not allowed");
 				}
+			} else if (c == -1) {
+				throw new IOException("unexpected end of stream");
+			} else {
+				unread(c);
+				return readStartTag();
 			}
-
-		} catch (Throwable throwable) {
-			throw new IOException("xml parser mishandled "+throwable.getClass().getSimpleName()+"("+throwable.getMessage()+")", throwable);
 		}
-		return null;
 	}
 
 	public Element readElement(Tag currentTag) throws IOException {
-		Element element = new Element(currentTag.getName());
-		element.setAttributes(currentTag.getAttributes());
+		final Element element = new Element(currentTag.getName(), currentTag.getAttributes());
 		Tag nextTag = this.readTag();
 		if (nextTag == null) {
 			throw new IOException("interrupted mid tag");
@@ -113,4 +155,435 @@ public class XmlReader implements Closeable {
 		}
 		return element;
 	}
+
+	private Tag readStartTag() throws IOException {
+		if (depth >= MAX_DEPTH) {
+			throw new IOException("exceeded maximum element depth");
+		}
+		final String qualifiedName = readName();
+		attributeCount = 0;
+		boolean empty = false;
+		while (true) {
+			int c = skipWhitespace();
+			if (c == '>') {
+				break;
+			} else if (c == '/') {
+				if (read() != '>') {
+					throw new IOException("expected '>' after '/'");
+				}
+				empty = true;
+				break;
+			} else if (c == -1) {
+				throw new IOException("unexpected end of stream");
+			}
+			unread(c);
+			final String attributeName = readName();
+			if (skipWhitespace() != '=') {
+				throw new IOException("expected '=' after attribute " + attributeName);
+			}
+			final int quote = skipWhitespace();
+			if (quote != '"' && quote != '\'') {
+				throw new IOException("expected quoted value for attribute " + attributeName);
+			}
+			final String value = readAttributeValue(quote);
+			if (attributeName.equals("xmlns")) {
+				declareNamespace("", symbols.get(value));
+			} else if (attributeName.startsWith("xmlns:")) {
+				declareNamespace(symbols.get(attributeName.substring(6)), symbols.get(value));
+			} else {
+				addAttribute(attributeName, value);
+			}
+		}
+		nsCountAtDepth[depth + 1] = nsCount;
+		final int colon = qualifiedName.indexOf(':');
+		final String name;
+		final String namespace;
+		if (colon == -1) {
+			name = qualifiedName;
+			namespace = resolveNamespace("");
+		} else {
+			name = symbols.get(qualifiedName.substring(colon + 1));
+			namespace = resolveNamespace(qualifiedName.substring(0, colon));
+		}
+		final Hashtable<String, String> attributes = new Hashtable<>((attributeCount + 1) * 4 / 3 + 1);
+		for (int i = 0; i < attributeCount; ++i) {
+			attributes.put(attributeNames[i], attributeValues[i]);
+		}
+		attributes.put("xmlns", namespace);
+		elementStack[depth] = name;
+		depth++;
+		if (empty) {
+			pendingEnd = name;
+		}
+		return Tag.start(name).setAtttributes(attributes);
+	}
+
+	private Tag readEndTag() throws IOException {
+		final String qualifiedName = readName();
+		if (skipWhitespace() != '>') {
+			throw new IOException("expected '>' after end tag " + qualifiedName);
+		}
+		final int colon = qualifiedName.indexOf(':');
+		final String name = colon == -1 ? qualifiedName : symbols.get(qualifiedName.substring(colon + 1));
+		if (depth == 0 || !elementStack[depth - 1].equals(name)) {
+			throw new IOException("unexpected end tag " + qualifiedName);
+		}
+		popElement();
+		return Tag.end(name);
+	}
+
+	private void popElement() {
+		depth--;
+		elementStack[depth] = null;
+		for (int i = nsCountAtDepth[depth]; i < nsCount; ++i) {
+			nsPrefixes[i] = null;
+			nsUris[i] = null;
+		}
+		nsCount = nsCountAtDepth[depth];
+	}
+
+	private void declareNamespace(final String prefix, final String uri) {
+		if (nsCount == nsPrefixes.length) {
+			nsPrefixes = Arrays.copyOf(nsPrefixes, nsCount * 2);
+			nsUris = Arrays.copyOf(nsUris, nsCount * 2);
+		}
+		nsPrefixes[nsCount] = prefix;
+		nsUris[nsCount] = uri;
+		nsCount++;
+	}
+
+	private String resolveNamespace(final String prefix) throws IOException {
+		for (int i = nsCount - 1; i >= 0; --i) {
+			if (nsPrefixes[i].equals(prefix)) {
+				return nsUris[i];
+			}
+		}
+		throw new IOException("unbound namespace prefix " + prefix);
+	}
+
+	private void addAttribute(final String name, final String value) {
+		if (attributeCount == attributeNames.length) {
+			attributeNames = Arrays.copyOf(attributeNames, attributeCount * 2);
+			attributeValues = Arrays.copyOf(attributeValues, attributeCount * 2);
+		}
+		attributeNames[attributeCount] = name;
+		attributeValues[attributeCount] = value;
+		attributeCount++;
+	}
+
+	private String readName() throws IOException {
+		length = 0;
+		int c = read();
+		while (c != -1 && !isWhitespace(c) && c != '>' && c != '/' && c != '=' && c != '<') {
+			append((char) c);
+			c = read();
+		}
+		unread(c);
+		if (length == 0) {
+			throw new IOException("expected name");
+		}
+		return symbols.get(chars, length);
+	}
+
+	private String readAttributeValue(final int quote) throws IOException {
+		length = 0;
+		int c = read();
+		while (c != quote) {
+			if (c == -1) {
+				throw new IOException("unexpected end of stream");
+			} else if (c == '<') {
+				throw new IOException("'<' is not allowed in attribute values");
+			} else if (c == '&') {
+				appendEntity();
+			} else if (isWhitespace(c)) {
+				append(' ');
+			} else {
+				append((char) c);
+			}
+			c = read();
+		}
+		return new String(chars, 0, length);
+	}
+
+	private String readText() throws IOException {
+		int c = read();
+		while (c != -1) {
+			if (c == '<') {
+				if (consumeAfterOpenBracket("![CDATA[")) {
+					appendCData();
+				} else {
+					unread(c);
+					break;
+				}
+			} else if (c == '&') {
+				appendEntity();
+			} else {
+				append((char) c);
+			}
+			c = read();
+		}
+		final String text = new String(chars, 0, length);
+		length = 0;
+		return text;
+	}
+
+	private void appendCData() throws IOException {
+		int matched = 0;
+		while (true) {
+			final int c = read();
+			if (c == -1) {
+				throw new IOException("unexpected end of stream in CDATA section");
+			}
+			if (c == ']') {
+				if (matched < 2) {
+					matched++;
+				} else {
+					append(']');
+				}
+			} else if (c == '>' && matched == 2) {
+				return;
+			} else {
+				for (; matched > 0; --matched) {
+					append(']');
+				}
+				append((char) c);
+			}
+		}
+	}
+
+	private void appendEntity() throws IOException {
+		final int start = length;
+		int c = read();
+		while (c != ';') {
+			if (c == -1 || length - start > 10) {
+				throw new IOException("unterminated entity reference");
+			}
+			append((char) c);
+			c = read();
+		}
+		final String entity = new String(chars, start, length - start);
+		length = start;
+		switch (entity) {
+			case "lt":
+				append('<');
+				break;
+			case "gt":
+				append('>');
+				break;
+			case "amp":
+				append('&');
+				break;
+			case "quot":
+				append('"');
+				break;
+			case "apos":
+				append('\'');
+				break;
+			default:
+				if (entity.length() > 1 && entity.charAt(0) == '#') {
+					final int codePoint;
+					try {
+						if (entity.charAt(1) == 'x') {
+							codePoint = Integer.parseInt(entity.substring(2), 16);
+						} else {
+							codePoint = Integer.parseInt(entity.substring(1));
+						}
+					} catch (final NumberFormatException e) {
+						throw new IOException("invalid character reference &" + entity + ";");
+					}
+					if (!Character.isValidCodePoint(codePoint)) {
+						throw new IOException("invalid character reference &" + entity + ";");
+					}
+					for (final char character : Character.toChars(codePoint)) {
+						append(character);
+					}
+				} else {
+					throw new IOException("unknown entity &" + entity + ";");
+				}
+		}
+	}
+
+	private boolean consume(final String expected) throws IOException {
+		for (int i = 0; i < expected.length(); ++i) {
+			final int c = read();
+			if (c != expected.charAt(i)) {
+				if (i == 0) {
+					unread(c);
+					return false;
+				}
+				throw new IOException("malformed markup, expected " + expected);
+			}
+		}
+		return true;
+	}
+
+	private boolean consumeAfterOpenBracket(final String expected) throws IOException {
+		final int c = read();
+		if (c != expected.charAt(0)) {
+			unread(c);
+			return false;
+		}
+		final String remainder = expected.substring(1);
+		if (!consume(remainder)) {
+			throw new IOException("markup is not allowed in character data");
+		}
+		return true;
+	}
+
+	private void skipUntil(final String terminator) throws IOException {
+		int matched = 0;
+		while (matched < terminator.length()) {
+			final int c = read();
+			if (c == -1) {
+				throw new IOException("unexpected end of stream");
+			}
+			if (c == terminator.charAt(matched)) {
+				matched++;
+			} else {
+				matched = c == terminator.charAt(0) ? 1 : 0;
+			}
+		}
+	}
+
+	private int skipWhitespace() throws IOException {
+		int c = read();
+		while (isWhitespace(c)) {
+			c = read();
+		}
+		return c;
+	}
+
+	private static boolean isWhitespace(final int c) {
+		return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+	}
+
+	private void append(final char c) {
+		if (length == chars.length) {
+			chars = Arrays.copyOf(chars, length * 2);
+		}
+		chars[length++] = c;
+	}
+
+	private void unread(final int c) {
+		if (c != -1) {
+			this.pushback[pushbackCount++] = c;
+		}
+	}
+
+	private int readByte() throws IOException {
+		if (position == limit) {
+			final InputStream inputStream = this.is;
+			if (inputStream == null) {
+				return -1;
+			}
+			final int count = inputStream.read(buffer, 0, buffer.length);
+			if (count <= 0) {
+				return -1;
+			}
+			position = 0;
+			limit = count;
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	/**
+	 * Returns the next UTF-16 code unit decoded from the underlying UTF-8 byte stream. Malformed
+	 * sequences are replaced with U+FFFD just like InputStreamReader would.
+	 */
+	private int read() throws IOException {
+		if (pushbackCount > 0) {
+			return pushback[--pushbackCount];
+		}
+		if (lowSurrogate != -1) {
+			final int c = lowSurrogate;
+			lowSurrogate = -1;
+			return c;
+		}
+		final int b = readByte();
+		if (b < 0x80) {
+			return b;
+		}
+		final int continuationBytes;
+		int codePoint;
+		if ((b & 0xe0) == 0xc0) {
+			continuationBytes = 1;
+			codePoint = b & 0x1f;
+		} else if ((b & 0xf0) == 0xe0) {
+			continuationBytes = 2;
+			codePoint = b & 0x0f;
+		} else if ((b & 0xf8) == 0xf0) {
+			continuationBytes = 3;
+			codePoint = b & 0x07;
+		} else {
+			return 0xfffd;
+		}
+		for (int i = 0; i < continuationBytes; ++i) {
+			final int next = readByte();
+			if (next == -1) {
+				throw new IOException("unexpected end of stream in multi byte sequence");
+			}
+			if ((next & 0xc0) != 0x80) {
+				//the byte starts the next character (it might be a '<'); leave it in the buffer
+				--position;
+				return 0xfffd;
+			}
+			codePoint = (codePoint << 6) | (next & 0x3f);
+		}
+		if (codePoint < 0x10000) {
+			return codePoint;
+		} else if (codePoint <= Character.MAX_CODE_POINT) {
+			lowSurrogate = Character.lowSurrogate(codePoint);
+			return Character.highSurrogate(codePoint);
+		} else {
+			return 0xfffd;
+		}
+	}
+
+	/**
+	 * Open addressing table that maps character sequences to canonical String instances. The
+	 * table stops growing once it reaches its capacity so a hostile peer can not use it to
+	 * exhaust memory; names that do not fit are simply returned as fresh Strings.
+	 */
+	private static final class Symbols {
+
+		private static final int CAPACITY = 1024;
+
+		private final String[] table = new String[CAPACITY * 2];
+		private int size = 0;
+
+		String get(final char[] chars, final int length) {
+			int hash = 0;
+			for (int i = 0; i < length; ++i) {
+				hash = 31 * hash + chars[i];
+			}
+			final int mask = table.length - 1;
+			int index = (hash ^ (hash >>> 16)) & mask;
+			String symbol;
+			while ((symbol = table[index]) != null) {
+				if (symbol.length() == length && matches(symbol, chars, length)) {
+					return symbol;
+				}
+				index = (index + 1) & mask;
+			}
+			final String string = new String(chars, 0, length);
+			if (size < CAPACITY) {
+				table[index] = string;
+				size++;
+			}
+			return string;
+		}
+
+		String get(final String string) {
+			return get(string.toCharArray(), string.length());
+		}
+
+		private static boolean matches(final String symbol, final char[] chars, final int length) {
+			for (int i = 0; i < length; ++i) {
+				if (symbol.charAt(i) != chars[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
 }
@@ -0,0 +1,105 @@
+package eu.siacs.conversations.xmpp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import eu.siacs.conversations.xmpp.stanzas.AbstractAcknowledgeableStanza;
+
+/**
+ * The stanzas that have been sent in a stream management session but not yet been acknowledged,
+ * kept in a ring buffer indexed by their sequence number. Since sequence numbers are consecutive
+ * and acknowledgements always cover a prefix of the queue, acknowledging k stanzas takes O(k)
+ * no matter how many are outstanding.
+ * <p>
+ * Not thread safe; {@link XmppConnection} synchronizes on the queue.
+ */
+final class StanzaQueue {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private AbstractAcknowledgeableStanza[] stanzas = new AbstractAcknowledgeableStanza[INITIAL_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+    //sequence number of the stanza at head
+    private int firstSequence = 0;
+
+    /**
+     * Adds a stanza with the sequence number that follows the last one in the queue (any number
+     * if the queue is empty).
+     */
+    public void append(final int sequence, final AbstractAcknowledgeableStanza stanza) {
+        if (size == 0) {
+            firstSequence = sequence;
+        } else if (sequence != firstSequence + size) {
+            throw new AssertionError("Stanza count messed up");
+        }
+        if (size == stanzas.length) {
+            grow();
+        }
+        stanzas[(head + size) % stanzas.length] = stanza;
+        ++size;
+    }
+
+    /**
+     * Removes all stanzas with a sequence number up to and including the given one.
+     *
+     * @return the removed stanzas in the order they have been sent
+     */
+    public List<AbstractAcknowledgeableStanza> acknowledgeUpTo(final int sequence) {
+        if (size == 0 || sequence < firstSequence) {
+            return new ArrayList<>(0);
+        }
+        final int count = (int) Math.min(size, (long) sequence - firstSequence + 1);
+        final ArrayList<AbstractAcknowledgeableStanza> acknowledged = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            acknowledged.add(stanzas[head]);
+            stanzas[head] = null;
+            head = (head + 1) % stanzas.length;
+        }
+        size -= count;
+        firstSequence += count;
+        return acknowledged;
+    }
+
+    /**
+     * @return all stanzas in the order they have been sent
+     */
+    public List<AbstractAcknowledgeableStanza> toList() {
+        final ArrayList<AbstractAcknowledgeableStanza> list = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            list.add(stanzas[(head + i) % stanzas.length]);
+        }
+        return list;
+    }
+
+    /**
+     * @return the sequence number of the last stanza or -1 if the queue is empty
+     */
+    public int getLastSequence() {
+        return size == 0 ? -1 : firstSequence + size - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        if (stanzas.length > INITIAL_CAPACITY) {
+            stanzas = new AbstractAcknowledgeableStanza[INITIAL_CAPACITY];
+        } else {
+            Arrays.fill(stanzas, null);
+        }
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        final AbstractAcknowledgeableStanza[] grown = new AbstractAcknowledgeableStanza[stanzas.length * 2];
+        for (int i = 0; i < size; ++i) {
+            grown[i] = stanzas[(head + i) % stanzas.length];
+        }
+        stanzas = grown;
+        head = 0;
+    }
+}
@@ -8,7 +8,6 @@ import android.security.KeyChain;
 import android.util.Base64;
 import android.util.Log;
 import android.util.Pair;
-import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 
@@ -17,6 +16,7 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.IDN;
 import java.net.InetAddress;
@@ -41,6 +41,10 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -75,10 +79,12 @@ import eu.siacs.conversations.services.MemorizingTrustManager;
 import eu.siacs.conversations.services.MessageArchiveService;
 import eu.siacs.conversations.services.NotificationService;
 import eu.siacs.conversations.services.XmppConnectionService;
+import eu.siacs.conversations.utils.ConnectionRace;
 import eu.siacs.conversations.utils.CryptoHelper;
 import eu.siacs.conversations.utils.Patterns;
 import eu.siacs.conversations.utils.Resolver;
 import eu.siacs.conversations.utils.SSLSocketHelper;
+import eu.siacs.conversations.utils.SerialPerKeyExecutor;
 import eu.siacs.conversations.utils.SocksSocketFactory;
 import eu.siacs.conversations.utils.XmlHelper;
 import eu.siacs.conversations.xml.Element;
@@ -133,11 +139,13 @@ public class XmppConnection implements Runnable {
             throw new StateChangingError(state);
         }
     };
+    private static final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE = Executors.newSingleThreadScheduledExecutor();
+
     protected final Account account;
     private final Features features = new Features(this);
     private final HashMap<Jid, ServiceDiscoveryResult> disco = new HashMap<>();
     private final HashMap<String, Jid> commands = new HashMap<>();
-    private final SparseArray<AbstractAcknowledgeableStanza> mStanzaQueue = new SparseArray<>();
+    private final StanzaQueue mStanzaQueue = new StanzaQueue();
     private final Hashtable<String, Pair<IqPacket, OnIqPacketReceived>> packetCallbacks = new Hashtable<>();
     private final Set<OnAdvancedStreamFeaturesLoaded> advancedStreamFeaturesLoadedListeners = new HashSet<>();
     private final XmppConnectionService mXmppConnectionService;
@@ -150,8 +158,12 @@ public class XmppConnection implements Runnable {
     private Element streamFeatures;
     private String streamId = null;
     private int smVersion = 3;
+    //stanzas read from the stream. reported to the server only once all of them have been handled
     private int stanzasReceived = 0;
     private int stanzasSent = 0;
+    //message stanzas sent since the last ack request; guarded by mStanzaQueue
+    private int unrequestedAcks = 0;
+    private boolean ackRequestScheduled = false;
     private long lastPacketReceived = 0;
     private long lastPingSent = 0;
     private long lastConnect = 0;
@@ -175,6 +187,8 @@ public class XmppConnection implements Runnable {
     private URL redirectionUrl = null;
     private String verifiedHostname = null;
     private volatile Thread mThread;
+    private final SerialPerKeyExecutor stanzaDispatcher = new SerialPerKeyExecutor(createDispatchExecutor());
+    private volatile Account.State dispatchedStateChange = null;
     private CountDownLatch mStreamCountDownLatch;
 
 
@@ -259,6 +273,7 @@ public class XmppConnection implements Runnable {
         inSmacksSession = false;
         isBound = false;
         this.attempt++;
+        this.dispatchedStateChange = null;
         this.verifiedHostname = null; //will be set if user entered hostname is being used or hostname was verified with dnssec
         try {
             Socket localSocket;
@@ -321,62 +336,47 @@ public class XmppConnection implements Runnable {
                         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": loaded backup resolver result from db: " + storedBackupResult);
                     }
                 }
-                for (Iterator<Resolver.Result> iterator = results.iterator(); iterator.hasNext(); ) {
-                    final Resolver.Result result = iterator.next();
-                    if (Thread.currentThread().isInterrupted()) {
-                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": Thread was interrupted");
-                        return;
+                final ConnectionRace<Resolver.Result, PendingStream> race = new ConnectionRace<>(Resolver.interleaveAddressFamilies(results), Config.CONNECTION_ATTEMPT_DELAY, new ConnectionRace.Connector<Resolver.Result, PendingStream>() {
+                    @Override
+                    public PendingStream connect(final Resolver.Result result, final ConnectionRace.Attempt attempt) throws Exception {
+                        return openPendingStream(result, attempt);
                     }
-                    try {
-                        // if tls is true, encryption is implied and must not be started
-                        features.encryptionEnabled = result.isDirectTls();
-                        verifiedHostname = result.isAuthenticated() ? result.getHostname().toString() : null;
-                        Log.d(Config.LOGTAG, "verified hostname " + verifiedHostname);
-                        final InetSocketAddress addr;
-                        if (result.getIp() != null) {
-                            addr = new InetSocketAddress(result.getIp(), result.getPort());
-                            Log.d(Config.LOGTAG, account.getJid().asBareJid().toString()
-                                    + ": using values from resolver " + (result.getHostname() == null ? "" : result.getHostname().toString()
-                                    + "/") + result.getIp().getHostAddress() + ":" + result.getPort() + " tls: " + features.encryptionEnabled);
-                        } else {
-                            addr = new InetSocketAddress(IDN.toASCII(result.getHostname().toString()), result.getPort());
-                            Log.d(Config.LOGTAG, account.getJid().asBareJid().toString()
-                                    + ": using values from resolver "
-                                    + result.getHostname().toString() + ":" + result.getPort() + " tls: " + features.encryptionEnabled);
-                        }
-
-                        localSocket = new Socket();
-                        localSocket.connect(addr, Config.SOCKET_TIMEOUT * 1000);
-
-                        if (features.encryptionEnabled) {
-                            localSocket = upgradeSocketToTls(localSocket);
-                        }
 
-                        localSocket.setSoTimeout(Config.SOCKET_TIMEOUT * 1000);
-                        if (startXmpp(localSocket)) {
-                            localSocket.setSoTimeout(0); //reset to 0; once the connection is established we don’t want this
-                            if (!hardcoded && !result.equals(storedBackupResult)) {
-                                mXmppConnectionService.databaseBackend.saveResolverResult(domain, result);
-                            }
-                            break; // successfully connected to server that speaks xmpp
-                        } else {
-                            FileBackend.close(localSocket);
-                            throw new StateChangingException(Account.State.STREAM_OPENING_ERROR);
-                        }
-                    } catch (final StateChangingException e) {
-                        if (!iterator.hasNext()) {
-                            throw e;
-                        }
-                    } catch (InterruptedException e) {
-                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": thread was interrupted before beginning stream");
-                        return;
-                    } catch (final Throwable e) {
-                        Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": " + e.getMessage() + "(" + e.getClass().getName() + ")");
-                        if (!iterator.hasNext()) {
-                            throw new UnknownHostException();
-                        }
+                    @Override
+                    public void close(final PendingStream stream) {
+                        stream.close();
+                    }
+                });
+                final ConnectionRace.Winner<Resolver.Result, PendingStream> winner;
+                try {
+                    winner = race.run();
+                } catch (final InterruptedException e) {
+                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": thread was interrupted before beginning stream");
+                    return;
+                } catch (final StateChangingException e) {
+                    throw e;
+                } catch (final Exception e) {
+                    Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": " + e.getMessage() + "(" + e.getClass().getName() + ")");
+                    if (!hardcoded) {
+                        Resolver.invalidate(domain);
+                    }
+                    throw new UnknownHostException();
+                } finally {
+                    for (final ConnectionRace.Timing<Resolver.Result> timing : race.getTimings()) {
+                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": " + timing);
                     }
                 }
+                final Resolver.Result result = winner.candidate;
+                final PendingStream stream = winner.connection;
+                // if tls is true, encryption is implied and must not be started
+                features.encryptionEnabled = result.isDirectTls();
+                verifiedHostname = stream.verifiedHostname;
+                Log.d(Config.LOGTAG, "verified hostname " + verifiedHostname);
+                useStream(stream.socket, stream.tagReader, stream.tagWriter);
+                stream.socket.setSoTimeout(0); //reset to 0; once the connection is established we don’t want this
+                if (!hardcoded && !result.equals(storedBackupResult)) {
+                    mXmppConnectionService.databaseBackend.saveResolverResult(domain, result);
+                }
             }
             processStream();
         } catch (final SecurityException e) {
@@ -411,16 +411,34 @@ public class XmppConnection implements Runnable {
         if (Thread.currentThread().isInterrupted()) {
             throw new InterruptedException();
         }
+        final XmlReader tagReader = new XmlReader();
+        final TagWriter tagWriter = new TagWriter();
+        useStream(socket, tagReader, tagWriter);
+        return openStream(socket, tagReader, tagWriter);
+    }
+
+    private void useStream(final Socket socket, final XmlReader tagReader, final TagWriter tagWriter) {
         this.socket = socket;
-        tagReader = new XmlReader();
-        if (tagWriter != null) {
-            tagWriter.forceClose();
+        this.tagReader = tagReader;
+        if (this.tagWriter != null) {
+            this.tagWriter.forceClose();
+            if (this.tagWriter.getStanzasWritten() > 0) {
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": previous tag writer wrote " + this.tagWriter.getStatistics());
+            }
         }
-        tagWriter = new TagWriter();
+        this.tagWriter = tagWriter;
+    }
+
+    /**
+     * Sends the stream header and waits for the one of the server
+     *
+     * @return true if server returns with valid xmpp, false otherwise
+     */
+    private boolean openStream(final Socket socket, final XmlReader tagReader, final TagWriter tagWriter) throws Exception {
         tagWriter.setOutputStream(socket.getOutputStream());
         tagReader.setInputStream(socket.getInputStream());
         tagWriter.beginDocument();
-        sendStartStream();
+        sendStartStream(tagWriter);
         final Tag tag = tagReader.readTag();
         if (Thread.currentThread().isInterrupted()) {
             throw new InterruptedException();
@@ -431,6 +449,42 @@ public class XmppConnection implements Runnable {
         return tag != null && tag.isStart("stream");
     }
 
+    /**
+     * Connects to a single resolver result up to the point where the server has answered with its
+     * stream header. Runs concurrently with attempts to other results and must therefore not touch
+     * the state of the connection.
+     */
+    private PendingStream openPendingStream(final Resolver.Result result, final ConnectionRace.Attempt attempt) throws Exception {
+        final String verifiedHostname = result.isAuthenticated() ? result.getHostname().toString() : null;
+        final InetSocketAddress addr;
+        if (result.getIp() != null) {
+            addr = new InetSocketAddress(result.getIp(), result.getPort());
+            Log.d(Config.LOGTAG, account.getJid().asBareJid().toString()
+                    + ": using values from resolver " + (result.getHostname() == null ? "" : result.getHostname().toString()
+                    + "/") + result.getIp().getHostAddress() + ":" + result.getPort() + " tls: " + result.isDirectTls());
+        } else {
+            addr = new InetSocketAddress(IDN.toASCII(result.getHostname().toString()), result.getPort());
+            Log.d(Config.LOGTAG, account.getJid().asBareJid().toString()
+                    + ": using values from resolver "
+                    + result.getHostname().toString() + ":" + result.getPort() + " tls: " + result.isDirectTls());
+        }
+        Socket localSocket = new Socket();
+        attempt.register(localSocket);
+        localSocket.connect(addr, Config.SOCKET_TIMEOUT * 1000);
+        if (result.isDirectTls()) {
+            localSocket = upgradeSocketToTls(localSocket, verifiedHostname);
+            attempt.register(localSocket);
+        }
+        localSocket.setSoTimeout(Config.SOCKET_TIMEOUT * 1000);
+        final PendingStream stream = new PendingStream(localSocket, new XmlReader(), new TagWriter(), verifiedHostname);
+        if (openStream(localSocket, stream.tagReader, stream.tagWriter)) {
+            return stream;
+        } else {
+            stream.close();
+            throw new StateChangingException(Account.State.STREAM_OPENING_ERROR);
+        }
+    }
+
     private TlsFactoryVerifier getTlsFactoryVerifier() throws NoSuchAlgorithmException, KeyManagementException, IOException {
         final SSLContext sc = SSLSocketHelper.getSSLContext();
         final MemorizingTrustManager trustManager = this.mXmppConnectionService.getMemorizingTrustManager();
@@ -461,6 +515,23 @@ public class XmppConnection implements Runnable {
     }
 
     private void processStream() throws XmlPullParserException, IOException {
+        try {
+            processStreamTags();
+        } catch (final IOException e) {
+            throwIfDispatchFailed();
+            throw e;
+        }
+        throwIfDispatchFailed();
+    }
+
+    private void throwIfDispatchFailed() throws StateChangingException {
+        final Account.State state = this.dispatchedStateChange;
+        if (state != null) {
+            throw new StateChangingException(state);
+        }
+    }
+
+    private void processStreamTags() throws XmlPullParserException, IOException {
         final CountDownLatch streamCountDownLatch = new CountDownLatch(1);
         this.mStreamCountDownLatch = streamCountDownLatch;
         Tag nextTag = tagReader.readTag();
@@ -548,8 +619,8 @@ public class XmppConnection implements Runnable {
                 final Element resumed = tagReader.readElement(nextTag);
                 final String h = resumed.getAttribute("h");
                 try {
-                    ArrayList<AbstractAcknowledgeableStanza> failedStanzas = new ArrayList<>();
-                    final boolean acknowledgedMessages;
+                    final List<AbstractAcknowledgeableStanza> acknowledged;
+                    final List<AbstractAcknowledgeableStanza> failedStanzas;
                     synchronized (this.mStanzaQueue) {
                         final int serverCount = Integer.parseInt(h);
                         if (serverCount < stanzasSent) {
@@ -559,13 +630,11 @@ public class XmppConnection implements Runnable {
                         } else {
                             Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": session resumed");
                         }
-                        acknowledgedMessages = acknowledgeStanzaUpTo(serverCount);
-                        for (int i = 0; i < this.mStanzaQueue.size(); ++i) {
-                            failedStanzas.add(mStanzaQueue.valueAt(i));
-                        }
+                        acknowledged = removeAcknowledgedStanzas(serverCount);
+                        failedStanzas = mStanzaQueue.toList();
                         mStanzaQueue.clear();
                     }
-                    if (acknowledgedMessages) {
+                    if (notifyAcknowledged(acknowledged)) {
                         mXmppConnectionService.updateConversationUi();
                     }
                     Log.d(Config.LOGTAG, "resending " + failedStanzas.size() + " stanzas");
@@ -585,36 +654,23 @@ public class XmppConnection implements Runnable {
                 changeStatus(Account.State.ONLINE);
             } else if (nextTag.isStart("r")) {
                 tagReader.readElement(nextTag);
-                if (Config.EXTENDED_SM_LOGGING) {
-                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": acknowledging stanza #" + this.stanzasReceived);
-                }
-                final AckPacket ack = new AckPacket(this.stanzasReceived, smVersion);
-                tagWriter.writeStanzaAsync(ack);
-            } else if (nextTag.isStart("a")) {
-                boolean accountUiNeedsRefresh = false;
-                synchronized (NotificationService.CATCHUP_LOCK) {
-                    if (mWaitingForSmCatchup.compareAndSet(true, false)) {
-                        final int messageCount = mSmCatchupMessageCounter.get();
-                        final int pendingIQs = packetCallbacks.size();
-                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": SM catchup complete (messages=" + messageCount + ", pending IQs=" + pendingIQs + ")");
-                        accountUiNeedsRefresh = true;
-                        if (messageCount > 0) {
-                            mXmppConnectionService.getNotificationService().finishBacklog(true, account);
-                        }
+                // only acknowledge stanzas once they have actually been handled by the dispatcher
+                final int stanzasReceived = this.stanzasReceived;
+                final AckPacket ack = new AckPacket(stanzasReceived, smVersion);
+                final TagWriter currentTagWriter = this.tagWriter;
+                stanzaDispatcher.executeAfterPending(() -> {
+                    if (Config.EXTENDED_SM_LOGGING) {
+                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": acknowledging stanza #" + stanzasReceived);
                     }
-                }
-                if (accountUiNeedsRefresh) {
-                    mXmppConnectionService.updateAccountUi();
-                }
+                    currentTagWriter.writeStanzaAsync(ack);
+                });
+            } else if (nextTag.isStart("a")) {
+                stanzaDispatcher.executeAfterPending(this::finishSmCatchup);
                 final Element ack = tagReader.readElement(nextTag);
                 lastPacketReceived = SystemClock.elapsedRealtime();
                 try {
-                    final boolean acknowledgedMessages;
-                    synchronized (this.mStanzaQueue) {
-                        final int serverSequence = Integer.parseInt(ack.getAttribute("h"));
-                        acknowledgedMessages = acknowledgeStanzaUpTo(serverSequence);
-                    }
-                    if (acknowledgedMessages) {
+                    final int serverSequence = Integer.parseInt(ack.getAttribute("h"));
+                    if (acknowledgeStanzaUpTo(serverSequence)) {
                         mXmppConnectionService.updateConversationUi();
                     }
                 } catch (NumberFormatException | NullPointerException e) {
@@ -625,11 +681,7 @@ public class XmppConnection implements Runnable {
                 try {
                     final int serverCount = Integer.parseInt(failed.getAttribute("h"));
                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": resumption failed but server acknowledged stanza #" + serverCount);
-                    final boolean acknowledgedMessages;
-                    synchronized (this.mStanzaQueue) {
-                        acknowledgedMessages = acknowledgeStanzaUpTo(serverCount);
-                    }
-                    if (acknowledgedMessages) {
+                    if (acknowledgeStanzaUpTo(serverCount)) {
                         mXmppConnectionService.updateConversationUi();
                     }
                 } catch (NumberFormatException | NullPointerException e) {
@@ -651,27 +703,64 @@ public class XmppConnection implements Runnable {
         }
     }
 
-    private boolean acknowledgeStanzaUpTo(int serverCount) {
+    private void finishSmCatchup() {
+        boolean accountUiNeedsRefresh = false;
+        synchronized (NotificationService.CATCHUP_LOCK) {
+            if (mWaitingForSmCatchup.compareAndSet(true, false)) {
+                final int messageCount = mSmCatchupMessageCounter.get();
+                final int pendingIQs = packetCallbacks.size();
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": SM catchup complete (messages=" + messageCount + ", pending IQs=" + pendingIQs + ")");
+                accountUiNeedsRefresh = true;
+                if (messageCount > 0) {
+                    mXmppConnectionService.getNotificationService().finishBacklog(true, account);
+                }
+            }
+        }
+        if (accountUiNeedsRefresh) {
+            mXmppConnectionService.updateAccountUi();
+        }
+    }
+
+    /**
+     * Removes the acknowledged stanzas from the queue and tells the listener about acknowledged
+     * messages. The listener is called without holding the lock on the queue.
+     *
+     * @return true if at least one message has been marked as sent; callers refresh the UI once
+     */
+    private boolean acknowledgeStanzaUpTo(final int serverCount) {
+        final List<AbstractAcknowledgeableStanza> acknowledged;
+        synchronized (this.mStanzaQueue) {
+            acknowledged = removeAcknowledgedStanzas(serverCount);
+        }
+        return notifyAcknowledged(acknowledged);
+    }
+
+    //must be called while holding the lock on mStanzaQueue
+    private List<AbstractAcknowledgeableStanza> removeAcknowledgedStanzas(final int serverCount) {
         if (serverCount > stanzasSent) {
             Log.e(Config.LOGTAG, "server acknowledged more stanzas than we sent. serverCount=" + serverCount + ", ourCount=" + stanzasSent);
         }
+        final List<AbstractAcknowledgeableStanza> acknowledged = mStanzaQueue.acknowledgeUpTo(serverCount);
+        if (Config.EXTENDED_SM_LOGGING && acknowledged.size() > 0) {
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": server acknowledged " + acknowledged.size() + " stanzas up to #" + serverCount);
+        }
+        return acknowledged;
+    }
+
+    private boolean notifyAcknowledged(final List<AbstractAcknowledgeableStanza> acknowledged) {
+        final OnMessageAcknowledged listener = this.acknowledgedListener;
+        if (listener == null) {
+            return false;
+        }
         boolean acknowledgedMessages = false;
-        for (int i = 0; i < mStanzaQueue.size(); ++i) {
-            if (serverCount >= mStanzaQueue.keyAt(i)) {
-                if (Config.EXTENDED_SM_LOGGING) {
-                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": server acknowledged stanza #" + mStanzaQueue.keyAt(i));
-                }
-                final AbstractAcknowledgeableStanza stanza = mStanzaQueue.valueAt(i);
-                if (stanza instanceof MessagePacket && acknowledgedListener != null) {
-                    final MessagePacket packet = (MessagePacket) stanza;
-                    final String id = packet.getId();
-                    final Jid to = packet.getTo();
-                    if (id != null && to != null) {
-                        acknowledgedMessages |= acknowledgedListener.onMessageAcknowledged(account, to, id);
-                    }
+        for (final AbstractAcknowledgeableStanza stanza : acknowledged) {
+            if (stanza instanceof MessagePacket) {
+                final MessagePacket packet = (MessagePacket) stanza;
+                final String id = packet.getId();
+                final Jid to = packet.getTo();
+                if (id != null && to != null) {
+                    acknowledgedMessages |= listener.onMessageAcknowledged(account, to, id);
                 }
-                mStanzaQueue.removeAt(i);
-                i--;
             }
         }
         return acknowledgedMessages;
@@ -736,8 +825,9 @@ public class XmppConnection implements Runnable {
             return;
         }
         if (packet instanceof JinglePacket) {
-            if (this.jingleListener != null) {
-                this.jingleListener.onJinglePacketReceived(account, (JinglePacket) packet);
+            final OnJinglePacketReceived jingleListener = this.jingleListener;
+            if (jingleListener != null) {
+                dispatch(packet, () -> jingleListener.onJinglePacketReceived(account, (JinglePacket) packet));
             }
         } else {
             OnIqPacketReceived callback = null;
@@ -765,11 +855,8 @@ public class XmppConnection implements Runnable {
                 }
             }
             if (callback != null) {
-                try {
-                    callback.onIqPacketReceived(account, packet);
-                } catch (StateChangingError error) {
-                    throw new StateChangingException(error.state);
-                }
+                final OnIqPacketReceived iqCallback = callback;
+                dispatch(packet, () -> iqCallback.onIqPacketReceived(account, packet));
             }
         }
     }
@@ -780,7 +867,8 @@ public class XmppConnection implements Runnable {
             Log.e(Config.LOGTAG, "encountered invalid message from='" + packet.getFrom() + "' to='" + packet.getTo() + "'");
             return;
         }
-        this.messageListener.onMessagePacketReceived(account, packet);
+        final OnMessagePacketReceived messageListener = this.messageListener;
+        dispatch(packet, () -> messageListener.onMessagePacketReceived(account, packet));
     }
 
     private void processPresence(final Tag currentTag) throws IOException {
@@ -789,7 +877,97 @@ public class XmppConnection implements Runnable {
             Log.e(Config.LOGTAG, "encountered invalid presence from='" + packet.getFrom() + "' to='" + packet.getTo() + "'");
             return;
         }
-        this.presenceListener.onPresencePacketReceived(account, packet);
+        final OnPresencePacketReceived presenceListener = this.presenceListener;
+        dispatch(packet, () -> presenceListener.onPresencePacketReceived(account, packet));
+    }
+
+    private static ThreadPoolExecutor createDispatchExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(Config.STANZA_DISPATCH_THREADS, Config.STANZA_DISPATCH_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Hands the processing of a stanza to the dispatch executor of this connection. Stanzas with
+     * the same counterpart (see {@link #getDispatchKey(AbstractStanza)}) are processed in the
+     * order they were received; stanzas of different counterparts may be processed in parallel.
+     * Any other stanza from the account itself (like the end of a MAM query or a roster push) is
+     * only processed once everything that was received before it has been. Reading from the
+     * socket pauses while
+     * {@link Config#MAX_PENDING_STANZAS} stanzas are waiting. Until the stream is bound everything
+     * is processed on the reader thread since the stream negotiation depends on the callbacks
+     * having run.
+     */
+    private void dispatch(final AbstractStanza packet, final Runnable runnable) throws IOException {
+        if (!isBound) {
+            try {
+                runnable.run();
+            } catch (final StateChangingError error) {
+                throw new StateChangingException(error.state);
+            }
+            return;
+        }
+        final Jid key = getDispatchKey(packet);
+        final Socket socket = this.socket;
+        try {
+            stanzaDispatcher.awaitPendingBelow(Config.MAX_PENDING_STANZAS);
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for pending stanzas");
+        }
+        final Runnable task = () -> {
+            try {
+                runnable.run();
+            } catch (final StateChangingError error) {
+                if (socket == this.socket) {
+                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": dispatched stanza caused state change to " + error.state);
+                    this.dispatchedStateChange = error.state;
+                    forceCloseSocket();
+                }
+            }
+        };
+        if (key.equals(account.getJid().asBareJid())) {
+            stanzaDispatcher.executeAfterPending(key, task);
+        } else {
+            stanzaDispatcher.execute(key, task);
+        }
+    }
+
+    /**
+     * @return the bare jid of the entity a stanza is about. Carbons and MAM results are sent by
+     * the account itself; they are keyed by the counterpart of the forwarded message so they are
+     * processed in order with the live messages, receipts and markers of the same conversation.
+     */
+    private Jid getDispatchKey(final AbstractStanza packet) {
+        final Jid self = account.getJid().asBareJid();
+        final Jid from = packet.getFrom() == null ? self : packet.getFrom().asBareJid();
+        if (packet instanceof MessagePacket && from.equals(self)) {
+            final Jid counterpart = getForwardedCounterpart((MessagePacket) packet);
+            if (counterpart != null) {
+                return counterpart;
+            }
+        }
+        return from;
+    }
+
+    private Jid getForwardedCounterpart(final MessagePacket packet) {
+        for (final Element wrapper : packet.getChildren()) {
+            final Element forwarded = wrapper.findChild("forwarded", "urn:xmpp:forward:0");
+            final Element message = forwarded == null ? null : forwarded.findChild("message");
+            if (message == null) {
+                continue;
+            }
+            final Jid from = InvalidJid.getNullForInvalid(message.getAttributeAsJid("from"));
+            final Jid to = InvalidJid.getNullForInvalid(message.getAttributeAsJid("to"));
+            final Jid self = account.getJid().asBareJid();
+            if (from != null && !from.asBareJid().equals(self)) {
+                return from.asBareJid();
+            } else if (to != null) {
+                return to.asBareJid();
+            } else {
+                return self;
+            }
+        }
+        return null;
     }
 
     private void sendStartTLS() throws IOException {
@@ -818,6 +996,10 @@ public class XmppConnection implements Runnable {
     }
 
     private SSLSocket upgradeSocketToTls(final Socket socket) throws IOException {
+        return upgradeSocketToTls(socket, this.verifiedHostname);
+    }
+
+    private SSLSocket upgradeSocketToTls(final Socket socket, final String verifiedHostname) throws IOException {
         final TlsFactoryVerifier tlsFactoryVerifier;
         try {
             tlsFactoryVerifier = getTlsFactoryVerifier();
@@ -829,7 +1011,7 @@ public class XmppConnection implements Runnable {
         SSLSocketHelper.setSecurity(sslSocket);
         SSLSocketHelper.setHostname(sslSocket, IDN.toASCII(account.getServer()));
         SSLSocketHelper.setApplicationProtocol(sslSocket, "xmpp-client");
-        if (!tlsFactoryVerifier.verifier.verify(account.getServer(), this.verifiedHostname, sslSocket.getSession())) {
+        if (!tlsFactoryVerifier.verifier.verify(account.getServer(), verifiedHostname, sslSocket.getSession())) {
             Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": TLS certificate verification failed");
             FileBackend.close(sslSocket);
             throw new StateChangingException(Account.State.TLS_ERROR);
@@ -859,9 +1041,11 @@ public class XmppConnection implements Runnable {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": resuming after stanza #" + stanzasReceived);
             }
             final ResumePacket resume = new ResumePacket(this.streamId, stanzasReceived, smVersion);
+            final TagWriter currentTagWriter = this.tagWriter;
             this.mSmCatchupMessageCounter.set(0);
             this.mWaitingForSmCatchup.set(true);
-            this.tagWriter.writeStanzaAsync(resume);
+            //stanzas of the previous stream might still be waiting to be processed
+            stanzaDispatcher.executeAfterPending(() -> currentTagWriter.writeStanzaAsync(resume));
         } else if (needsBinding) {
             if (this.streamFeatures.hasChild("bind") && isSecure) {
                 sendBindRequest();
@@ -1392,24 +1576,29 @@ public class XmppConnection implements Runnable {
     }
 
     private void failPendingMessages(final String error) {
+        final List<AbstractAcknowledgeableStanza> pending;
         synchronized (this.mStanzaQueue) {
-            for (int i = 0; i < mStanzaQueue.size(); ++i) {
-                final AbstractAcknowledgeableStanza stanza = mStanzaQueue.valueAt(i);
-                if (stanza instanceof MessagePacket) {
-                    final MessagePacket packet = (MessagePacket) stanza;
-                    final String id = packet.getId();
-                    final Jid to = packet.getTo();
-                    mXmppConnectionService.markMessage(account,
-                            to.asBareJid(),
-                            id,
-                            Message.STATUS_SEND_FAILED,
-                            error);
-                }
+            pending = mStanzaQueue.toList();
+        }
+        for (final AbstractAcknowledgeableStanza stanza : pending) {
+            if (stanza instanceof MessagePacket) {
+                final MessagePacket packet = (MessagePacket) stanza;
+                final String id = packet.getId();
+                final Jid to = packet.getTo();
+                mXmppConnectionService.markMessage(account,
+                        to.asBareJid(),
+                        id,
+                        Message.STATUS_SEND_FAILED,
+                        error);
             }
         }
     }
 
     private void sendStartStream() throws IOException {
+        sendStartStream(this.tagWriter);
+    }
+
+    private void sendStartStream(final TagWriter tagWriter) throws IOException {
         final Tag stream = Tag.start("stream:stream");
         stream.setAttribute("to", account.getServer());
         stream.setAttribute("version", "1.0");
@@ -1476,23 +1665,54 @@ public class XmppConnection implements Runnable {
             if (packet instanceof AbstractAcknowledgeableStanza) {
                 AbstractAcknowledgeableStanza stanza = (AbstractAcknowledgeableStanza) packet;
 
-                if (this.mStanzaQueue.size() != 0) {
-                    int currentHighestKey = this.mStanzaQueue.keyAt(this.mStanzaQueue.size() - 1);
-                    if (currentHighestKey != stanzasSent) {
-                        throw new AssertionError("Stanza count messed up");
-                    }
+                if (this.mStanzaQueue.size() != 0 && this.mStanzaQueue.getLastSequence() != stanzasSent) {
+                    throw new AssertionError("Stanza count messed up");
                 }
 
                 ++stanzasSent;
                 this.mStanzaQueue.append(stanzasSent, stanza);
                 if (stanza instanceof MessagePacket && stanza.getId() != null && inSmacksSession) {
-                    if (Config.EXTENDED_SM_LOGGING) {
-                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": requesting ack for message stanza #" + stanzasSent);
-                    }
-                    tagWriter.writeStanzaAsync(new RequestPacket(this.smVersion));
+                    requestAck();
+                }
+            }
+        }
+    }
+
+    /**
+     * Requests an ack for the message stanzas sent so far. Requests are coalesced: one is sent
+     * after {@link Config#SM_ACK_REQUEST_BATCH} messages or {@link Config#SM_ACK_REQUEST_DELAY}
+     * after the first message that has not been covered by a request, whichever comes first.
+     * Must be called while holding the lock on mStanzaQueue.
+     */
+    private void requestAck() {
+        ++unrequestedAcks;
+        if (unrequestedAcks >= Config.SM_ACK_REQUEST_BATCH) {
+            writeAckRequest();
+            return;
+        }
+        if (ackRequestScheduled) {
+            return;
+        }
+        ackRequestScheduled = true;
+        final TagWriter currentTagWriter = this.tagWriter;
+        SCHEDULED_EXECUTOR_SERVICE.schedule(() -> {
+            synchronized (this.mStanzaQueue) {
+                ackRequestScheduled = false;
+                if (currentTagWriter != this.tagWriter || !inSmacksSession) {
+                    unrequestedAcks = 0;
+                } else if (unrequestedAcks > 0) {
+                    writeAckRequest();
                 }
             }
+        }, Config.SM_ACK_REQUEST_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void writeAckRequest() {
+        if (Config.EXTENDED_SM_LOGGING) {
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": requesting ack for " + unrequestedAcks + " message stanzas up to #" + stanzasSent);
         }
+        unrequestedAcks = 0;
+        tagWriter.writeStanzaAsync(new RequestPacket(this.smVersion));
     }
 
     public void sendPing() {
@@ -1541,6 +1761,26 @@ public class XmppConnection implements Runnable {
         this.advancedStreamFeaturesLoadedListeners.add(listener);
     }
 
+    private static class PendingStream {
+        private final Socket socket;
+        private final XmlReader tagReader;
+        private final TagWriter tagWriter;
+        private final String verifiedHostname;
+
+        private PendingStream(final Socket socket, final XmlReader tagReader, final TagWriter tagWriter, final String verifiedHostname) {
+            this.socket = socket;
+            this.tagReader = tagReader;
+            this.tagWriter = tagWriter;
+            this.verifiedHostname = verifiedHostname;
+        }
+
+        private void close() {
+            tagWriter.forceClose();
+            FileBackend.close(socket);
+            FileBackend.close(tagReader);
+        }
+    }
+
     private void forceCloseSocket() {
         FileBackend.close(this.socket);
         FileBackend.close(this.tagReader);
@@ -86,6 +86,7 @@ public class JingleFileTransferConnection extends AbstractJingleConnection imple
     private boolean remoteSupportsOmemoJet;
 
     private int mProgress = 0;
+    private long transmissionRate = 0;
 
     private boolean receivedCandidate = false;
     private boolean sentCandidate = false;
@@ -114,6 +115,9 @@ public class JingleFileTransferConnection extends AbstractJingleConnection imple
 
         @Override
         public void onFileTransmitted(DownloadableFile file) {
+            if (transmissionRate > 0) {
+                Log.d(Config.LOGTAG, id.account.getJid().asBareJid() + ": transmitted file at " + (transmissionRate / 1024) + " KiB/s");
+            }
             if (responding()) {
                 if (expectedHash.length > 0) {
                     if (Arrays.equals(expectedHash, file.getSha1Sum())) {
@@ -163,6 +167,12 @@ public class JingleFileTransferConnection extends AbstractJingleConnection imple
             JingleFileTransferConnection.this.sendSessionTerminate(Reason.CONNECTIVITY_ERROR);
             JingleFileTransferConnection.this.fail();
         }
+
+        @Override
+        public void onFileTransmissionProgress(final long transmitted, final long total, final long bytesPerSecond) {
+            transmissionRate = bytesPerSecond;
+            updateProgress(total <= 0 ? 0 : (int) (transmitted * 100 / total));
+        }
     };
     private final OnTransportConnected onIbbTransportConnected = new OnTransportConnected() {
         @Override
@@ -1,9 +1,11 @@
 package eu.siacs.conversations.xmpp.jingle;
 
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -46,6 +48,14 @@ public class JingleInBandTransport extends JingleTransport {
 
     private OnFileTransmissionStatusChanged onFileTransmissionStatusChanged;
 
+    //blocks that have been sent but not acknowledged yet
+    private int inFlight = 0;
+    private boolean endOfFile = false;
+    private boolean transmitted = false;
+    private byte[] blockBuffer;
+    private char[] base64Buffer;
+    private long startTime;
+
     private final OnIqPacketReceived onAckReceived = new OnIqPacketReceived() {
         @Override
         public void onIqPacketReceived(Account account, IqPacket packet) {
@@ -53,11 +63,9 @@ public class JingleInBandTransport extends JingleTransport {
                 return;
             }
             if (packet.getType() == IqPacket.TYPE.RESULT) {
-                if (remainingSize > 0) {
-                    sendNextBlock();
-                }
+                onBlockAcknowledged();
             } else if (packet.getType() == IqPacket.TYPE.ERROR) {
-                onFileTransmissionStatusChanged.onFileTransferAborted();
+                onBlockRejected();
             }
         }
     };
@@ -114,6 +122,7 @@ public class JingleInBandTransport extends JingleTransport {
                 return;
             }
             this.remainingSize = this.fileSize = file.getExpectedSize();
+            this.startTime = SystemClock.elapsedRealtime();
         } catch (final NoSuchAlgorithmException | IOException e) {
             Log.d(Config.LOGTAG, account.getJid().asBareJid() + " " + e.getMessage());
             callback.onFileTransferAborted();
@@ -136,8 +145,11 @@ public class JingleInBandTransport extends JingleTransport {
                 return;
             }
             innerInputStream = AbstractConnectionManager.upgrade(file, fileInputStream);
+            this.blockBuffer = new byte[this.blockSize];
+            this.base64Buffer = new char[(this.blockSize + 2) / 3 * 4];
+            this.startTime = SystemClock.elapsedRealtime();
             if (this.connected) {
-                this.sendNextBlock();
+                this.fillWindow();
             }
         } catch (Exception e) {
             callback.onFileTransferAborted();
@@ -152,50 +164,117 @@ public class JingleInBandTransport extends JingleTransport {
         FileBackend.close(fileInputStream);
     }
 
-    private void sendNextBlock() {
-        byte[] buffer = new byte[this.blockSize];
+    private synchronized void onBlockAcknowledged() {
+        this.inFlight--;
+        if (this.transmitted) {
+            return;
+        }
+        this.onFileTransmissionStatusChanged.onFileTransmissionProgress(this.fileSize - this.remainingSize, this.fileSize, getBytesPerSecond());
+        fillWindow();
+    }
+
+    /**
+     * Sends blocks until {@link Config#IBB_WINDOW_SIZE} of them are waiting for an acknowledgement
+     * and completes the transfer once the last block has been acknowledged.
+     */
+    private synchronized void fillWindow() {
         try {
-            int count = innerInputStream.read(buffer);
-            if (count == -1) {
-                sendClose();
-                file.setSha1Sum(digest.digest());
-                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": sendNextBlock() count was -1");
-                this.onFileTransmissionStatusChanged.onFileTransmitted(file);
-                fileInputStream.close();
-                return;
-            } else if (count != buffer.length) {
-                int rem = innerInputStream.read(buffer, count, buffer.length - count);
-                if (rem > 0) {
-                    count += rem;
-                }
+            while (this.connected && !this.endOfFile && this.inFlight < Config.IBB_WINDOW_SIZE) {
+                sendNextBlock();
             }
-            this.remainingSize -= count;
-            this.digest.update(buffer, 0, count);
-            String base64 = Base64.encodeToString(buffer, 0, count, Base64.NO_WRAP);
-            IqPacket iq = new IqPacket(IqPacket.TYPE.SET);
-            iq.setTo(this.counterpart);
-            Element data = iq.addChild("data", "http://jabber.org/protocol/ibb");
-            data.setAttribute("seq", Integer.toString(this.seq));
-            data.setAttribute("block-size", Integer.toString(this.blockSize));
-            data.setAttribute("sid", this.sessionId);
-            data.setContent(base64);
-            this.account.getXmppConnection().sendIqPacket(iq, this.onAckReceived);
-            this.account.getXmppConnection().r(); //don't fill up stanza queue too much
-            this.seq++;
-            connection.updateProgress((int) ((((double) (this.fileSize - this.remainingSize)) / this.fileSize) * 100));
-            if (this.remainingSize <= 0) {
+            if (this.endOfFile && this.inFlight <= 0 && !this.transmitted) {
+                this.transmitted = true;
                 file.setSha1Sum(digest.digest());
-                this.onFileTransmissionStatusChanged.onFileTransmitted(file);
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": sent " + this.seq + " ibb blocks at " + (getBytesPerSecond() / 1024) + " KiB/s");
                 sendClose();
+                this.onFileTransmissionStatusChanged.onFileTransmitted(file);
                 fileInputStream.close();
             }
         } catch (IOException e) {
             Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": io exception during sendNextBlock() " + e.getMessage());
             FileBackend.close(fileInputStream);
+            this.endOfFile = true;
+            this.transmitted = true;
             this.onFileTransmissionStatusChanged.onFileTransferAborted();
         }
     }
 
+    /**
+     * Stops sending further blocks and aborts the transfer. Only the first rejected block of the
+     * window aborts it; the ones that are still in flight are ignored.
+     */
+    private synchronized void onBlockRejected() {
+        this.inFlight--;
+        if (this.transmitted) {
+            return;
+        }
+        this.endOfFile = true;
+        this.transmitted = true;
+        FileBackend.close(fileInputStream);
+        this.onFileTransmissionStatusChanged.onFileTransferAborted();
+    }
+
+    private void sendNextBlock() throws IOException {
+        //always send full blocks of the negotiated size; only the last one may be shorter
+        final int count = ByteStreams.read(innerInputStream, blockBuffer, 0, blockBuffer.length);
+        if (count <= 0) {
+            this.endOfFile = true;
+            return;
+        }
+        this.remainingSize -= count;
+        this.digest.update(blockBuffer, 0, count);
+        final int length = encodeBase64(blockBuffer, count, base64Buffer);
+        IqPacket iq = new IqPacket(IqPacket.TYPE.SET);
+        iq.setTo(this.counterpart);
+        Element data = iq.addChild("data", "http://jabber.org/protocol/ibb");
+        data.setAttribute("seq", Integer.toString(this.seq));
+        data.setAttribute("block-size", Integer.toString(this.blockSize));
+        data.setAttribute("sid", this.sessionId);
+        data.setContent(new String(base64Buffer, 0, length));
+        this.account.getXmppConnection().sendIqPacket(iq, this.onAckReceived);
+        this.inFlight++;
+        this.seq++;
+        if (this.seq % Config.IBB_WINDOW_SIZE == 0) {
+            this.account.getXmppConnection().r(); //don't fill up stanza queue too much
+        }
+        if (count < blockBuffer.length || this.remainingSize <= 0) {
+            this.endOfFile = true;
+        }
+    }
+
+    private long getBytesPerSecond() {
+        final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - this.startTime);
+        return (this.fileSize - this.remainingSize) * 1000 / elapsed;
+    }
+
+    private static final char[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * Encodes the first length bytes of input into output without line breaks.
+     *
+     * @return the number of characters written
+     */
+    private static int encodeBase64(final byte[] input, final int length, final char[] output) {
+        int o = 0;
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            final int bits = (input[i] & 0xff) << 16 | (input[i + 1] & 0xff) << 8 | (input[i + 2] & 0xff);
+            output[o++] = BASE64_ALPHABET[bits >>> 18];
+            output[o++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+            output[o++] = BASE64_ALPHABET[(bits >>> 6) & 0x3f];
+            output[o++] = BASE64_ALPHABET[bits & 0x3f];
+        }
+        final int remaining = length - i;
+        if (remaining > 0) {
+            final int bits = (input[i] & 0xff) << 16 | (remaining == 2 ? (input[i + 1] & 0xff) << 8 : 0);
+            output[o++] = BASE64_ALPHABET[bits >>> 18];
+            output[o++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+            output[o++] = remaining == 2 ? BASE64_ALPHABET[(bits >>> 6) & 0x3f] : '=';
+            output[o++] = '=';
+        }
+        return o;
+    }
+
     private void receiveNextBlock(String data) {
         try {
             byte[] buffer = Base64.decode(data, Base64.NO_WRAP);
@@ -207,8 +286,8 @@ public class JingleInBandTransport extends JingleTransport {
             this.digest.update(buffer);
             if (this.remainingSize <= 0) {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": received last block. waiting for close");
-            } else {
-                connection.updateProgress((int) ((((double) (this.fileSize - this.remainingSize)) / this.fileSize) * 100));
+            } else if (this.onFileTransmissionStatusChanged != null) {
+                this.onFileTransmissionStatusChanged.onFileTransmissionProgress(this.fileSize - this.remainingSize, this.fileSize, getBytesPerSecond());
             }
         } catch (Exception e) {
             Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": " + e.getMessage(), e);
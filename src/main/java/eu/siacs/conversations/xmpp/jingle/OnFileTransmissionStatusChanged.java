@@ -6,4 +6,11 @@ public interface OnFileTransmissionStatusChanged {
 	void onFileTransmitted(DownloadableFile file);
 
 	void onFileTransferAborted();
+
+	/**
+	 * @param transmitted    number of bytes sent or received so far
+	 * @param total          expected size of the file
+	 * @param bytesPerSecond average throughput since the transfer started
+	 */
+	void onFileTransmissionProgress(long transmitted, long total, long bytesPerSecond);
 }
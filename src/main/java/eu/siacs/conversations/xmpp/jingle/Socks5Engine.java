@@ -0,0 +1,774 @@
+package eu.siacs.conversations.xmpp.jingle;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
+
+/**
+ * Runs the SOCKS5 bytestreams of all Jingle file transfers on a single selector thread: listening
+ * for and answering incoming connections, connecting (possibly through Tor) to candidates and
+ * moving file data. Unencrypted files are sent with {@link FileChannel#transferTo} so the file
+ * content does not have to be copied through the Java heap on its way to the socket.
+ * <p>
+ * Callbacks are never invoked on the selector thread. The thread is started on demand and ends
+ * once there is nothing left to do.
+ */
+final class Socks5Engine {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 8;
+    private static final long SELECT_TIMEOUT = 1000;
+    private static final int RECEIVE_IDLE_TIMEOUT = 30000;
+
+    private static Socks5Engine instance;
+
+    private final SerialSingleThreadExecutor callbackExecutor = new SerialSingleThreadExecutor("Socks5Engine");
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    //only accessed from the selector thread
+    private final HashSet<Session> sessions = new HashSet<>();
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+    private final Selector selector;
+    private boolean running = false;
+
+    static synchronized Socks5Engine getInstance() {
+        if (instance == null) {
+            instance = new Socks5Engine();
+        }
+        return instance;
+    }
+
+    private Socks5Engine() {
+        try {
+            this.selector = Selector.open();
+        } catch (final IOException e) {
+            throw new IllegalStateException("unable to open selector", e);
+        }
+    }
+
+    /**
+     * Listens for SOCKS5 connections on the given address. The first connection that requests a
+     * destination approved by the acceptor is handed over; connections requesting another
+     * destination are refused. Closing the returned handle stops listening.
+     */
+    Closeable listen(final InetSocketAddress address, final Acceptor acceptor) throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().bind(address);
+            serverChannel.configureBlocking(false);
+        } catch (final IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        execute(() -> register(new Listener(serverChannel, acceptor), SelectionKey.OP_ACCEPT));
+        return serverChannel;
+    }
+
+    /**
+     * Opens a connection to the given host and negotiates a SOCKS5 CONNECT to each of the given
+     * hops in turn. The last hop is the destination of the bytestream; when connecting through
+     * Tor the first hop is the candidate itself.
+     */
+    void connect(final String host, final int port, final List<Hop> hops, final int timeout, final ConnectCallback callback) {
+        callbackExecutor.execute(() -> {
+            final SocketChannel channel;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.connect(new InetSocketAddress(host, port));
+            } catch (final IOException | RuntimeException e) {
+                callback.onFailed(e instanceof IOException ? (IOException) e : new IOException(e));
+                return;
+            }
+            execute(() -> register(new ClientHandshake(channel, hops, timeout, callback), SelectionKey.OP_CONNECT));
+        });
+    }
+
+    /**
+     * Sends the content of the channel from its current position to the end.
+     */
+    void send(final SocketChannel channel, final FileChannel source, final TransferCallback callback) throws IOException {
+        final long position = source.position();
+        final long size = source.size();
+        execute(() -> register(new Sender(channel, source, position, null, size - position, callback), SelectionKey.OP_WRITE));
+    }
+
+    /**
+     * Sends the content of the stream until it is exhausted. The expected size is only used to
+     * report progress.
+     */
+    void send(final SocketChannel channel, final InputStream source, final long expectedSize, final TransferCallback callback) {
+        execute(() -> register(new Sender(channel, null, 0, source, expectedSize, callback), SelectionKey.OP_WRITE));
+    }
+
+    /**
+     * Receives size bytes and writes them to either the file channel (if not null) or the stream.
+     * The stream and the socket are closed afterwards.
+     */
+    void receive(final SocketChannel channel, final FileChannel fileChannel, final OutputStream outputStream, final long size, final TransferCallback callback) {
+        execute(() -> register(new Receiver(channel, fileChannel, outputStream, size, callback), SelectionKey.OP_READ));
+    }
+
+    private void execute(final Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+            if (!running) {
+                running = true;
+                final Thread thread = new Thread(this::loop, "Socks5Engine");
+                thread.setDaemon(true);
+                thread.start();
+                return;
+            }
+        }
+        selector.wakeup();
+    }
+
+    private void loop() {
+        while (true) {
+            while (true) {
+                final Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        if (sessions.isEmpty()) {
+                            running = false;
+                            return;
+                        }
+                        break;
+                    }
+                }
+                task.run();
+            }
+            try {
+                selector.select(SELECT_TIMEOUT);
+            } catch (final IOException e) {
+                Log.d(Config.LOGTAG, "select failed", e);
+            }
+            for (final SelectionKey key : selector.selectedKeys()) {
+                final Session session = (Session) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        session.onReady(key);
+                    }
+                } catch (final IOException | RuntimeException e) {
+                    session.fail(e instanceof IOException ? (IOException) e : new IOException(e));
+                }
+            }
+            selector.selectedKeys().clear();
+            final long now = SystemClock.elapsedRealtime();
+            for (final Session session : new ArrayList<>(sessions)) {
+                if (!session.channel.isOpen()) {
+                    session.fail(new ClosedChannelException());
+                } else if (session.deadline != 0 && now > session.deadline) {
+                    session.fail(new SocketTimeoutException());
+                }
+            }
+        }
+    }
+
+    private void register(final Session session, final int ops) {
+        try {
+            try {
+                session.key = session.channel.register(selector, ops, session);
+            } catch (final CancelledKeyException e) {
+                //the channel was used by a previous session whose key has not been flushed yet
+                selector.selectNow();
+                session.key = session.channel.register(selector, ops, session);
+            }
+            sessions.add(session);
+        } catch (final IOException e) {
+            session.fail(e);
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        final ByteBuffer buffer = bufferPool.poll();
+        return buffer == null ? ByteBuffer.allocate(BUFFER_SIZE) : buffer;
+    }
+
+    private void releaseBuffer(final ByteBuffer buffer) {
+        if (buffer != null && bufferPool.size() < MAX_POOLED_BUFFERS) {
+            buffer.clear();
+            bufferPool.add(buffer);
+        }
+    }
+
+    interface Acceptor {
+        /**
+         * Called on the selector thread for every incoming CONNECT request.
+         */
+        boolean accept(String destination);
+
+        void onConnected(SocketChannel channel);
+    }
+
+    interface ConnectCallback {
+        void onConnected(SocketChannel channel);
+
+        void onFailed(IOException e);
+    }
+
+    interface TransferCallback {
+        void onProgress(long transferred, long bytesPerSecond);
+
+        void onFinished(byte[] sha1Sum);
+
+        void onFailed(IOException e);
+    }
+
+    static final class Hop {
+        private final String host;
+        private final int port;
+
+        Hop(final String host, final int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    private abstract class Session {
+
+        final SelectableChannel channel;
+        SelectionKey key;
+        long deadline = 0;
+        private boolean done = false;
+
+        Session(final SelectableChannel channel) {
+            this.channel = channel;
+        }
+
+        abstract void onReady(SelectionKey key) throws IOException;
+
+        /**
+         * Removes the session from the selector. The channel stays open.
+         */
+        void finish() {
+            if (!done) {
+                done = true;
+                sessions.remove(this);
+                if (key != null) {
+                    key.cancel();
+                }
+                release();
+            }
+        }
+
+        void fail(final IOException e) {
+            if (!done) {
+                finish();
+                try {
+                    channel.close();
+                } catch (final IOException ignored) {
+                }
+                onFailed(e);
+            }
+        }
+
+        void release() {
+
+        }
+
+        abstract void onFailed(IOException e);
+    }
+
+    private class Listener extends Session {
+
+        private final Acceptor acceptor;
+
+        private Listener(final ServerSocketChannel channel, final Acceptor acceptor) {
+            super(channel);
+            this.acceptor = acceptor;
+        }
+
+        @Override
+        void onReady(final SelectionKey key) throws IOException {
+            final SocketChannel socketChannel = ((ServerSocketChannel) channel).accept();
+            if (socketChannel == null) {
+                return;
+            }
+            Log.d(Config.LOGTAG, "accepted connection from " + socketChannel.socket().getInetAddress().getHostAddress());
+            socketChannel.configureBlocking(false);
+            register(new ServerHandshake(socketChannel, this), SelectionKey.OP_READ);
+        }
+
+        @Override
+        void onFailed(final IOException e) {
+            if (!(e instanceof ClosedChannelException)) {
+                Log.d(Config.LOGTAG, "unable to accept socket", e);
+            }
+        }
+    }
+
+    /**
+     * Base for the handshakes which exchange a few small messages. Output is queued in out and
+     * written whenever the socket is writable; input is collected in in.
+     */
+    private abstract class Handshake extends Session {
+
+        final ByteBuffer in = ByteBuffer.allocate(512);
+        ByteBuffer out = null;
+
+        Handshake(final SocketChannel channel, final int timeout) {
+            super(channel);
+            this.deadline = SystemClock.elapsedRealtime() + timeout;
+        }
+
+        @Override
+        void onReady(final SelectionKey key) throws IOException {
+            if (key.isWritable() && out != null) {
+                ((SocketChannel) channel).write(out);
+                if (!out.hasRemaining()) {
+                    out = null;
+                    onWritten();
+                }
+            }
+            if (key.isValid() && key.isReadable()) {
+                if (((SocketChannel) channel).read(in) == -1) {
+                    throw new EOFException("connection closed during socks5 handshake");
+                }
+                in.flip();
+                while (in.hasRemaining() && !isDone()) {
+                    final int mark = in.position();
+                    if (!onRead()) {
+                        in.position(mark);
+                        break;
+                    }
+                }
+                in.compact();
+            }
+            if (key.isValid() && !isDone()) {
+                key.interestOps(out == null ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+            }
+        }
+
+        void write(final byte[] data) throws IOException {
+            out = ByteBuffer.wrap(data);
+            ((SocketChannel) channel).write(out);
+            if (!out.hasRemaining()) {
+                out = null;
+                onWritten();
+            }
+        }
+
+        void onWritten() throws IOException {
+
+        }
+
+        abstract boolean isDone();
+
+        /**
+         * Called with in flipped for reading and positioned at the start of the next message.
+         *
+         * @return false if the message is not complete yet; input is kept until more arrives
+         */
+        abstract boolean onRead() throws IOException;
+    }
+
+    private class ServerHandshake extends Handshake {
+
+        private static final int STATE_GREETING = 0;
+        private static final int STATE_REQUEST = 1;
+        private static final int STATE_REPLY = 2;
+
+        private final Listener listener;
+        private int state = STATE_GREETING;
+        private boolean accepted = false;
+
+        private ServerHandshake(final SocketChannel channel, final Listener listener) {
+            super(channel, JingleSocks5Transport.SOCKET_TIMEOUT_DIRECT);
+            this.listener = listener;
+        }
+
+        @Override
+        boolean isDone() {
+            return state == STATE_REPLY && out == null;
+        }
+
+        @Override
+        boolean onRead() throws IOException {
+            switch (state) {
+                case STATE_GREETING: {
+                    final int p = in.position();
+                    if (in.remaining() < 2) {
+                        return false;
+                    }
+                    if (in.get(p) != 0x05) {
+                        throw new IOException("unsupported socks version");
+                    }
+                    final int count = in.get(p + 1) & 0xff;
+                    if (in.remaining() < 2 + count) {
+                        return false;
+                    }
+                    in.position(p + 2);
+                    boolean noAuthentication = false;
+                    for (int i = 0; i < count; ++i) {
+                        noAuthentication |= in.get() == 0x00;
+                    }
+                    state = STATE_REQUEST;
+                    write(new byte[]{0x05, noAuthentication ? 0x00 : (byte) 0xff});
+                    return true;
+                }
+                case STATE_REQUEST: {
+                    final int p = in.position();
+                    if (in.remaining() < 5) {
+                        return false;
+                    }
+                    if (in.get(p) != 0x05 || in.get(p + 1) != 0x01 || in.get(p + 3) != 0x03) {
+                        throw new IOException("unsupported socks request");
+                    }
+                    final int length = in.get(p + 4) & 0xff;
+                    if (in.remaining() < 5 + length + 2) {
+                        return false;
+                    }
+                    final byte[] destination = new byte[length];
+                    in.position(p + 5);
+                    in.get(destination);
+                    final byte[] port = new byte[2];
+                    in.get(port);
+                    final String receivedDestination = new String(destination, StandardCharsets.US_ASCII);
+                    accepted = listener.acceptor.accept(receivedDestination);
+                    final ByteBuffer response = ByteBuffer.allocate(7 + destination.length);
+                    response.put(new byte[]{0x05, accepted ? 0x00 : (byte) 0x04, 0x00, 0x03});
+                    response.put((byte) destination.length);
+                    response.put(destination);
+                    response.put(port);
+                    state = STATE_REPLY;
+                    write(response.array());
+                    return true;
+                }
+                default:
+                    return true;
+            }
+        }
+
+        @Override
+        void onWritten() {
+            if (state != STATE_REPLY) {
+                return;
+            }
+            if (accepted) {
+                finish();
+                listener.fail(new ClosedChannelException());
+                final SocketChannel socketChannel = (SocketChannel) channel;
+                callbackExecutor.execute(() -> listener.acceptor.onConnected(socketChannel));
+            } else {
+                fail(new IOException("destination mismatch"));
+            }
+        }
+
+        @Override
+        void onFailed(final IOException e) {
+            Log.d(Config.LOGTAG, "unable to process incoming socks5 connection: " + e.getMessage());
+        }
+    }
+
+    private class ClientHandshake extends Handshake {
+
+        private static final int STATE_CONNECTING = 0;
+        private static final int STATE_GREETING = 1;
+        private static final int STATE_REQUEST = 2;
+        private static final int STATE_DONE = 3;
+
+        private final List<Hop> hops;
+        private final ConnectCallback callback;
+        private int hop = 0;
+        private int state = STATE_CONNECTING;
+
+        private ClientHandshake(final SocketChannel channel, final List<Hop> hops, final int timeout, final ConnectCallback callback) {
+            super(channel, timeout);
+            this.hops = hops;
+            this.callback = callback;
+        }
+
+        @Override
+        void onReady(final SelectionKey key) throws IOException {
+            if (state == STATE_CONNECTING) {
+                if (!key.isConnectable() || !((SocketChannel) channel).finishConnect()) {
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                greet();
+                if (key.isValid()) {
+                    key.interestOps(out == null ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            super.onReady(key);
+        }
+
+        private void greet() throws IOException {
+            state = STATE_GREETING;
+            write(new byte[]{0x05, 0x01, 0x00});
+        }
+
+        @Override
+        boolean isDone() {
+            return state == STATE_DONE;
+        }
+
+        @Override
+        boolean onRead() throws IOException {
+            if (state == STATE_GREETING) {
+                if (in.remaining() < 2) {
+                    return false;
+                }
+                if (in.get() != 0x05 || in.get() != 0x00) {
+                    throw new IOException("Socks 5 handshake failed");
+                }
+                final Hop next = hops.get(hop);
+                final byte[] host = next.host.getBytes(StandardCharsets.US_ASCII);
+                final ByteBuffer request = ByteBuffer.allocate(7 + host.length);
+                request.put(new byte[]{0x05, 0x01, 0x00, 0x03});
+                request.put((byte) host.length);
+                request.put(host);
+                request.putShort((short) next.port);
+                state = STATE_REQUEST;
+                write(request.array());
+                return true;
+            } else if (state == STATE_REQUEST) {
+                final int p = in.position();
+                if (in.remaining() < 5) {
+                    return false;
+                }
+                final int length;
+                switch (in.get(p + 3)) {
+                    case 0x01:
+                        length = 4 + 4 + 2;
+                        break;
+                    case 0x03:
+                        length = 4 + 1 + (in.get(p + 4) & 0xff) + 2;
+                        break;
+                    case 0x04:
+                        length = 4 + 16 + 2;
+                        break;
+                    default:
+                        throw new IOException("unknown address type in socks5 reply");
+                }
+                if (in.remaining() < length) {
+                    return false;
+                }
+                final byte status = in.get(p + 1);
+                if (status != 0x00) {
+                    throw new IOException("Unable to connect to destination " + status);
+                }
+                in.position(p + length);
+                if (++hop < hops.size()) {
+                    greet();
+                } else {
+                    state = STATE_DONE;
+                    finish();
+                    final SocketChannel socketChannel = (SocketChannel) channel;
+                    callbackExecutor.execute(() -> callback.onConnected(socketChannel));
+                }
+                return true;
+            }
+            return true;
+        }
+
+        @Override
+        void onFailed(final IOException e) {
+            callbackExecutor.execute(() -> callback.onFailed(e));
+        }
+    }
+
+    /**
+     * Base for the two directions of a file transfer. Keeps the digest and reports progress
+     * whenever another percent has been transferred.
+     */
+    private abstract class Transfer extends Session {
+
+        final TransferCallback callback;
+        final MessageDigest digest;
+        final long start = SystemClock.elapsedRealtime();
+        ByteBuffer buffer;
+        long transferred = 0;
+        private long reported = 0;
+
+        Transfer(final SocketChannel channel, final TransferCallback callback) {
+            super(channel);
+            this.callback = callback;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-1");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+            this.buffer = acquireBuffer();
+        }
+
+        void onTransferred(final long count, final long size) {
+            transferred += count;
+            if (size > 0 && (transferred - reported) * 100 >= size) {
+                reported = transferred;
+                final long transferred = this.transferred;
+                final long bytesPerSecond = transferred * 1000 / Math.max(1, SystemClock.elapsedRealtime() - start);
+                callbackExecutor.execute(() -> callback.onProgress(transferred, bytesPerSecond));
+            }
+        }
+
+        void onDone() {
+            finish();
+            final byte[] sha1Sum = digest.digest();
+            callbackExecutor.execute(() -> callback.onFinished(sha1Sum));
+        }
+
+        @Override
+        void release() {
+            releaseBuffer(buffer);
+            buffer = null;
+        }
+
+        @Override
+        void onFailed(final IOException e) {
+            callbackExecutor.execute(() -> callback.onFailed(e));
+        }
+    }
+
+    private class Sender extends Transfer {
+
+        private final FileChannel fileChannel;
+        private final InputStream inputStream;
+        private final long size;
+        private long position;
+
+        private Sender(final SocketChannel channel, final FileChannel fileChannel, final long position, final InputStream inputStream, final long size, final TransferCallback callback) {
+            super(channel, callback);
+            this.fileChannel = fileChannel;
+            this.position = position;
+            this.inputStream = inputStream;
+            this.size = size;
+            buffer.limit(0);
+        }
+
+        @Override
+        void onReady(final SelectionKey key) throws IOException {
+            if (fileChannel != null) {
+                sendFromChannel();
+            } else {
+                sendFromStream();
+            }
+        }
+
+        private void sendFromChannel() throws IOException {
+            final long remaining = size - transferred;
+            if (remaining <= 0) {
+                onDone();
+                return;
+            }
+            final long count = fileChannel.transferTo(position, Math.min(remaining, 4 * BUFFER_SIZE), (SocketChannel) channel);
+            if (count <= 0) {
+                return;
+            }
+            //the digest still needs to see the content; read it back from the page cache
+            final long end = position + count;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                final int read = fileChannel.read(buffer, position);
+                if (read <= 0) {
+                    throw new EOFException("file was truncated while sending");
+                }
+                digest.update(buffer.array(), 0, read);
+                position += read;
+            }
+            onTransferred(count, size);
+            if (transferred >= size) {
+                onDone();
+            }
+        }
+
+        private void sendFromStream() throws IOException {
+            if (!buffer.hasRemaining()) {
+                final int count = inputStream.read(buffer.array(), 0, buffer.capacity());
+                if (count <= 0) {
+                    onDone();
+                    return;
+                }
+                digest.update(buffer.array(), 0, count);
+                buffer.position(0);
+                buffer.limit(count);
+            }
+            final int written = ((SocketChannel) channel).write(buffer);
+            onTransferred(written, size);
+        }
+    }
+
+    private class Receiver extends Transfer {
+
+        private final FileChannel fileChannel;
+        private final OutputStream outputStream;
+        private final long size;
+
+        private Receiver(final SocketChannel channel, final FileChannel fileChannel, final OutputStream outputStream, final long size, final TransferCallback callback) {
+            super(channel, callback);
+            this.fileChannel = fileChannel;
+            this.outputStream = outputStream;
+            this.size = size;
+            this.deadline = SystemClock.elapsedRealtime() + RECEIVE_IDLE_TIMEOUT;
+        }
+
+        @Override
+        void onReady(final SelectionKey key) throws IOException {
+            if (transferred >= size) {
+                complete();
+                return;
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - transferred));
+            final int count = ((SocketChannel) channel).read(buffer);
+            if (count == -1) {
+                throw new EOFException("file ended prematurely with " + (size - transferred) + " bytes remaining");
+            }
+            if (count == 0) {
+                return;
+            }
+            this.deadline = SystemClock.elapsedRealtime() + RECEIVE_IDLE_TIMEOUT;
+            digest.update(buffer.array(), 0, count);
+            if (fileChannel != null) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    fileChannel.write(buffer);
+                }
+            } else {
+                outputStream.write(buffer.array(), 0, count);
+            }
+            onTransferred(count, size);
+            if (transferred >= size) {
+                complete();
+            }
+        }
+
+        private void complete() throws IOException {
+            if (outputStream != null) {
+                outputStream.flush();
+                outputStream.close();
+            }
+            onDone();
+            channel.close();
+        }
+    }
+}